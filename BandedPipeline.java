@@ -0,0 +1,256 @@
+//Runs a filter chain over PixelStores a band of rows at a time, on all cores
+
+import java.util.List;
+
+/**
+ * Filters an image held in any PixelStore, such as an OffHeapPixelBuffer
+ * larger than the heap could take, without ever copying it whole onto the
+ * heap.
+ *
+ * The output is split into bands of rows, which run in parallel through
+ * ConvolutionEngine.forEachBand like the engine's own passes. For each band,
+ * the rows it depends on are worked out backwards through the chain: a
+ * filter that reads {@code r} rows above and below
+ * ({@link ImageFilters#verticalReach}) widens the window by {@code r} on
+ * each side, and a RESIZE_ or SCALE_ maps it through its Resampler table.
+ * Those source rows are copied into a heap window, each filter runs over the
+ * window as if it were the whole image, on a sequential copy of the engine,
+ * and the band's rows are written back to the result.
+ *
+ * Rows near a window's top and bottom are filtered with the wrong
+ * neighbours, but they are exactly the halo rows the next stage does not
+ * need. Where a window reaches the top or bottom of the image, the filter
+ * sees the real edge and applies the engine's EdgeMode to it. WRAP reads
+ * rows from the far side, so its windows carry on across the edge instead,
+ * taking rows modulo the height. Either way the output matches filtering
+ * the whole image, except that FFT convolutions tile the windows
+ * differently, which can move results by one level.
+ *
+ * CANNY follows edges across the whole image, so a chain containing it is
+ * filtered on a heap copy instead, and only on images of at most
+ * PixelBuffer.MAX_PIXELS pixels.
+ *
+ * The stores are read and written from the engine's threads, so an
+ * OffHeapPixelBuffer must come from a shared arena, not a confined one.
+ */
+public class BandedPipeline {
+
+    // Pixels in the largest stage's window of one band, bounding the heap each thread uses
+    private static final int BAND_PIXELS = 1 << 20;
+
+    // Bands smaller than this spend more on halo rows and task overhead than on output
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final ImageFilters filters;
+    private final ImageFilters sequential;
+    private final List<String> filterTypes;
+
+    public BandedPipeline(ImageFilters filters, List<String> filterTypes) {
+        this.filters = filters;
+        this.sequential = new ImageFilters(filters.getConvolutionEngine().sequential());
+        this.filterTypes = filterTypes;
+    }
+
+    /**
+     * Whether every filter of the chain can run in bands; only CANNY cannot.
+     */
+    public boolean isBanded() {
+        for (String filterType : filterTypes) {
+            if (!ImageFilters.isResize(filterType) && !ImageFilters.isLocal(filterType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Filter {@code pixels} into {@code result}, which must have the chain's
+     * output size, band by band.
+     */
+    public void apply(PixelStore pixels, PixelStore result, ProgressMonitor monitor) {
+        if (!isBanded()) {
+            throw new UnsupportedOperationException(filterTypes + " cannot be filtered in bands");
+        }
+        Stage[] stages = stages(pixels.getWidth(), pixels.getHeight());
+        int height = result.getHeight();
+        int bandRows = bandRows(stages, height);
+        int bands = (height + bandRows - 1) / bandRows;
+        boolean wrap = !filters.getConvolutionEngine().getEdgeMode().isLocal();
+        ImageStatistics.Collector statistics = monitor.getStatistics();
+
+        filters.getConvolutionEngine().forEachBand(bands, 1, monitor, (b0, b1) -> {
+            for (int b = b0; b < b1; b++) {
+                int y0 = b * bandRows;
+                int y1 = Math.min(height, y0 + bandRows);
+                PixelBuffer band = filterBand(pixels, stages, wrap, y0, y1);
+                int[] rows = band.getPixels();
+                for (int y = y0; y < y1; y++) {
+                    result.writeRow(y, rows, (y - y0) * band.getWidth());
+                }
+                if (statistics != null) {
+                    statistics.add(rows, 0, rows.length);
+                }
+            }
+        });
+    }
+
+    /**
+     * One filter of the chain, with the size of its input and how far it
+     * reads around each row, or for a size change, its Resampler tables.
+     */
+    private static class Stage {
+        final String filterType;
+        final int width;
+        final int height;
+        final int reach;
+        final Resampler.Weights horizontal;
+        final Resampler.Weights vertical;
+
+        Stage(String filterType, int width, int height, int reach, Resampler.Weights horizontal,
+              Resampler.Weights vertical) {
+            this.filterType = filterType;
+            this.width = width;
+            this.height = height;
+            this.reach = reach;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        boolean isResize() {
+            return vertical != null;
+        }
+    }
+
+    private Stage[] stages(int width, int height) {
+        Stage[] stages = new Stage[filterTypes.size()];
+        for (int i = 0; i < stages.length; i++) {
+            String filterType = filterTypes.get(i);
+            if (ImageFilters.isResize(filterType)) {
+                int[] size = ImageFilters.resizedSize(filterType, width, height);
+                Resampler.Method method = ImageFilters.resizeMethod(filterType);
+                stages[i] = new Stage(filterType, width, height, 0, Resampler.weights(width, size[0], method),
+                                      Resampler.weights(height, size[1], method));
+                width = size[0];
+                height = size[1];
+            } else {
+                stages[i] = new Stage(filterType, width, height, filters.verticalReach(filterType), null, null);
+            }
+        }
+        return stages;
+    }
+
+    // Output rows per band: few enough that the largest stage's window stays near BAND_PIXELS, but enough
+    // that its rows still outnumber the halo
+    private static int bandRows(Stage[] stages, int height) {
+        Stage largest = stages[0];
+        int halo = 0;
+        for (Stage stage : stages) {
+            if ((long) stage.width * stage.height > (long) largest.width * largest.height) {
+                largest = stage;
+            }
+            halo += stage.reach;
+        }
+        double scale = (double) height / largest.height;
+        long rows = (long) (BAND_PIXELS / largest.width * scale);
+        long fewest = (long) Math.ceil(Math.max(MIN_BAND_ROWS, 2 * halo) * scale);
+        return (int) Math.max(1, Math.min(height, Math.max(rows, fewest)));
+    }
+
+    /**
+     * The chain's output rows {@code [y0, y1)}, as a PixelBuffer of just those rows.
+     */
+    private PixelBuffer filterBand(PixelStore pixels, Stage[] stages, boolean wrap, int y0, int y1) {
+        // Work back from the band to the rows [top, bottom) each stage needs of its input; with WRAP
+        // they may run past either edge and are taken modulo the height
+        int[] tops = new int[stages.length + 1];
+        int[] bottoms = new int[stages.length + 1];
+        tops[stages.length] = y0;
+        bottoms[stages.length] = y1;
+        for (int i = stages.length - 1; i >= 0; i--) {
+            Stage stage = stages[i];
+            int top = tops[i + 1];
+            int bottom = bottoms[i + 1];
+            if (stage.isResize()) {
+                Resampler.Weights vertical = stage.vertical;
+                int outHeight = vertical.first.length;
+                if (bottom - top >= outHeight) {
+                    top = 0;
+                    bottom = stage.height;
+                } else {
+                    // A wrapped range of output rows needs a wrapped range of input rows
+                    int last = Math.floorMod(bottom - 1, outHeight);
+                    int firstRow = Math.floorMod(top, outHeight);
+                    int from = vertical.first[firstRow];
+                    int to = vertical.first[last] + vertical.taps;
+                    top = from - (top < 0 ? stage.height : 0);
+                    bottom = to + (bottom > outHeight ? stage.height : 0);
+                }
+            } else if (wrap) {
+                top -= stage.reach;
+                bottom += stage.reach;
+            } else {
+                top = Math.max(0, top - stage.reach);
+                bottom = Math.min(stage.height, bottom + stage.reach);
+            }
+            tops[i] = top;
+            bottoms[i] = bottom;
+        }
+
+        PixelBuffer window = new PixelBuffer(pixels.getWidth(), bottoms[0] - tops[0]);
+        for (int r = 0; r < window.getHeight(); r++) {
+            pixels.readRow(Math.floorMod(tops[0] + r, pixels.getHeight()), window.getPixels(), r * window.getWidth());
+        }
+
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            if (stage.isResize()) {
+                window = resizeWindow(window, stage, tops[i], tops[i + 1], bottoms[i + 1]);
+            } else {
+                PixelBuffer filtered = sequential.apply(stage.filterType, window);
+                window = rows(filtered, tops[i + 1] - tops[i], bottoms[i + 1] - tops[i + 1]);
+            }
+        }
+        return window;
+    }
+
+    // Rows [from, from + count) of pixels, or pixels itself if that is all of it
+    private static PixelBuffer rows(PixelBuffer pixels, int from, int count) {
+        if (from == 0 && count == pixels.getHeight()) {
+            return pixels;
+        }
+        int width = pixels.getWidth();
+        int[] rows = new int[count * width];
+        System.arraycopy(pixels.getPixels(), from * width, rows, 0, rows.length);
+        return new PixelBuffer(width, count, rows);
+    }
+
+    /**
+     * Resample the input rows held in {@code window}, which start at input
+     * row {@code windowTop}, into the output rows {@code [top, bottom)}.
+     */
+    private static PixelBuffer resizeWindow(PixelBuffer window, Stage stage, int windowTop, int top, int bottom) {
+        Resampler.Weights vertical = stage.vertical;
+        int width = stage.horizontal.first.length;
+        int rows = window.getHeight();
+        float[] red = new float[rows * width];
+        float[] green = new float[rows * width];
+        float[] blue = new float[rows * width];
+        int[] src = window.getPixels();
+        for (int r = 0; r < rows; r++) {
+            Resampler.horizontalRow(src, r * window.getWidth(), stage.horizontal, red, green, blue, r * width);
+        }
+
+        PixelBuffer result = new PixelBuffer(width, bottom - top);
+        int outHeight = vertical.first.length;
+        int[] rowStarts = new int[vertical.taps];
+        for (int y = top; y < bottom; y++) {
+            int row = Math.floorMod(y, outHeight);
+            for (int k = 0; k < rowStarts.length; k++) {
+                rowStarts[k] = Math.floorMod(vertical.first[row] + k - windowTop, stage.height) * width;
+            }
+            ConvolutionEngine.verticalRow(red, green, blue, rowStarts, vertical.weights[row], result.getPixels(),
+                                          (y - top) * width, width);
+        }
+        return result;
+    }
+}
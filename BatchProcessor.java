@@ -0,0 +1,407 @@
+//Headless command-line front end for running ImageProcessor filters over many files
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * Applies a chain of filters to every image in a directory or matching a glob,
+ * without starting JavaFX. Each image goes through one FilterPipeline pass.
+ * Files are processed concurrently by a fixed number of workers fed from a
+ * bounded queue, so a huge directory listing never turns into a huge backlog
+ * of decoded images.
+ *
+ * Usage:
+ * <pre>
+ * java BatchProcessor [--threads N] [--output DIR] [--pattern P] [--streaming]
+ *                     [--format png|jpeg|bmp|raw] [--compression 0-9] [--quality 0-1] [--writers N]
+ *                     [--edges constant|clamp|mirror|wrap] [--fixed-point]
+ *                     [--resize WIDTHxHEIGHT] [--resize-method nearest|bilinear|area|lanczos3]
+ *                     [--timings] [--stats] INPUT FILTER[,FILTER...]
+ * </pre>
+ * INPUT is a directory or a glob such as {@code scans/*.png}. The pattern
+ * names each output file; {@code {name}} is replaced by the input file name
+ * without its extension, {@code {filters}} by the filter chain and
+ * {@code {ext}} by the output format's extension. Encoding runs on a separate
+ * pool of {@code --writers} threads through ImageExporter.
+ * {@code --streaming} decodes and encodes each image a band of rows at a time
+ * through StreamingProcessor, for inputs too large to hold in the heap.
+ * Inputs may also be RawImageFile ({@code .argb}) files, and {@code --format raw}
+ * writes them, so the tool doubles as a converter to and from PNG.
+ * {@code --edges} picks the EdgeMode for convolutions. Wrap edges and the
+ * BOX_BLUR_, GAUSSIAN_BLUR_, MEDIAN_, MIN_, MAX_, SOBEL and CANNY filters
+ * cannot be streamed.
+ * {@code --fixed-point} convolves with integer arithmetic; see FixedPointKernel.
+ * {@code --resize} adds a RESIZE_ stage to the end of the chain, by
+ * {@code --resize-method} (LANCZOS3 unless given); see Resampler. Filters
+ * such as SCALE_0.5_AREA can also go anywhere in the chain itself.
+ * {@code --timings} writes an OperationTimer log line per file to standard
+ * error, breaking its time down into decode, filter and encode stages.
+ * {@code --stats} writes two ImageStatistics lines per file to standard
+ * error, one for the input and one for the output. The output's rows are
+ * counted as the filter's last pass writes them, and in streaming mode the
+ * input's as they are decoded.
+ */
+public class BatchProcessor {
+
+    private static final String DEFAULT_PATTERN = "filtered_{filters}_{name}.{ext}";
+    private static final String[] IMAGE_EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".gif",
+                                                      "." + RawImageFile.EXTENSION};
+
+    private final FilterPipeline pipeline;
+    private final Path outputDir;
+    private final String pattern;
+    private final int threads;
+    private final StreamingProcessor streaming;
+    private final ExportSettings exportSettings;
+    private final ImageExporter exporter;
+    private volatile boolean logTimings;
+    private volatile boolean logStatistics;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public BatchProcessor(List<String> filterChain, Path outputDir, String pattern, int threads,
+                          boolean streaming, ExportSettings exportSettings, int writers, EdgeMode edgeMode,
+                          boolean fixedPoint) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+        }
+        if (streaming && exportSettings.getFormat() != ExportFormat.PNG) {
+            throw new IllegalArgumentException("Streaming mode can only write PNG");
+        }
+        if (streaming && !edgeMode.isLocal()) {
+            throw new IllegalArgumentException("Streaming mode cannot use " + edgeMode + " edges");
+        }
+        // Files are spread over the workers, so each chain runs single-threaded
+        this.pipeline = new FilterPipeline(new ImageFilters(new ConvolutionEngine(1, edgeMode, PixelBuffer.WHITE,
+                                                                                  fixedPoint)), filterChain);
+        if (streaming && !pipeline.isStreamable()) {
+            throw new IllegalArgumentException("Streaming mode cannot run " + String.join(",", filterChain));
+        }
+        this.outputDir = outputDir;
+        this.pattern = pattern;
+        this.threads = threads;
+        this.streaming = streaming ? new StreamingProcessor(pipeline) : null;
+        this.exportSettings = exportSettings;
+        this.exporter = new ImageExporter(writers, writers * 2);
+    }
+
+    /**
+     * Whether to log each file's stage timings; see OperationTimer.
+     */
+    public void setLogTimings(boolean logTimings) {
+        this.logTimings = logTimings;
+    }
+
+    /**
+     * Whether to log each file's input and output statistics; see ImageStatistics.
+     */
+    public void setLogStatistics(boolean logStatistics) {
+        this.logStatistics = logStatistics;
+    }
+
+    /**
+     * Process every file and return the number that failed.
+     */
+    public int run(List<Path> inputs) throws InterruptedException {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.nanoTime();
+        for (Path input : inputs) {
+            workers.execute(() -> processFile(input));
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        exporter.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT, "Processed %d images (%d failed) in %.2f s: %.2f images/s",
+                processed.get(), failed.get(), seconds, processed.get() / seconds));
+        if (exporter.getFilesWritten() > 0) {
+            System.out.println(String.format(Locale.ROOT, "Encoded %d files, %d bytes, %.2f s total encode time",
+                    exporter.getFilesWritten(), exporter.getBytesWritten(), exporter.getEncodeNanos() / 1e9));
+        }
+        return failed.get();
+    }
+
+    private void processFile(Path input) {
+        try {
+            File output = outputDir.resolve(outputName(input)).toFile();
+            // Each file runs on one worker thread, so only that thread's allocation counts
+            OperationTimer timings = logTimings
+                    ? new OperationTimer(String.join(",", pipeline.getFilterTypes()), input.toString(), false)
+                    : null;
+            ImageStatistics.Collector inputStatistics = logStatistics ? new ImageStatistics.Collector() : null;
+            ImageStatistics.Collector outputStatistics = logStatistics ? new ImageStatistics.Collector() : null;
+            if (streaming != null) {
+                streaming.process(input.toFile(), output, exportSettings.getCompressionLevel(), timings,
+                                  inputStatistics, outputStatistics);
+                processed.incrementAndGet();
+                if (timings != null) {
+                    timings.log();
+                }
+                logStatistics(input, inputStatistics, outputStatistics);
+                return;
+            }
+
+            // The last pass of the chain counts the output's rows as it writes them
+            ProgressMonitor monitor = ProgressMonitor.NONE.withStatistics(outputStatistics);
+            PixelBuffer pixels;
+            if (timings == null) {
+                PixelBuffer source = read(input.toFile());
+                if (inputStatistics != null) {
+                    inputStatistics.addRows(source, 0, source.getHeight());
+                }
+                pixels = pipeline.apply(source, monitor);
+            } else {
+                OperationTimer.Clock decode = timings.start();
+                PixelBuffer source = read(input.toFile());
+                decode.stop("decode", source.getPixels().length);
+                timings.setSize(source.getWidth(), source.getHeight());
+                if (inputStatistics != null) {
+                    timings.time("statistics", timings.getPixels(), () -> {
+                        inputStatistics.addRows(source, 0, source.getHeight());
+                        return null;
+                    });
+                }
+                pixels = timings.time("filter", timings.getPixels(), () -> pipeline.apply(source, monitor));
+            }
+            if (outputStatistics != null && outputStatistics.getCount() != pixels.getPixels().length) {
+                // A chain with no filters has no last pass
+                outputStatistics = new ImageStatistics.Collector();
+                outputStatistics.addRows(pixels, 0, pixels.getHeight());
+            }
+            logStatistics(input, inputStatistics, outputStatistics);
+
+            // The worker moves on to the next file while the exporter encodes this one, unless the
+            // exporter is full, when it waits for a write to finish
+            exporter.exportWaiting(pixels, output, exportSettings).whenComplete((result, error) -> {
+                if (error == null) {
+                    processed.incrementAndGet();
+                    if (timings != null) {
+                        timings.add("encode", pixels.getPixels().length, result.getEncodeNanos(),
+                                    result.getAllocatedBytes());
+                        timings.log();
+                    }
+                } else {
+                    fail(input, error.getCause() != null ? error.getCause() : error);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            fail(input, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(input, e);
+        }
+    }
+
+    private static void logStatistics(Path input, ImageStatistics.Collector inputStatistics,
+                                      ImageStatistics.Collector outputStatistics) {
+        if (inputStatistics == null) {
+            return;
+        }
+        String image = input.toString().replaceAll("\\s", "_");
+        System.err.println("stats image=" + image + " stage=input " + inputStatistics.finish().toLogFields() + "\n"
+                           + "stats image=" + image + " stage=output " + outputStatistics.finish().toLogFields());
+    }
+
+    private static PixelBuffer read(File input) throws IOException {
+        if (RawImageFile.isRawImage(input)) {
+            return RawImageFile.read(input);
+        }
+        BufferedImage source = ImageIO.read(input);
+        if (source == null) {
+            throw new IOException("No ImageIO reader for " + input);
+        }
+        return PixelBuffer.fromBufferedImage(source);
+    }
+
+    private void fail(Path input, Throwable error) {
+        failed.incrementAndGet();
+        System.err.println("Failed to process " + input + ": " + error.getMessage());
+    }
+
+    private String outputName(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return pattern.replace("{name}", name)
+                      .replace("{filters}", String.join("_", pipeline.getFilterTypes()))
+                      .replace("{ext}", exportSettings.getFormat().getExtension());
+    }
+
+    /**
+     * Expand a directory or a glob into the image files it names, in sorted order.
+     */
+    public static List<Path> listInputs(String input) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        Path path = Paths.get(input);
+
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file) && isImageFile(file)) {
+                        inputs.add(file);
+                    }
+                }
+            }
+        } else if (Files.isRegularFile(path)) {
+            inputs.add(path);
+        } else {
+            // Treat it as a glob; walk from the deepest directory with no wildcard in it
+            int wildcard = indexOfWildcard(input);
+            int slash = wildcard < 0 ? -1 : input.lastIndexOf(File.separatorChar, wildcard);
+            Path root = slash < 0 ? Paths.get(".") : Paths.get(input.substring(0, slash + 1));
+            PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + input.substring(slash + 1));
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile)
+                     .filter(file -> matcher.matches(root.relativize(file)))
+                     .forEach(inputs::add);
+            }
+        }
+
+        Collections.sort(inputs);
+        return inputs;
+    }
+
+    private static boolean isImageFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfWildcard(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java BatchProcessor [--threads N] [--output DIR] [--pattern P] [--streaming]"
+                + " [--format png|jpeg|bmp|raw] [--compression 0-9] [--quality 0-1] [--writers N]"
+                + " [--edges constant|clamp|mirror|wrap] [--fixed-point]"
+                + " [--resize WIDTHxHEIGHT] [--resize-method nearest|bilinear|area|lanczos3] [--timings] [--stats]"
+                + " INPUT FILTER[,FILTER...]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path outputDir = Paths.get(".");
+        String pattern = DEFAULT_PATTERN;
+        boolean streaming = false;
+        boolean timings = false;
+        boolean statistics = false;
+        boolean fixedPoint = false;
+        ExportFormat format = ExportFormat.PNG;
+        int compression = ExportSettings.DEFAULT.getCompressionLevel();
+        float quality = ExportSettings.DEFAULT.getQuality();
+        int writers = 2;
+        EdgeMode edgeMode = EdgeMode.CONSTANT;
+        String resize = null;
+        Resampler.Method resizeMethod = Resampler.Method.LANCZOS3;
+        List<String> positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--streaming")) {
+                streaming = true;
+                continue;
+            }
+            if (arg.equals("--timings")) {
+                timings = true;
+                continue;
+            }
+            if (arg.equals("--stats")) {
+                statistics = true;
+                continue;
+            }
+            if (arg.equals("--fixed-point")) {
+                fixedPoint = true;
+                continue;
+            }
+            if (arg.startsWith("--") && i + 1 >= args.length) {
+                usage();
+            }
+            if (arg.equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--output")) {
+                outputDir = Paths.get(args[++i]);
+            } else if (arg.equals("--pattern")) {
+                pattern = args[++i];
+            } else if (arg.equals("--format")) {
+                format = ExportFormat.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--compression")) {
+                compression = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--quality")) {
+                quality = Float.parseFloat(args[++i]);
+            } else if (arg.equals("--writers")) {
+                writers = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--edges")) {
+                edgeMode = EdgeMode.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--resize")) {
+                resize = args[++i].toLowerCase(Locale.ROOT);
+            } else if (arg.equals("--resize-method")) {
+                resizeMethod = Resampler.Method.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() != 2) {
+            usage();
+        }
+
+        List<String> chain = new ArrayList<>();
+        for (String filterType : positional.get(1).split(",")) {
+            chain.add(filterType.trim().toUpperCase(Locale.ROOT));
+        }
+        if (resize != null) {
+            String stage = "RESIZE_" + resize + "_" + resizeMethod;
+            if (!ImageFilters.isFilterType(stage)) {
+                usage();
+            }
+            chain.add(stage);
+        }
+
+        List<Path> inputs = listInputs(positional.get(0));
+        if (inputs.isEmpty()) {
+            System.err.println("No images found for " + positional.get(0));
+            System.exit(1);
+        }
+        Files.createDirectories(outputDir);
+
+        BatchProcessor batch = new BatchProcessor(chain, outputDir, pattern, threads, streaming,
+                new ExportSettings(format, compression, quality), writers, edgeMode, fixedPoint);
+        batch.setLogTimings(timings);
+        batch.setLogStatistics(statistics);
+        System.exit(batch.run(inputs) == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,209 @@
+//Lookup-table point operations: sepia, greyscale and tone curves
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A point operation compiled into lookup tables, so applying it costs a few
+ * array reads and integer adds per pixel.
+ *
+ * A transform is an input table per channel, then optionally a 3x3 colour
+ * matrix, then an output table per channel. Per-channel operations such as
+ * brightness, contrast, gamma and invert are single 256-entry tables.
+ * Cross-channel operations such as sepia and greyscale are matrices. Each
+ * matrix coefficient is rounded to 16.16 fixed point, and its products with
+ * every channel value are stored in a 256-entry table, so the matrix costs
+ * nine lookups and six adds per pixel and no multiplies. A transform that is
+ * just a matrix runs through VectorKernels when the Vector API is enabled,
+ * multiplying by the same fixed-point coefficients, so the result is the same.
+ *
+ * {@link #then} folds per-channel tables into their neighbours, so any run of
+ * them and at most one matrix compile into one pass.
+ */
+public class ColorTransform implements PointOperation {
+
+    private static final int SHIFT = 16;
+    private static final int HALF = 1 << (SHIFT - 1);
+    private static final int[] IDENTITY = table(v -> v);
+
+    public static final ColorTransform SEPIA = matrix(new double[][] {
+        {0.393, 0.769, 0.189},
+        {0.349, 0.686, 0.168},
+        {0.272, 0.534, 0.131}
+    });
+
+    public static final ColorTransform GREYSCALE = matrix(new double[][] {
+        {1.0 / 3, 1.0 / 3, 1.0 / 3},
+        {1.0 / 3, 1.0 / 3, 1.0 / 3},
+        {1.0 / 3, 1.0 / 3, 1.0 / 3}
+    });
+
+    public static final ColorTransform INVERT = perChannel(v -> 255 - v);
+
+    private final int[] inRed;
+    private final int[] inGreen;
+    private final int[] inBlue;
+    private final int[][] matrix;
+    private final int[] coefficients;
+    private final int[] outRed;
+    private final int[] outGreen;
+    private final int[] outBlue;
+
+    private ColorTransform(int[] inRed, int[] inGreen, int[] inBlue, int[][] matrix, int[] coefficients,
+                           int[] outRed, int[] outGreen, int[] outBlue) {
+        this.inRed = inRed;
+        this.inGreen = inGreen;
+        this.inBlue = inBlue;
+        this.matrix = matrix;
+        this.coefficients = coefficients;
+        this.outRed = outRed;
+        this.outGreen = outGreen;
+        this.outBlue = outBlue;
+    }
+
+    /**
+     * The same curve on all three channels. Results are rounded and clamped
+     * into 0-255 when the table is built.
+     */
+    public static ColorTransform perChannel(IntUnaryOperator curve) {
+        int[] lut = table(curve);
+        return new ColorTransform(lut, lut, lut, null, null, IDENTITY, IDENTITY, IDENTITY);
+    }
+
+    public static ColorTransform perChannel(IntUnaryOperator red, IntUnaryOperator green, IntUnaryOperator blue) {
+        return new ColorTransform(table(red), table(green), table(blue), null, null, IDENTITY, IDENTITY, IDENTITY);
+    }
+
+    /**
+     * {@code m[row][column]}: output channel {@code row} (R, G, B) is the sum
+     * over input channels {@code column} of {@code m[row][column]} times that
+     * channel, rounded and clamped.
+     */
+    public static ColorTransform matrix(double[][] m) {
+        int[] coefficients = new int[9];
+        int[][] products = new int[9][256];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                int k = row * 3 + column;
+                coefficients[k] = (int) Math.round(m[row][column] * (1 << SHIFT));
+                for (int v = 0; v < 256; v++) {
+                    products[k][v] = v * coefficients[k];
+                }
+            }
+        }
+        return new ColorTransform(IDENTITY, IDENTITY, IDENTITY, products, coefficients, IDENTITY, IDENTITY, IDENTITY);
+    }
+
+    public static ColorTransform brightness(int delta) {
+        return perChannel(v -> v + delta);
+    }
+
+    /**
+     * Scale each channel's distance from mid-grey by {@code factor}.
+     */
+    public static ColorTransform contrast(double factor) {
+        return perChannel(v -> (int) Math.round((v - 128) * factor + 128));
+    }
+
+    /**
+     * Standard display gamma: {@code 255 * (v / 255)^(1 / gamma)}, so values
+     * above 1 brighten the mid-tones.
+     */
+    public static ColorTransform gamma(double gamma) {
+        if (gamma <= 0) {
+            throw new IllegalArgumentException("Gamma must be positive: " + gamma);
+        }
+        return perChannel(v -> (int) Math.round(255 * Math.pow(v / 255.0, 1 / gamma)));
+    }
+
+    public boolean hasMatrix() {
+        return matrix != null;
+    }
+
+    /**
+     * Whether {@link #then} can fold {@code next} into this transform; only two
+     * matrices cannot be merged without changing the rounding between them.
+     */
+    public boolean canCompose(ColorTransform next) {
+        return matrix == null || next.matrix == null;
+    }
+
+    /**
+     * A single transform equal to applying this one and then {@code next}.
+     */
+    public ColorTransform then(ColorTransform next) {
+        if (!canCompose(next)) {
+            throw new IllegalArgumentException("Cannot fold two colour matrices into one transform");
+        }
+        if (matrix == null) {
+            // Our tables run before whatever next does
+            return new ColorTransform(compose(inRed, next.inRed), compose(inGreen, next.inGreen),
+                                      compose(inBlue, next.inBlue), next.matrix, next.coefficients,
+                                      next.outRed, next.outGreen, next.outBlue);
+        }
+        // next is per-channel only, so it folds into our output tables
+        return new ColorTransform(inRed, inGreen, inBlue, matrix, coefficients, compose(outRed, next.inRed),
+                                  compose(outGreen, next.inGreen), compose(outBlue, next.inBlue));
+    }
+
+    @Override
+    public int apply(int argb) {
+        int red = inRed[(argb >> 16) & 0xFF];
+        int green = inGreen[(argb >> 8) & 0xFF];
+        int blue = inBlue[argb & 0xFF];
+
+        if (matrix != null) {
+            int[][] m = matrix;
+            int newRed = clamp((m[0][red] + m[1][green] + m[2][blue] + HALF) >> SHIFT);
+            int newGreen = clamp((m[3][red] + m[4][green] + m[5][blue] + HALF) >> SHIFT);
+            int newBlue = clamp((m[6][red] + m[7][green] + m[8][blue] + HALF) >> SHIFT);
+            red = outRed[newRed];
+            green = outGreen[newGreen];
+            blue = outBlue[newBlue];
+        }
+
+        return PixelBuffer.OPAQUE | (red << 16) | (green << 8) | blue;
+    }
+
+    @Override
+    public void apply(int[] src, int[] dst, int from, int to) {
+        int i = from;
+        if (VectorBackend.ENABLED && isPureMatrix()) {
+            i = VectorKernels.colorMatrix(src, dst, from, to, coefficients, SHIFT);
+        }
+        for (; i < to; i++) {
+            dst[i] = apply(src[i]);
+        }
+    }
+
+    // Table lookups do not vectorise (gathers are slower than scalar loads),
+    // so only a bare matrix takes the vector path
+    private boolean isPureMatrix() {
+        return matrix != null && inRed == IDENTITY && inGreen == IDENTITY && inBlue == IDENTITY
+               && outRed == IDENTITY && outGreen == IDENTITY && outBlue == IDENTITY;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int[] table(IntUnaryOperator curve) {
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = clamp(curve.applyAsInt(v));
+        }
+        return lut;
+    }
+
+    private static int[] compose(int[] first, int[] second) {
+        if (first == IDENTITY) {
+            return second;
+        } else if (second == IDENTITY) {
+            return first;
+        }
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = second[first[v]];
+        }
+        return lut;
+    }
+}
@@ -0,0 +1,129 @@
+//Checks that parallel convolution matches the sequential path, and reports the speedup
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares ConvolutionEngine.convolve, which runs bands on the engine's
+ * ForkJoinPool, with convolveSequential, which runs the whole image as one
+ * band on the calling thread. Every kernel is run under every EdgeMode on a
+ * few awkward sizes: one smaller than the kernel, one with fewer rows than
+ * there are bands, and one odd-sized. The engine promises bit-identical
+ * output, so any differing pixel is reported and the check exits with
+ * status 1.
+ *
+ * Then both paths are timed on a larger square image, best of several
+ * runs, and the speedup is printed.
+ *
+ * Usage:
+ * <pre>
+ * java ConvolutionCheck [--threads N] [--size N]
+ * </pre>
+ * {@code --threads} defaults to one per core and {@code --size} to 2048.
+ */
+public class ConvolutionCheck {
+
+    private static final String[] KERNELS = {"IDENTITY", "BLUR", "SHARPEN", "EMBOSS", "EDGE",
+                                             "GAUSSIAN_5", "GAUSSIAN_7", "BOX_5", "BOX_7", "GAUSSIAN_41"};
+    private static final int[][] SIZES = {{3, 2}, {301, 5}, {517, 263}};
+    private static final int BORDER = 0xFF336699;
+    private static final int TIMED_RUNS = 5;
+
+    private ConvolutionCheck() {
+    }
+
+    /**
+     * @return the number of kernel, edge mode and size combinations that differed
+     */
+    static int compare(int threads) {
+        int failures = 0;
+        int cases = 0;
+        ImageFilters names = new ImageFilters(new ConvolutionEngine(1));
+        for (EdgeMode edges : EdgeMode.values()) {
+            ConvolutionEngine engine = new ConvolutionEngine(threads, edges, BORDER);
+            for (int[] size : SIZES) {
+                PixelBuffer pixels = FilterBenchmark.randomImage(size[0], size[1]);
+                for (String filterType : KERNELS) {
+                    Kernel kernel = names.createKernel(filterType);
+                    int[] parallel = engine.convolve(pixels, kernel).getPixels();
+                    int[] sequential = engine.convolveSequential(pixels, kernel).getPixels();
+                    cases++;
+                    if (!Arrays.equals(parallel, sequential)) {
+                        failures++;
+                        System.out.printf(Locale.ROOT, "MISMATCH %s %s %dx%d: %d pixels differ%n", filterType, edges,
+                                          size[0], size[1], countDifferences(parallel, sequential));
+                    }
+                }
+            }
+            engine.shutdown();
+        }
+        System.out.printf(Locale.ROOT, "%d of %d cases identical on %d threads%n", cases - failures, cases, threads);
+        return failures;
+    }
+
+    private static int countDifferences(int[] a, int[] b) {
+        int count = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static void time(int threads, int size) {
+        ConvolutionEngine engine = new ConvolutionEngine(threads);
+        PixelBuffer pixels = FilterBenchmark.randomImage(size);
+        ImageFilters names = new ImageFilters(engine);
+        for (String filterType : new String[] {"SHARPEN", "GAUSSIAN_7"}) {
+            Kernel kernel = names.createKernel(filterType);
+            double sequential = Double.MAX_VALUE;
+            double parallel = Double.MAX_VALUE;
+            // The first run of each only warms up the JIT
+            for (int run = 0; run <= TIMED_RUNS; run++) {
+                long start = System.nanoTime();
+                engine.convolveSequential(pixels, kernel);
+                long middle = System.nanoTime();
+                engine.convolve(pixels, kernel);
+                long end = System.nanoTime();
+                if (run > 0) {
+                    sequential = Math.min(sequential, (middle - start) / 1e6);
+                    parallel = Math.min(parallel, (end - middle) / 1e6);
+                }
+            }
+            System.out.printf(Locale.ROOT, "%-10s %dx%d  sequential %8.1f ms  parallel %8.1f ms  speedup %.2fx%n",
+                              filterType, size, size, sequential, parallel, sequential / parallel);
+        }
+        engine.shutdown();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java ConvolutionCheck [--threads N] [--size N]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int size = 2048;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String arg = args[i];
+            String value = args[++i];
+            if (arg.equals("--threads")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.equals("--size")) {
+                size = Integer.parseInt(value);
+            } else {
+                usage();
+            }
+        }
+        // One thread would compare the sequential path with itself
+        threads = Math.max(threads, 2);
+
+        int failures = compare(threads);
+        time(threads, size);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,102 @@
+//Chooses how ConvolutionEngine runs a kernel, from estimated cost per pixel
+
+/**
+ * Estimates the work per output pixel of each way of convolving with a
+ * Kernel and picks the cheapest:
+ * <ul>
+ * <li>DIRECT sums every tap: {@code directTap * width * height}.</li>
+ * <li>SEPARABLE, for rank-1 kernels only, sums a row then a column:
+ *     {@code separableTap * (width + height)}.</li>
+ * <li>FFT transforms overlapping {@code T x T} tiles, each yielding
+ *     {@code (T - width + 1) x (T - height + 1)} outputs, at
+ *     {@code fftPoint * T^2 * log2(T) + tilePoint * T^2} per tile. That is
+ *     spread over the outputs, including those wasted where tiles run past
+ *     the image.</li>
+ * </ul>
+ * The weights are in arbitrary units; only their ratios matter. The defaults
+ * were measured on the scalar loops, where FFT starts to beat direct
+ * convolution at kernels of around 31 x 31 and separable kernels never
+ * reach it below MAX_TILE. Machines with faster direct loops, such as
+ * through VectorBackend, move that point and can be tuned with
+ * {@link ConvolutionEngine#setCostModel}.
+ */
+public class ConvolutionCostModel {
+
+    public enum Method {
+        DIRECT, SEPARABLE, FFT
+    }
+
+    /** The largest tile tried, which bounds each thread's FFT buffers. */
+    public static final int MAX_TILE = 1024;
+
+    public static final ConvolutionCostModel DEFAULT = new ConvolutionCostModel(1.0, 1.4, 70.0, 130.0);
+
+    private final double directTap;
+    private final double separableTap;
+    private final double fftPoint;
+    private final double tilePoint;
+
+    /**
+     * @param directTap    cost of one tap of a direct convolution
+     * @param separableTap cost of one tap of either separable pass
+     * @param fftPoint     cost per point and per level of a 2-D FFT
+     * @param tilePoint    fixed cost per tile point: filling the tile,
+     *                     multiplying spectra and reading results back
+     */
+    public ConvolutionCostModel(double directTap, double separableTap, double fftPoint, double tilePoint) {
+        this.directTap = directTap;
+        this.separableTap = separableTap;
+        this.fftPoint = fftPoint;
+        this.tilePoint = tilePoint;
+    }
+
+    /**
+     * The cheapest method for {@code kernel} on a {@code width x height} image.
+     */
+    public Method choose(Kernel kernel, int width, int height) {
+        double best = kernel.isSeparable() ? separableCost(kernel) : directCost(kernel);
+        int tile = tileSize(kernel, width, height);
+        if (tile > 0 && fftCost(kernel, width, height, tile) < best) {
+            return Method.FFT;
+        }
+        return kernel.isSeparable() ? Method.SEPARABLE : Method.DIRECT;
+    }
+
+    /**
+     * The cheapest FFT tile size for {@code kernel} on a
+     * {@code width x height} image, or 0 if no tile up to MAX_TILE holds it.
+     */
+    public int tileSize(Kernel kernel, int width, int height) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        int smallest = Integer.highestOneBit(Math.max(kernel.getWidth(), kernel.getHeight())) * 2;
+        for (int tile = smallest; tile <= MAX_TILE; tile *= 2) {
+            double cost = fftCost(kernel, width, height, tile);
+            if (cost < bestCost) {
+                best = tile;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    public double directCost(Kernel kernel) {
+        return directTap * kernel.getWidth() * kernel.getHeight();
+    }
+
+    public double separableCost(Kernel kernel) {
+        return separableTap * (kernel.getWidth() + kernel.getHeight());
+    }
+
+    public double fftCost(Kernel kernel, int width, int height, int tile) {
+        int across = ceilDiv(width, tile - kernel.getWidth() + 1);
+        int down = ceilDiv(height, tile - kernel.getHeight() + 1);
+        double points = (double) tile * tile;
+        double perTile = fftPoint * points * Integer.numberOfTrailingZeros(tile) + tilePoint * points;
+        return (double) across * down * perTile / ((double) width * height);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
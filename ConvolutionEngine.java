@@ -0,0 +1,543 @@
+//Runs ImageProcessor convolution kernels across several cores
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Convolves a {@code PixelBuffer} with a kernel by splitting the output into
+ * bands of rows and running the bands on a {@code ForkJoinPool}.
+ *
+ * Each band writes only its own output rows but reads a halo of
+ * {@code kernel.getHeight() / 2} source rows above and below it. The source is
+ * never written, so bands share it without copying. The sequential and
+ * parallel paths run the same per-band loop, so their output is bit-identical.
+ *
+ * Separable kernels run as a horizontal pass into a band-local float scratch
+ * (band plus halo rows) followed by a vertical pass out of it.
+ *
+ * Taps beyond the edge of the image follow the engine's EdgeMode. Only the
+ * strips within a kernel radius of the left and right edges map columns
+ * through it; the interior of each row reads source pixels directly, and
+ * rows are mapped once per output row rather than per tap.
+ *
+ * When {@link VectorBackend#ENABLED} the interior and the vertical pass run
+ * through VectorKernels, with the scalar loops finishing each row's tail.
+ *
+ * A fixed-point engine runs the same bands through FixedPointKernel instead:
+ * weights quantised to ints, int accumulators and int scratch rows. Results
+ * are within one level of the float path.
+ *
+ * Otherwise the engine's ConvolutionCostModel decides per kernel and image
+ * size between summing taps, directly or separably, and FftConvolution,
+ * whose cost per pixel does not grow with the kernel. FFT bands are at least
+ * one tile's worth of output rows tall, so tiles are not wasted on thin
+ * bands. Its results are within one level of direct convolution.
+ */
+public class ConvolutionEngine {
+
+    // Bands smaller than this cost more in task overhead than they save
+    private static final int MIN_BAND_ROWS = 16;
+
+    // Aim for a few bands per worker so uneven rows still balance out
+    private static final int BANDS_PER_THREAD = 4;
+
+    private final int parallelism;
+    private final EdgeMode edgeMode;
+    private final int borderColour;
+    private final boolean fixedPoint;
+    private final ForkJoinPool pool;
+    private volatile ConvolutionCostModel costModel = ConvolutionCostModel.DEFAULT;
+
+    public ConvolutionEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConvolutionEngine(int parallelism) {
+        this(parallelism, EdgeMode.CONSTANT);
+    }
+
+    public ConvolutionEngine(int parallelism, EdgeMode edgeMode) {
+        this(parallelism, edgeMode, PixelBuffer.WHITE);
+    }
+
+    /**
+     * @param borderColour the ARGB colour read beyond the edge in CONSTANT mode
+     */
+    public ConvolutionEngine(int parallelism, EdgeMode edgeMode, int borderColour) {
+        this(parallelism, edgeMode, borderColour, false);
+    }
+
+    /**
+     * @param fixedPoint whether to convolve with integer arithmetic only
+     */
+    public ConvolutionEngine(int parallelism, EdgeMode edgeMode, int borderColour, boolean fixedPoint) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.edgeMode = edgeMode;
+        this.borderColour = borderColour;
+        this.fixedPoint = fixedPoint;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public EdgeMode getEdgeMode() {
+        return edgeMode;
+    }
+
+    public int getBorderColour() {
+        return borderColour;
+    }
+
+    public boolean isFixedPoint() {
+        return fixedPoint;
+    }
+
+    /**
+     * An engine with the same settings that runs everything on the calling
+     * thread, for work already split across this one's threads.
+     */
+    ConvolutionEngine sequential() {
+        ConvolutionEngine sequential = new ConvolutionEngine(1, edgeMode, borderColour, fixedPoint);
+        sequential.setCostModel(costModel);
+        return sequential;
+    }
+
+    public ConvolutionCostModel getCostModel() {
+        return costModel;
+    }
+
+    /**
+     * Tune when convolve switches to FFT, such as after measuring this
+     * machine. Fixed-point engines never use FFT.
+     */
+    public void setCostModel(ConvolutionCostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    /**
+     * How convolve will run {@code kernel} on a {@code width x height} image.
+     */
+    public ConvolutionCostModel.Method methodFor(Kernel kernel, int width, int height) {
+        if (fixedPoint) {
+            return kernel.isSeparable() ? ConvolutionCostModel.Method.SEPARABLE : ConvolutionCostModel.Method.DIRECT;
+        }
+        return costModel.choose(kernel, width, height);
+    }
+
+    public PixelBuffer convolve(PixelBuffer pixels, float[][] kernel) {
+        return convolve(pixels, new Kernel(kernel));
+    }
+
+    public PixelBuffer convolve(PixelBuffer pixels, Kernel kernel) {
+        return convolve(pixels, kernel, ProgressMonitor.NONE);
+    }
+
+    /**
+     * Convolve, reporting each finished band to {@code monitor} and giving up
+     * with a {@code CancellationException} once it is cancelled.
+     */
+    public PixelBuffer convolve(PixelBuffer pixels, Kernel kernel, ProgressMonitor monitor) {
+        PixelBuffer result = new PixelBuffer(pixels.getWidth(), pixels.getHeight());
+        if (fixedPoint) {
+            FixedPointKernel quantised = kernel.toFixedPoint();
+            forEachBand(pixels.getHeight(), MIN_BAND_ROWS, monitor, collecting(result, monitor,
+                        (y0, y1) -> convolveBand(pixels, result, quantised, edgeMode, borderColour, y0, y1)));
+        } else if (methodFor(kernel, pixels.getWidth(), pixels.getHeight()) == ConvolutionCostModel.Method.FFT) {
+            FftConvolution fft = fftFor(kernel, pixels);
+            int tileRows = fft.getTileSize() - kernel.getHeight() + 1;
+            forEachBand(pixels.getHeight(), Math.max(MIN_BAND_ROWS, tileRows), monitor, collecting(result, monitor,
+                        (y0, y1) -> fft.convolveRows(pixels, result, edgeMode, borderColour, y0, y1)));
+        } else {
+            forEachBand(pixels.getHeight(), MIN_BAND_ROWS, monitor, collecting(result, monitor,
+                        (y0, y1) -> convolveBand(pixels, result, kernel, edgeMode, borderColour, y0, y1)));
+        }
+        return result;
+    }
+
+    /**
+     * Work on the output rows {@code [y0, y1)} of one band.
+     */
+    interface BandAction {
+        void run(int y0, int y1);
+    }
+
+    /**
+     * Split {@code [0, height)} into bands of at least {@code minBandRows}
+     * rows and run {@code action} on each, on this engine's threads, with the
+     * same progress reporting and cancellation as convolve. For other
+     * whole-image passes that write each output row independently.
+     */
+    void forEachBand(int height, int minBandRows, ProgressMonitor monitor, BandAction action) {
+        int bandRows = Math.max(minBandRows, height / (parallelism * BANDS_PER_THREAD));
+        BandTask task = new BandTask(action, monitor, height, 0, height, bandRows);
+        if (pool == null || pool.isShutdown()) {
+            task.compute();
+            return;
+        }
+        try {
+            pool.invoke(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down since the check above
+            task.compute();
+        }
+    }
+
+    /**
+     * {@code action} followed, if {@code monitor} wants statistics, by
+     * counting the band's rows of {@code result} while they are in cache.
+     * For the pass that writes a filter's final image.
+     */
+    static BandAction collecting(PixelBuffer result, ProgressMonitor monitor, BandAction action) {
+        ImageStatistics.Collector statistics = monitor.getStatistics();
+        if (statistics == null) {
+            return action;
+        }
+        return (y0, y1) -> {
+            action.run(y0, y1);
+            statistics.addRows(result, y0, y1);
+        };
+    }
+
+    public PixelBuffer convolveSequential(PixelBuffer pixels, Kernel kernel) {
+        PixelBuffer result = new PixelBuffer(pixels.getWidth(), pixels.getHeight());
+        if (fixedPoint) {
+            convolveBand(pixels, result, kernel.toFixedPoint(), edgeMode, borderColour, 0, pixels.getHeight());
+        } else if (methodFor(kernel, pixels.getWidth(), pixels.getHeight()) == ConvolutionCostModel.Method.FFT) {
+            fftFor(kernel, pixels).convolveRows(pixels, result, edgeMode, borderColour, 0, pixels.getHeight());
+        } else {
+            convolveBand(pixels, result, kernel, edgeMode, borderColour, 0, pixels.getHeight());
+        }
+        return result;
+    }
+
+    private FftConvolution fftFor(Kernel kernel, PixelBuffer pixels) {
+        return kernel.toFft(costModel.tileSize(kernel, pixels.getWidth(), pixels.getHeight()));
+    }
+
+    /**
+     * Stop the worker threads. The engine still works afterwards, on the
+     * calling thread, so filters that captured it can be replayed later.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compute output rows {@code [y0, y1)}, reading taps outside the image
+     * according to {@code edges}.
+     */
+    static void convolveBand(PixelBuffer pixels, PixelBuffer result, Kernel kernel, EdgeMode edges, int border,
+                             int y0, int y1) {
+        if (kernel.isSeparable()) {
+            convolveBandSeparable(pixels, result, kernel.getRow(), kernel.getColumn(), edges, border, y0, y1);
+        } else {
+            convolveBandDirect(pixels, result, kernel.getWeights(), edges, border, y0, y1);
+        }
+    }
+
+    /**
+     * Compute output rows {@code [y0, y1)} in fixed point.
+     */
+    static void convolveBand(PixelBuffer pixels, PixelBuffer result, FixedPointKernel kernel, EdgeMode edges,
+                             int border, int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+        int ry = kernel.getHeight() / 2;
+
+        if (!kernel.isSeparable()) {
+            int[] rowStarts = new int[kernel.getHeight()];
+            for (int y = y0; y < y1; y++) {
+                for (int ky = 0; ky < rowStarts.length; ky++) {
+                    int sy = edges.index(y + ky - ry, height);
+                    rowStarts[ky] = sy < 0 ? -1 : sy * width;
+                }
+                FixedPointKernel.convolveRow(src, rowStarts, kernel, dst, y * width, width, edges, border);
+            }
+            return;
+        }
+
+        int top = y0 - ry;
+        int rows = (y1 - y0) + 2 * ry;
+        int[] red = new int[rows * width];
+        int[] green = new int[rows * width];
+        int[] blue = new int[rows * width];
+        for (int r = 0; r < rows; r++) {
+            int sy = edges.index(top + r, height);
+            int srcStart = sy < 0 ? -1 : sy * width;
+            FixedPointKernel.horizontalRow(src, srcStart, kernel, red, green, blue, r * width, width, edges, border);
+        }
+
+        int[] rowStarts = new int[kernel.getHeight()];
+        for (int y = y0; y < y1; y++) {
+            for (int k = 0; k < rowStarts.length; k++) {
+                rowStarts[k] = (y - ry - top + k) * width;
+            }
+            FixedPointKernel.verticalRow(red, green, blue, rowStarts, kernel, dst, y * width, width);
+        }
+    }
+
+    private static void convolveBandDirect(PixelBuffer pixels, PixelBuffer result, float[][] kernel,
+                                           EdgeMode edges, int border, int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+        int ry = kernel.length / 2;
+        int[] rowStarts = new int[kernel.length];
+
+        for (int y = y0; y < y1; y++) {
+            for (int ky = 0; ky < kernel.length; ky++) {
+                int sy = edges.index(y + ky - ry, height);
+                rowStarts[ky] = sy < 0 ? -1 : sy * width;
+            }
+            convolveRow(src, rowStarts, kernel, dst, y * width, width, edges, border);
+        }
+    }
+
+    private static void convolveBandSeparable(PixelBuffer pixels, PixelBuffer result, float[] rowTaps,
+                                              float[] columnTaps, EdgeMode edges, int border, int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+        int ry = columnTaps.length / 2;
+
+        // Horizontal pass over the band plus its halo into band-local scratch
+        int top = y0 - ry;
+        int rows = (y1 - y0) + 2 * ry;
+        float[] red = new float[rows * width];
+        float[] green = new float[rows * width];
+        float[] blue = new float[rows * width];
+        for (int r = 0; r < rows; r++) {
+            int sy = edges.index(top + r, height);
+            int srcStart = sy < 0 ? -1 : sy * width;
+            horizontalRow(src, srcStart, rowTaps, red, green, blue, r * width, width, edges, border);
+        }
+
+        // Vertical pass from the scratch rows into the band's output rows
+        int[] rowStarts = new int[columnTaps.length];
+        for (int y = y0; y < y1; y++) {
+            for (int k = 0; k < columnTaps.length; k++) {
+                rowStarts[k] = (y - ry - top + k) * width;
+            }
+            verticalRow(red, green, blue, rowStarts, columnTaps, dst, y * width, width);
+        }
+    }
+
+    /**
+     * Convolve one output row. {@code rowStarts[ky]} is the index in
+     * {@code src} of the source row under kernel row ky, already mapped through
+     * the edge mode, or -1 if that row reads as {@code border}.
+     */
+    static void convolveRow(int[] src, int[] rowStarts, float[][] kernel, int[] dst, int dstStart, int width,
+                            EdgeMode edges, int border) {
+        int kh = kernel.length;
+        int kw = kernel[0].length;
+        int rx = kw / 2;
+        int left = Math.min(rx, width);
+        int right = Math.max(width - rx, left);
+
+        for (int x = 0; x < left; x++) {
+            dst[dstStart + x] = convolveEdgePixel(src, rowStarts, kernel, x, width, edges, border);
+        }
+
+        // Every column under the kernel is inside the image from here to right
+        int x = left;
+        if (VectorBackend.ENABLED) {
+            x = VectorKernels.convolveInterior(src, rowStarts, kernel, dst, dstStart, left, right);
+        }
+        for (; x < right; x++) {
+            float newRed = 0;
+            float newGreen = 0;
+            float newBlue = 0;
+
+            for (int ky = 0; ky < kh; ky++) {
+                int start = rowStarts[ky];
+                float[] row = kernel[ky];
+                if (start < 0) {
+                    for (int kx = 0; kx < kw; kx++) {
+                        float weight = row[kx];
+                        newRed += ((border >> 16) & 0xFF) * weight;
+                        newGreen += ((border >> 8) & 0xFF) * weight;
+                        newBlue += (border & 0xFF) * weight;
+                    }
+                } else {
+                    int base = start + x - rx;
+                    for (int kx = 0; kx < kw; kx++) {
+                        int argb = src[base + kx];
+                        float weight = row[kx];
+                        newRed += ((argb >> 16) & 0xFF) * weight;
+                        newGreen += ((argb >> 8) & 0xFF) * weight;
+                        newBlue += (argb & 0xFF) * weight;
+                    }
+                }
+            }
+
+            dst[dstStart + x] = PixelBuffer.pack(PixelBuffer.clamp(newRed), PixelBuffer.clamp(newGreen),
+                                                 PixelBuffer.clamp(newBlue));
+        }
+
+        for (x = right; x < width; x++) {
+            dst[dstStart + x] = convolveEdgePixel(src, rowStarts, kernel, x, width, edges, border);
+        }
+    }
+
+    private static int convolveEdgePixel(int[] src, int[] rowStarts, float[][] kernel, int x, int width,
+                                         EdgeMode edges, int border) {
+        int kw = kernel[0].length;
+        int rx = kw / 2;
+        float newRed = 0;
+        float newGreen = 0;
+        float newBlue = 0;
+
+        for (int ky = 0; ky < kernel.length; ky++) {
+            int start = rowStarts[ky];
+            float[] row = kernel[ky];
+            for (int kx = 0; kx < kw; kx++) {
+                int sx = edges.index(x + kx - rx, width);
+                int argb = (start < 0 || sx < 0) ? border : src[start + sx];
+                float weight = row[kx];
+                newRed += ((argb >> 16) & 0xFF) * weight;
+                newGreen += ((argb >> 8) & 0xFF) * weight;
+                newBlue += (argb & 0xFF) * weight;
+            }
+        }
+
+        return PixelBuffer.pack(PixelBuffer.clamp(newRed), PixelBuffer.clamp(newGreen), PixelBuffer.clamp(newBlue));
+    }
+
+    /**
+     * First pass of a separable kernel: filter one source row horizontally
+     * into float channel rows. A {@code srcStart} of -1 means a row made
+     * entirely of {@code border}.
+     */
+    static void horizontalRow(int[] src, int srcStart, float[] taps, float[] red, float[] green, float[] blue,
+                              int dstStart, int width, EdgeMode edges, int border) {
+        int rx = taps.length / 2;
+        // A row of border colour has no interior
+        int left = srcStart < 0 ? width : Math.min(rx, width);
+        int right = Math.max(width - rx, left);
+
+        for (int x = 0; x < left; x++) {
+            horizontalEdgePixel(src, srcStart, taps, red, green, blue, dstStart, x, width, edges, border);
+        }
+
+        // Every tap is inside the row from here to right
+        int x = left;
+        if (VectorBackend.ENABLED) {
+            x = VectorKernels.horizontalInterior(src, srcStart, taps, red, green, blue, dstStart, left, right);
+        }
+        for (; x < right; x++) {
+            int base = srcStart + x - rx;
+            float sumRed = 0;
+            float sumGreen = 0;
+            float sumBlue = 0;
+            for (int k = 0; k < taps.length; k++) {
+                int argb = src[base + k];
+                float weight = taps[k];
+                sumRed += ((argb >> 16) & 0xFF) * weight;
+                sumGreen += ((argb >> 8) & 0xFF) * weight;
+                sumBlue += (argb & 0xFF) * weight;
+            }
+            red[dstStart + x] = sumRed;
+            green[dstStart + x] = sumGreen;
+            blue[dstStart + x] = sumBlue;
+        }
+
+        for (x = right; x < width; x++) {
+            horizontalEdgePixel(src, srcStart, taps, red, green, blue, dstStart, x, width, edges, border);
+        }
+    }
+
+    private static void horizontalEdgePixel(int[] src, int srcStart, float[] taps, float[] red, float[] green,
+                                            float[] blue, int dstStart, int x, int width, EdgeMode edges,
+                                            int border) {
+        int rx = taps.length / 2;
+        float sumRed = 0;
+        float sumGreen = 0;
+        float sumBlue = 0;
+        for (int k = 0; k < taps.length; k++) {
+            int sx = srcStart < 0 ? -1 : edges.index(x + k - rx, width);
+            int argb = sx < 0 ? border : src[srcStart + sx];
+            float weight = taps[k];
+            sumRed += ((argb >> 16) & 0xFF) * weight;
+            sumGreen += ((argb >> 8) & 0xFF) * weight;
+            sumBlue += (argb & 0xFF) * weight;
+        }
+        red[dstStart + x] = sumRed;
+        green[dstStart + x] = sumGreen;
+        blue[dstStart + x] = sumBlue;
+    }
+
+    /**
+     * Second pass of a separable kernel: combine the horizontally filtered
+     * rows at {@code rowStarts} into one packed output row.
+     */
+    static void verticalRow(float[] red, float[] green, float[] blue, int[] rowStarts, float[] taps,
+                            int[] dst, int dstStart, int width) {
+        int x = 0;
+        if (VectorBackend.ENABLED) {
+            x = VectorKernels.verticalRow(red, green, blue, rowStarts, taps, dst, dstStart, width);
+        }
+        for (; x < width; x++) {
+            float sumRed = 0;
+            float sumGreen = 0;
+            float sumBlue = 0;
+            for (int k = 0; k < taps.length; k++) {
+                int index = rowStarts[k] + x;
+                float weight = taps[k];
+                sumRed += red[index] * weight;
+                sumGreen += green[index] * weight;
+                sumBlue += blue[index] * weight;
+            }
+            dst[dstStart + x] = PixelBuffer.pack(PixelBuffer.clamp(sumRed), PixelBuffer.clamp(sumGreen),
+                                                 PixelBuffer.clamp(sumBlue));
+        }
+    }
+
+    // Never serialized; RecursiveAction is Serializable only through ForkJoinTask
+    @SuppressWarnings("serial")
+    private static class BandTask extends RecursiveAction {
+        private final BandAction action;
+        private final ProgressMonitor monitor;
+        private final int height;
+        private final int y0;
+        private final int y1;
+        private final int bandRows;
+
+        BandTask(BandAction action, ProgressMonitor monitor, int height, int y0, int y1, int bandRows) {
+            this.action = action;
+            this.monitor = monitor;
+            this.height = height;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (monitor.isCancelled()) {
+                throw new CancellationException();
+            }
+            if (y1 - y0 <= bandRows) {
+                action.run(y0, y1);
+                monitor.rowsDone(y1 - y0, height);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new BandTask(action, monitor, height, y0, mid, bandRows),
+                      new BandTask(action, monitor, height, mid, y1, bandRows));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+//Sobel gradients and Canny edge detection for the ImageProcessor filters
+
+import java.util.Arrays;
+
+/**
+ * Edge detection on the intensity of each pixel, the mean of its three
+ * channels as in GREYSCALE.
+ *
+ * {@link #gradientRows} is the Sobel operator in one pass: it reads each
+ * source row once into a three-row ring of intensities and from that writes,
+ * for each pixel, the squared gradient magnitude and the gradient's direction
+ * rounded to one of four sectors. Squared magnitudes are exact in an int (at
+ * most {@code 2 * 1020^2}), so Canny compares them with squared thresholds
+ * and never takes a square root.
+ *
+ * Canny then thins the gradient to ridges one pixel wide by keeping only
+ * pixels at least as strong as both neighbours across the edge
+ * ({@link #suppressRows}), and joins ridges by hysteresis
+ * ({@link #hysteresis}): pixels above the high threshold are edges, and so is
+ * anything above the low threshold connected to one through 8-neighbours.
+ * The fill uses an explicit int stack of pixel indices rather than recursion
+ * or per-pixel objects, so long edges cannot overflow the thread's stack.
+ *
+ * The gradient and suppression passes work on bands of rows; hysteresis can
+ * follow an edge anywhere in the image, so it runs once over the whole.
+ * Gradients reaching past the edge read through an EdgeMode, as convolution
+ * taps do.
+ */
+public class EdgeDetector {
+
+    /** No edge: suppressed, or weaker than the low threshold. */
+    static final byte NONE = 0;
+
+    /** A ridge between the thresholds, kept if it touches an edge. */
+    static final byte WEAK = 1;
+
+    /** A ridge above the high threshold. */
+    static final byte STRONG = 2;
+
+    /** Set by hysteresis on every pixel of a kept edge. */
+    static final byte EDGE = 3;
+
+    // Gradient sectors, named by the direction the gradient points in
+    private static final byte HORIZONTAL = 0;
+    private static final byte FALLING = 1;
+    private static final byte VERTICAL = 2;
+    private static final byte RISING = 3;
+
+    // tan(22.5 degrees) as a fraction, bounding the horizontal and vertical sectors
+    private static final int TAN_NUMERATOR = 29;
+    private static final int TAN_DENOMINATOR = 70;
+
+    private EdgeDetector() {
+    }
+
+    /**
+     * Write the squared Sobel gradient magnitude and its sector for rows
+     * {@code [y0, y1)} of {@code pixels} into {@code magnitude} and
+     * {@code direction}, which are indexed like the pixels. Either array may
+     * be null if it is not wanted.
+     */
+    static void gradientRows(PixelBuffer pixels, int[] magnitude, byte[] direction, EdgeMode edges, int border,
+                             int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+
+        // Intensity rows are one pixel wider on each side, mapped once per band
+        int[] sourceColumns = new int[width + 2];
+        for (int c = 0; c < sourceColumns.length; c++) {
+            sourceColumns[c] = edges.index(c - 1, width);
+        }
+        int borderIntensity = intensity(border);
+        int[][] ring = new int[3][width + 2];
+        intensityRow(src, edges.index(y0 - 1, height), width, sourceColumns, borderIntensity, ring[0]);
+        intensityRow(src, edges.index(y0, height), width, sourceColumns, borderIntensity, ring[1]);
+
+        for (int y = y0; y < y1; y++) {
+            int[] above = ring[(y - y0) % 3];
+            int[] middle = ring[(y - y0 + 1) % 3];
+            int[] below = ring[(y - y0 + 2) % 3];
+            intensityRow(src, edges.index(y + 1, height), width, sourceColumns, borderIntensity, below);
+
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                int gx = above[x + 2] + 2 * middle[x + 2] + below[x + 2] - above[x] - 2 * middle[x] - below[x];
+                int gy = below[x] + 2 * below[x + 1] + below[x + 2] - above[x] - 2 * above[x + 1] - above[x + 2];
+                if (magnitude != null) {
+                    magnitude[rowStart + x] = gx * gx + gy * gy;
+                }
+                if (direction != null) {
+                    direction[rowStart + x] = sector(gx, gy);
+                }
+            }
+        }
+    }
+
+    private static void intensityRow(int[] src, int sy, int width, int[] sourceColumns, int borderIntensity,
+                                     int[] row) {
+        int rowStart = sy * width;
+        for (int c = 0; c < row.length; c++) {
+            int sx = sourceColumns[c];
+            row[c] = sy < 0 || sx < 0 ? borderIntensity : intensity(src[rowStart + sx]);
+        }
+    }
+
+    private static int intensity(int argb) {
+        return (((argb >> 16) & 0xFF) + ((argb >> 8) & 0xFF) + (argb & 0xFF) + 1) / 3;
+    }
+
+    private static byte sector(int gx, int gy) {
+        int ax = Math.abs(gx);
+        int ay = Math.abs(gy);
+        if (ay * TAN_DENOMINATOR <= ax * TAN_NUMERATOR) {
+            return HORIZONTAL;
+        } else if (ax * TAN_DENOMINATOR <= ay * TAN_NUMERATOR) {
+            return VERTICAL;
+        }
+        // Rows count downwards, so a gradient with both signs equal points down to the right
+        return (gx > 0) == (gy > 0) ? FALLING : RISING;
+    }
+
+    /**
+     * Non-maximum suppression for rows {@code [y0, y1)}: mark each pixel of
+     * {@code state} STRONG, WEAK or NONE by its squared magnitude against the
+     * squared thresholds, counting only pixels whose magnitude is a maximum
+     * across the edge. Of two equal neighbours along the gradient, only the
+     * one further back along it is kept, so flat-topped ridges stay one
+     * pixel wide. Neighbours past the image's edge count as zero.
+     */
+    static void suppressRows(int[] magnitude, byte[] direction, byte[] state, int width, int height,
+                             int lowSquared, int highSquared, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                int i = rowStart + x;
+                int m = magnitude[i];
+                if (m < lowSquared) {
+                    state[i] = NONE;
+                    continue;
+                }
+                int dx;
+                int dy;
+                switch (direction[i]) {
+                    case HORIZONTAL:
+                        dx = 1;
+                        dy = 0;
+                        break;
+                    case VERTICAL:
+                        dx = 0;
+                        dy = 1;
+                        break;
+                    case FALLING:
+                        dx = 1;
+                        dy = 1;
+                        break;
+                    default:
+                        dx = 1;
+                        dy = -1;
+                        break;
+                }
+                int ahead = magnitudeAt(magnitude, width, height, x + dx, y + dy);
+                int behind = magnitudeAt(magnitude, width, height, x - dx, y - dy);
+                if (m < behind || m <= ahead) {
+                    state[i] = NONE;
+                } else {
+                    state[i] = m >= highSquared ? STRONG : WEAK;
+                }
+            }
+        }
+    }
+
+    private static int magnitudeAt(int[] magnitude, int width, int height, int x, int y) {
+        return x < 0 || y < 0 || x >= width || y >= height ? 0 : magnitude[y * width + x];
+    }
+
+    /**
+     * Mark as EDGE every STRONG pixel of {@code state} and every WEAK pixel
+     * 8-connected to one through WEAK pixels.
+     */
+    static void hysteresis(byte[] state, int width, int height) {
+        int[] stack = new int[256];
+        for (int start = 0; start < state.length; start++) {
+            if (state[start] != STRONG) {
+                continue;
+            }
+            state[start] = EDGE;
+            int size = 0;
+            stack[size++] = start;
+            while (size > 0) {
+                int i = stack[--size];
+                int x = i % width;
+                int y = i / width;
+                int xFrom = Math.max(0, x - 1);
+                int xTo = Math.min(width - 1, x + 1);
+                int yFrom = Math.max(0, y - 1);
+                int yTo = Math.min(height - 1, y + 1);
+                for (int ny = yFrom; ny <= yTo; ny++) {
+                    for (int nx = xFrom; nx <= xTo; nx++) {
+                        int n = ny * width + nx;
+                        // Marking on the way in keeps a pixel from being pushed twice
+                        if (state[n] == WEAK || state[n] == STRONG) {
+                            state[n] = EDGE;
+                            if (size == stack.length) {
+                                stack = Arrays.copyOf(stack, size * 2);
+                            }
+                            stack[size++] = n;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
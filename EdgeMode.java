@@ -0,0 +1,55 @@
+//How ImageProcessor convolutions read pixels beyond the edge of the image
+
+/**
+ * What a kernel tap outside the image reads. CONSTANT reads a fixed border
+ * colour (white unless set otherwise), the behaviour ImageProcessor has
+ * always had. The other modes map the coordinate back into the image.
+ */
+public enum EdgeMode {
+    /** A fixed border colour. */
+    CONSTANT,
+    /** The nearest edge pixel: {@code aaa|abcd|ddd}. */
+    CLAMP,
+    /** Reflected about the edge pixel, which is not repeated: {@code dcb|abcd|cba}. */
+    MIRROR,
+    /** The opposite side of the image, as if it were tiled: {@code bcd|abcd|abc}. */
+    WRAP;
+
+    /**
+     * Map coordinate {@code i} onto {@code [0, n)}, or return -1 when it is
+     * outside the image and the border colour should be read instead.
+     */
+    public int index(int i, int n) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        switch (this) {
+            case CLAMP:
+                return i < 0 ? 0 : n - 1;
+            case MIRROR:
+                if (n == 1) {
+                    return 0;
+                }
+                int period = 2 * (n - 1);
+                i %= period;
+                if (i < 0) {
+                    i += period;
+                }
+                return i < n ? i : period - i;
+            case WRAP:
+                i %= n;
+                return i < 0 ? i + n : i;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Whether every tap can be served from the rows within a kernel's reach of
+     * the output row, which is what streaming needs. WRAP reads rows from the
+     * far side of the image.
+     */
+    public boolean isLocal() {
+        return this != WRAP;
+    }
+}
@@ -0,0 +1,425 @@
+//Bounded undo/redo history of filter steps, kept as compressed deltas or recomputed
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BiFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The steps applied to an image since it was opened, for moving back and
+ * forth between them without keeping a full copy of every state.
+ *
+ * State 0 is the base image and state {@code i} is the result of step
+ * {@code i} applied to state {@code i - 1}. Each step keeps the operation
+ * that produced it, which can always recompute it, and where memory allows a
+ * delta: the XOR of the states before and after, deflated tile by tile with
+ * unchanged tiles left out. XOR runs both ways, so one delta serves undo and
+ * redo, and it needs no filter to run. Deltas live within a budget in bytes;
+ * when a new one does not fit, the oldest deltas are dropped first and their
+ * steps fall back to recomputing.
+ *
+ * Reaching a state starts from whichever of the current state and the base
+ * is cheaper: deltas walked back from the current state, or walked forward
+ * from the base, applying deltas where present and recomputing the rest.
+ * State 0 is the base itself, so going back to it costs nothing. Beyond {@code maxSteps} steps the oldest is folded
+ * into the base, so it can no longer be undone.
+ *
+ * Operations must give the same result each time they run, so they should
+ * capture everything they depend on, the ImageFilters included.
+ *
+ * The slow parts, {@link #prepare} and {@link #stateAt}, may run on any
+ * thread; they work on a snapshot of the history.
+ */
+public class EditHistory {
+
+    // Square tiles a delta is split into; tiles the step left alone cost nothing
+    private static final int TILE_SIZE = 64;
+
+    private final int maxSteps;
+    private final List<Step> steps = new ArrayList<>();
+    private PixelBuffer base;
+    private int position;
+    private long budget;
+    private long deltaBytes;
+
+    /**
+     * @param original the image before any step
+     * @param maxSteps the most steps that can be undone
+     * @param budget   the most bytes to spend on deltas
+     */
+    public EditHistory(PixelBuffer original, int maxSteps, long budget) {
+        if (maxSteps < 1) {
+            throw new IllegalArgumentException("History must hold at least one step: " + maxSteps);
+        }
+        this.base = original;
+        this.maxSteps = maxSteps;
+        // Not through setBudget, which a subclass could override; there are no deltas to trim yet
+        this.budget = checkBudget(budget);
+    }
+
+    /**
+     * The state currently shown, from 0 to {@link #size}.
+     */
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * State 0: the image as opened, or the result of the steps folded into it.
+     */
+    public synchronized PixelBuffer getBase() {
+        return base;
+    }
+
+    public synchronized int size() {
+        return steps.size();
+    }
+
+    public synchronized boolean canUndo() {
+        return position > 0;
+    }
+
+    public synchronized boolean canRedo() {
+        return position < steps.size();
+    }
+
+    /**
+     * The name of step {@code index}, the one leading to state {@code index}.
+     */
+    public synchronized String getName(int index) {
+        return steps.get(index - 1).name;
+    }
+
+    /**
+     * The bytes held in deltas, not counting the base image.
+     */
+    public synchronized long getDeltaBytes() {
+        return deltaBytes;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = checkBudget(budget);
+        trim();
+    }
+
+    private static long checkBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget must not be negative: " + budget);
+        }
+        return budget;
+    }
+
+    /**
+     * Everything needed to record {@code operation} turning {@code before},
+     * the current state, into {@code after}: the compressed delta, and the
+     * new base if the step would push the oldest one out. This is the slow
+     * half of recording and may run off the FX thread; {@link #push} then
+     * records it, provided the history has not moved in between.
+     */
+    public Edit prepare(String name, BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> operation,
+                        PixelBuffer before, PixelBuffer after) {
+        PixelBuffer oldBase;
+        List<Step> kept;
+        int at;
+        synchronized (this) {
+            oldBase = base;
+            at = position;
+            kept = new ArrayList<>(steps.subList(0, position));
+        }
+
+        Delta delta = Delta.between(before, after);
+        PixelBuffer newBase = null;
+        if (kept.size() + 1 > maxSteps) {
+            Step oldest = kept.get(0);
+            Delta oldestDelta = oldest.delta;
+            newBase = oldestDelta != null ? oldestDelta.applyTo(oldBase)
+                                          : oldest.operation.apply(oldBase, ProgressMonitor.NONE);
+        }
+        return new Edit(new Step(name, operation, delta), at, newBase);
+    }
+
+    /**
+     * Record a prepared step as the new current state, dropping any steps
+     * that could have been redone.
+     */
+    public synchronized void push(Edit edit) {
+        if (edit.position != position) {
+            throw new IllegalStateException("The history moved after the edit was prepared");
+        }
+        while (steps.size() > position) {
+            drop(steps.remove(steps.size() - 1));
+        }
+        if (edit.base != null) {
+            drop(steps.remove(0));
+            base = edit.base;
+        }
+        steps.add(edit.step);
+        position = steps.size();
+        if (edit.step.delta != null) {
+            deltaBytes += edit.step.delta.bytes();
+        }
+        trim();
+    }
+
+    /**
+     * Make {@code index} the current state once the caller has computed it.
+     */
+    public synchronized void moveTo(int index) {
+        if (index < 0 || index > steps.size()) {
+            throw new IndexOutOfBoundsException("No state " + index + " in a history of " + steps.size());
+        }
+        position = index;
+    }
+
+    /**
+     * Compute state {@code index}, given {@code current}, the image at
+     * {@link #getPosition}. Recomputed steps report to {@code monitor}.
+     */
+    public PixelBuffer stateAt(int index, PixelBuffer current, ProgressMonitor monitor) {
+        PixelBuffer start;
+        int from;
+        List<Step> snapshot;
+        // Taken together, since the budget may drop deltas while this runs
+        Delta[] deltas;
+        synchronized (this) {
+            if (index < 0 || index > steps.size()) {
+                throw new IndexOutOfBoundsException("No state " + index + " in a history of " + steps.size());
+            }
+            snapshot = new ArrayList<>(steps);
+            deltas = new Delta[snapshot.size()];
+            for (int i = 0; i < deltas.length; i++) {
+                deltas[i] = snapshot.get(i).delta;
+            }
+            start = base;
+            from = 0;
+            if (index > position) {
+                // Forwards from the current state skips the steps up to it
+                start = current;
+                from = position;
+            } else if (index > 0) {
+                // Backwards needs every delta down to index, and is taken only when it applies
+                // fewer of them than walking up from the base, which may even have to recompute
+                boolean backwards = true;
+                for (int i = index; i < position && backwards; i++) {
+                    backwards = deltas[i] != null;
+                }
+                boolean recomputes = false;
+                for (int i = 0; i < index && !recomputes; i++) {
+                    recomputes = deltas[i] == null;
+                }
+                if (backwards && (recomputes || position - index < index)) {
+                    start = current;
+                    from = position;
+                }
+            }
+        }
+
+        PixelBuffer pixels = start;
+        // Backwards, by deltas alone
+        for (int i = from; i > index; i--) {
+            pixels = applyDelta(deltas[i - 1], pixels, monitor);
+        }
+        if (from >= index) {
+            return pixels;
+        }
+
+        // Forwards, by delta where there is one and otherwise by recomputing
+        int recomputed = 0;
+        for (int i = from; i < index; i++) {
+            if (deltas[i] == null) {
+                recomputed++;
+            }
+        }
+        ProgressMonitor pass = monitor.perPass(Math.max(1, recomputed));
+        for (int i = from; i < index; i++) {
+            pixels = deltas[i] != null ? applyDelta(deltas[i], pixels, monitor)
+                                       : snapshot.get(i).operation.apply(pixels, pass);
+        }
+        return pixels;
+    }
+
+    private static PixelBuffer applyDelta(Delta delta, PixelBuffer pixels, ProgressMonitor monitor) {
+        if (monitor.isCancelled()) {
+            throw new CancellationException();
+        }
+        return delta.applyTo(pixels);
+    }
+
+    // Drop the oldest deltas until the rest fit the budget
+    private void trim() {
+        for (int i = 0; i < steps.size() && deltaBytes > budget; i++) {
+            drop(steps.get(i));
+        }
+    }
+
+    private void drop(Step step) {
+        Delta delta = step.delta;
+        if (delta != null) {
+            deltaBytes -= delta.bytes();
+            step.delta = null;
+        }
+    }
+
+    /**
+     * A step ready for {@link #push}.
+     */
+    public static class Edit {
+        private final Step step;
+        private final int position;
+        private final PixelBuffer base;
+
+        private Edit(Step step, int position, PixelBuffer base) {
+            this.step = step;
+            this.position = position;
+            this.base = base;
+        }
+    }
+
+    private static class Step {
+        final String name;
+        final BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> operation;
+        // Null once dropped for the budget, or when the step changed the image size
+        volatile Delta delta;
+
+        Step(String name, BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> operation, Delta delta) {
+            this.name = name;
+            this.operation = operation;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * The XOR of two images of the same size, as one deflated block per tile
+     * that differs. Each block stores the tile's alpha bytes, then red, green
+     * and blue, so that channels a step left alone compress to almost nothing.
+     */
+    static class Delta {
+        private final int width;
+        private final int height;
+        private final int[] tiles;
+        private final byte[][] blocks;
+
+        private Delta(int width, int height, int[] tiles, byte[][] blocks) {
+            this.width = width;
+            this.height = height;
+            this.tiles = tiles;
+            this.blocks = blocks;
+        }
+
+        /**
+         * The delta from {@code before} to {@code after}, or null if their
+         * sizes differ.
+         */
+        static Delta between(PixelBuffer before, PixelBuffer after) {
+            int width = before.getWidth();
+            int height = before.getHeight();
+            if (after.getWidth() != width || after.getHeight() != height) {
+                return null;
+            }
+            int[] src = before.getPixels();
+            int[] dst = after.getPixels();
+            int across = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int down = (height + TILE_SIZE - 1) / TILE_SIZE;
+            List<Integer> tiles = new ArrayList<>();
+            List<byte[]> blocks = new ArrayList<>();
+            byte[] planes = new byte[4 * TILE_SIZE * TILE_SIZE];
+            byte[] buffer = new byte[planes.length + 64];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try {
+                for (int tile = 0; tile < across * down; tile++) {
+                    int x0 = (tile % across) * TILE_SIZE;
+                    int y0 = (tile / across) * TILE_SIZE;
+                    int tileWidth = Math.min(TILE_SIZE, width - x0);
+                    int tileHeight = Math.min(TILE_SIZE, height - y0);
+                    int count = tileWidth * tileHeight;
+                    boolean changed = false;
+                    for (int y = y0, i = 0; y < y0 + tileHeight; y++) {
+                        for (int x = x0, p = y * width + x0; x < x0 + tileWidth; x++, p++, i++) {
+                            int xor = src[p] ^ dst[p];
+                            changed |= xor != 0;
+                            planes[i] = (byte) (xor >>> 24);
+                            planes[count + i] = (byte) (xor >>> 16);
+                            planes[2 * count + i] = (byte) (xor >>> 8);
+                            planes[3 * count + i] = (byte) xor;
+                        }
+                    }
+                    if (!changed) {
+                        continue;
+                    }
+                    deflater.reset();
+                    deflater.setInput(planes, 0, 4 * count);
+                    deflater.finish();
+                    byte[] block = new byte[0];
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        block = Arrays.copyOf(block, block.length + n);
+                        System.arraycopy(buffer, 0, block, block.length - n, n);
+                    }
+                    tiles.add(tile);
+                    blocks.add(block);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            int[] tileArray = new int[tiles.size()];
+            for (int i = 0; i < tileArray.length; i++) {
+                tileArray[i] = tiles.get(i);
+            }
+            return new Delta(width, height, tileArray, blocks.toArray(new byte[0][]));
+        }
+
+        /**
+         * A copy of {@code pixels} with the delta XORed in, taking either
+         * image of the pair to the other.
+         */
+        PixelBuffer applyTo(PixelBuffer pixels) {
+            PixelBuffer result = pixels.copy();
+            int[] dst = result.getPixels();
+            int across = (width + TILE_SIZE - 1) / TILE_SIZE;
+            byte[] planes = new byte[4 * TILE_SIZE * TILE_SIZE];
+            Inflater inflater = new Inflater();
+
+            try {
+                for (int t = 0; t < tiles.length; t++) {
+                    int x0 = (tiles[t] % across) * TILE_SIZE;
+                    int y0 = (tiles[t] / across) * TILE_SIZE;
+                    int tileWidth = Math.min(TILE_SIZE, width - x0);
+                    int tileHeight = Math.min(TILE_SIZE, height - y0);
+                    int count = tileWidth * tileHeight;
+                    inflater.reset();
+                    inflater.setInput(blocks[t]);
+                    int n = 0;
+                    while (n < 4 * count && !inflater.finished()) {
+                        n += inflater.inflate(planes, n, 4 * count - n);
+                    }
+                    for (int y = y0, i = 0; y < y0 + tileHeight; y++) {
+                        for (int x = x0, p = y * width + x0; x < x0 + tileWidth; x++, p++, i++) {
+                            dst[p] ^= (planes[i] & 0xFF) << 24 | (planes[count + i] & 0xFF) << 16
+                                      | (planes[2 * count + i] & 0xFF) << 8 | (planes[3 * count + i] & 0xFF);
+                        }
+                    }
+                }
+            } catch (DataFormatException e) {
+                // The blocks never leave this class, so they are always well formed
+                throw new IllegalStateException(e);
+            } finally {
+                inflater.end();
+            }
+            return result;
+        }
+
+        long bytes() {
+            long total = 4L * tiles.length;
+            for (byte[] block : blocks) {
+                total += block.length;
+            }
+            return total;
+        }
+    }
+}
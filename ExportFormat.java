@@ -0,0 +1,34 @@
+//Output file formats supported by ImageExporter
+
+/**
+ * The formats ImageExporter can write, with the ImageIO format name and the
+ * file extension for each. RAW is RawImageFile, which needs no ImageIO codec.
+ */
+public enum ExportFormat {
+    PNG("png", "png", true),
+    JPEG("jpeg", "jpg", false),
+    BMP("bmp", "bmp", false),
+    RAW(null, RawImageFile.EXTENSION, true);
+
+    private final String imageIOName;
+    private final String extension;
+    private final boolean alpha;
+
+    ExportFormat(String imageIOName, String extension, boolean alpha) {
+        this.imageIOName = imageIOName;
+        this.extension = extension;
+        this.alpha = alpha;
+    }
+
+    public String getImageIOName() {
+        return imageIOName;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public boolean hasAlpha() {
+        return alpha;
+    }
+}
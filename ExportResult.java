@@ -0,0 +1,46 @@
+//What ImageExporter reports for each file it writes
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * The outcome of one export: where it went, how long encoding took, how
+ * many bytes were written and how many the writing thread allocated, or -1
+ * if the JVM does not count allocation.
+ */
+public class ExportResult {
+
+    private final File file;
+    private final long encodeNanos;
+    private final long bytesWritten;
+    private final long allocatedBytes;
+
+    public ExportResult(File file, long encodeNanos, long bytesWritten, long allocatedBytes) {
+        this.file = file;
+        this.encodeNanos = encodeNanos;
+        this.bytesWritten = bytesWritten;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Saved %s: %d bytes in %.1f ms", file.getName(), bytesWritten,
+                             encodeNanos / 1e6);
+    }
+}
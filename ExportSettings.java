@@ -0,0 +1,46 @@
+//Encoder settings for ImageExporter
+
+import java.util.zip.Deflater;
+
+/**
+ * The output format plus its encoder knobs. PNG uses a deflate level from 0
+ * (store) to 9 (smallest); JPEG uses a quality from 0 to 1. Each setting is
+ * ignored by formats it does not apply to.
+ */
+public class ExportSettings {
+
+    public static final ExportSettings DEFAULT =
+            new ExportSettings(ExportFormat.PNG, Deflater.DEFAULT_COMPRESSION, 0.9f);
+
+    private final ExportFormat format;
+    private final int compressionLevel;
+    private final float quality;
+
+    public ExportSettings(ExportFormat format, int compressionLevel, float quality) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION && (compressionLevel < 0 || compressionLevel > 9)) {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9: " + compressionLevel);
+        }
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("JPEG quality must be between 0 and 1: " + quality);
+        }
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+        this.quality = quality;
+    }
+
+    public ExportSettings withFormat(ExportFormat format) {
+        return new ExportSettings(format, compressionLevel, quality);
+    }
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+}
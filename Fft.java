@@ -0,0 +1,108 @@
+//Radix-2 fast Fourier transforms for FftConvolution
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-place complex FFT of one power-of-two size. Real and imaginary parts
+ * live in separate double arrays. A plan holds its size's twiddle factors
+ * and bit-reversal permutation. Plans are built once per size and shared, so
+ * repeated convolutions pay only for the transforms themselves.
+ */
+public class Fft {
+
+    private static final Map<Integer, Fft> PLANS = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    private Fft(int size) {
+        this.size = size;
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2 * Math.PI * i / size;
+            cos[i] = Math.cos(angle);
+            sin[i] = Math.sin(angle);
+        }
+        this.reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * The shared plan for {@code size}, which must be a power of two.
+     */
+    public static Fft forSize(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        return PLANS.computeIfAbsent(size, Fft::new);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Transform {@code size} values of {@code re} and {@code im} from
+     * {@code offset} in place. The inverse is unscaled, so a round trip
+     * multiplies by {@code size}.
+     */
+    public void transform(double[] re, double[] im, int offset, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+        double sign = inverse ? -1 : 1;
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (2 * half);
+            for (int start = offset; start < offset + size; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transform a {@code size x size} row-major plane in place: every row,
+     * then every column through the {@code size}-long scratch arrays.
+     */
+    public void transform2d(double[] re, double[] im, boolean inverse, double[] scratchRe, double[] scratchIm) {
+        for (int y = 0; y < size; y++) {
+            transform(re, im, y * size, inverse);
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                scratchRe[y] = re[y * size + x];
+                scratchIm[y] = im[y * size + x];
+            }
+            transform(scratchRe, scratchIm, 0, inverse);
+            for (int y = 0; y < size; y++) {
+                re[y * size + x] = scratchRe[y];
+                im[y * size + x] = scratchIm[y];
+            }
+        }
+    }
+}
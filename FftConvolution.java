@@ -0,0 +1,151 @@
+//Convolution by FFT in overlapping tiles, for kernels too large to sum directly
+
+/**
+ * Convolves with one Kernel by multiplying spectra, which costs the same
+ * per pixel whatever the kernel's size. The image is cut into
+ * {@code tile x tile} squares that overlap by the kernel's size less one
+ * (overlap-save). Each square holds the source pixels, read through the
+ * EdgeMode past the image's edges, so the result matches a direct
+ * convolution up to rounding.
+ *
+ * Red and green go through one complex transform as its real and imaginary
+ * parts, which the real kernel keeps apart, and blue through a second. A
+ * tile therefore costs two forward and two inverse 2-D transforms. The
+ * kernel's spectrum is computed once. The tile buffers are allocated by each
+ * call of convolveRows and dropped when it returns: a call covers at least a
+ * full row of tiles, whose transforms cost far more than the allocation, and
+ * nothing as large as four tiles of doubles stays reachable from a Kernel or
+ * a worker thread.
+ */
+public class FftConvolution {
+
+    // Marks tile rows and columns no wanted output reaches; EdgeMode uses -1 for the border
+    private static final int UNUSED = -2;
+
+    private final Kernel kernel;
+    private final int tile;
+    private final Fft fft;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+
+    /**
+     * @param tile the side of the transformed squares: a power of two larger
+     *             than both of the kernel's dimensions
+     */
+    public FftConvolution(Kernel kernel, int tile) {
+        if (tile <= Math.max(kernel.getWidth(), kernel.getHeight())) {
+            throw new IllegalArgumentException("Tile size " + tile + " must exceed the kernel's "
+                                               + kernel.getWidth() + "x" + kernel.getHeight());
+        }
+        this.kernel = kernel;
+        this.tile = tile;
+        this.fft = Fft.forSize(tile);
+
+        // Flipped, so the product of spectra correlates the way direct convolution does;
+        // scaled so the unscaled inverse transform comes out right
+        float[][] weights = kernel.getWeights();
+        int kh = kernel.getHeight();
+        int kw = kernel.getWidth();
+        double scale = 1.0 / ((double) tile * tile);
+        this.kernelRe = new double[tile * tile];
+        this.kernelIm = new double[tile * tile];
+        for (int ky = 0; ky < kh; ky++) {
+            for (int kx = 0; kx < kw; kx++) {
+                kernelRe[ky * tile + kx] = weights[kh - 1 - ky][kw - 1 - kx] * scale;
+            }
+        }
+        fft.transform2d(kernelRe, kernelIm, false, new double[tile], new double[tile]);
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public int getTileSize() {
+        return tile;
+    }
+
+    /**
+     * Compute output rows {@code [y0, y1)} of {@code result}, reading taps
+     * outside the image according to {@code edges}.
+     */
+    public void convolveRows(PixelBuffer pixels, PixelBuffer result, EdgeMode edges, int border, int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+        int kh = kernel.getHeight();
+        int kw = kernel.getWidth();
+        int ry = kh / 2;
+        int rx = kw / 2;
+        int validRows = tile - kh + 1;
+        int validColumns = tile - kw + 1;
+
+        double[] redGreenRe = new double[tile * tile];
+        double[] redGreenIm = new double[tile * tile];
+        double[] blueRe = new double[tile * tile];
+        double[] blueIm = new double[tile * tile];
+        double[] scratchRe = new double[tile];
+        double[] scratchIm = new double[tile];
+        int[] columns = new int[tile];
+
+        for (int ty = y0; ty < y1; ty += validRows) {
+            int rows = Math.min(validRows, y1 - ty);
+            for (int tx = 0; tx < width; tx += validColumns) {
+                int count = Math.min(validColumns, width - tx);
+
+                // Only the rows and columns that reach a wanted output are read; the rest stay zero
+                for (int c = 0; c < tile; c++) {
+                    columns[c] = c < count + kw - 1 ? edges.index(tx - rx + c, width) : UNUSED;
+                }
+                for (int r = 0; r < tile; r++) {
+                    int sy = r < rows + kh - 1 ? edges.index(ty - ry + r, height) : UNUSED;
+                    int rowStart = r * tile;
+                    for (int c = 0; c < tile; c++) {
+                        int sx = columns[c];
+                        if (sy == UNUSED || sx == UNUSED) {
+                            redGreenRe[rowStart + c] = 0;
+                            redGreenIm[rowStart + c] = 0;
+                            blueRe[rowStart + c] = 0;
+                            blueIm[rowStart + c] = 0;
+                            continue;
+                        }
+                        int argb = sy < 0 || sx < 0 ? border : src[sy * width + sx];
+                        redGreenRe[rowStart + c] = (argb >> 16) & 0xFF;
+                        redGreenIm[rowStart + c] = (argb >> 8) & 0xFF;
+                        blueRe[rowStart + c] = argb & 0xFF;
+                        blueIm[rowStart + c] = 0;
+                    }
+                }
+
+                fft.transform2d(redGreenRe, redGreenIm, false, scratchRe, scratchIm);
+                fft.transform2d(blueRe, blueIm, false, scratchRe, scratchIm);
+                for (int i = 0; i < tile * tile; i++) {
+                    double kr = kernelRe[i];
+                    double ki = kernelIm[i];
+                    double re = redGreenRe[i];
+                    double im = redGreenIm[i];
+                    redGreenRe[i] = re * kr - im * ki;
+                    redGreenIm[i] = re * ki + im * kr;
+                    re = blueRe[i];
+                    im = blueIm[i];
+                    blueRe[i] = re * kr - im * ki;
+                    blueIm[i] = re * ki + im * kr;
+                }
+                fft.transform2d(redGreenRe, redGreenIm, true, scratchRe, scratchIm);
+                fft.transform2d(blueRe, blueIm, true, scratchRe, scratchIm);
+
+                // Output (x, y) of the tile lands where the whole kernel overlaps the input
+                for (int r = 0; r < rows; r++) {
+                    int from = (r + kh - 1) * tile + kw - 1;
+                    int to = (ty + r) * width + tx;
+                    for (int c = 0; c < count; c++) {
+                        dst[to + c] = PixelBuffer.pack(PixelBuffer.clamp(redGreenRe[from + c]),
+                                                       PixelBuffer.clamp(redGreenIm[from + c]),
+                                                       PixelBuffer.clamp(blueRe[from + c]));
+                    }
+                }
+            }
+        }
+    }
+}
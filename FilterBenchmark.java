@@ -0,0 +1,326 @@
+//Throughput and allocation benchmarks for the ImageProcessor filters
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import javafx.scene.paint.Color;
+
+/**
+ * Measures every filter type, plus sepia and greyscale, over a range of
+ * square image sizes for each implementation:
+ * <ul>
+ * <li>{@code legacy}: the original Color[][] methods on ImageProcessor, which
+ *     only know 3x3 kernels</li>
+ * <li>{@code sequential}: ImageFilters on a single-threaded ConvolutionEngine</li>
+ * <li>{@code parallel}: ImageFilters on a ConvolutionEngine with one thread per core</li>
+ * <li>{@code fixed}: ImageFilters on a single-threaded fixed-point ConvolutionEngine</li>
+ * <li>{@code pipeline}: a one-filter FilterPipeline, the row-streamed path</li>
+ * </ul>
+ *
+ * It follows JMH's scheme: timed warmup iterations are discarded, then each
+ * measurement iteration runs the operation until its time is up. It reports
+ * ops/s with a 99.9% confidence interval, plus bytes allocated per operation,
+ * the same figure JMH prints as {@code gc.alloc.rate.norm}. Allocation is
+ * read from the JVM's per-thread counters, summed over all live threads so
+ * the ForkJoin workers are included. JMH itself cannot be used because its
+ * generator rejects benchmarks in the default package.
+ *
+ * Usage:
+ * <pre>
+ * java -Xmx12g FilterBenchmark [--sizes 256,1024,4096,8192] [--filters BLUR,SEPIA,...]
+ *                              [--paths legacy,sequential,parallel,fixed,pipeline]
+ *                              [--warmup N] [--iterations N] [--time SECONDS] [--csv FILE]
+ * </pre>
+ * Add {@code --add-modules jdk.incubator.vector} to measure the VectorKernels
+ * loops; see VectorBackend. The Color[][] path at 8192x8192 needs several
+ * gigabytes of heap. With {@code --csv} one line per benchmark is written,
+ * for comparing runs and gating regressions.
+ */
+public class FilterBenchmark {
+
+    private static final long SEED = 42;
+
+    private static final String[] ALL_FILTERS = {"IDENTITY", "BLUR", "SHARPEN", "EMBOSS", "EDGE",
+                                                 "GAUSSIAN_5", "GAUSSIAN_7", "BOX_5", "BOX_7",
+                                                 "BOX_BLUR_25", "GAUSSIAN_BLUR_25", "MEDIAN_2", "MEDIAN_25",
+                                                 "SOBEL", "CANNY", "SCALE_0.5_AREA", "SCALE_0.5_LANCZOS3",
+                                                 ImageFilters.SEPIA, ImageFilters.GREYSCALE};
+    private static final String[] ALL_PATHS = {"legacy", "sequential", "parallel", "fixed", "pipeline"};
+
+    // Student's t at 99.9% for 1-9 degrees of freedom, as JMH uses for its error column
+    private static final double[] T_999 = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78};
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final ImageProcessor processor = new ImageProcessor();
+    private final ImageFilters sequential = new ImageFilters(new ConvolutionEngine(1));
+    private final ImageFilters parallel = new ImageFilters(new ConvolutionEngine());
+    private final ImageFilters fixed = new ImageFilters(new ConvolutionEngine(1, EdgeMode.CONSTANT, PixelBuffer.WHITE,
+                                                                              true));
+
+    // Results are folded in here so the JIT cannot discard the work
+    private volatile int sink;
+
+    public FilterBenchmark(int warmupIterations, int iterations, double seconds) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = (long) (seconds * 1e9);
+    }
+
+    /**
+     * The result of one benchmark: mean throughput, the half-width of its
+     * confidence interval and mean bytes allocated per operation.
+     */
+    public static class Result {
+        final String name;
+        final int size;
+        final String filterType;
+        final double opsPerSecond;
+        final double error;
+        final double bytesPerOp;
+
+        Result(String name, int size, String filterType, double opsPerSecond, double error, double bytesPerOp) {
+            this.name = name;
+            this.size = size;
+            this.filterType = filterType;
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-11s %5d  %-16s %12.3f +- %10.3f ops/s %16.1f B/op",
+                    name, size, filterType, opsPerSecond, error, bytesPerOp);
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%s,%d,%s,%.6f,%.6f,%.1f",
+                    name, size, filterType, opsPerSecond, error, bytesPerOp);
+        }
+    }
+
+    public Result run(String path, int size, String filterType) {
+        Runnable operation;
+        if (path.equals("legacy")) {
+            operation = legacy(size, filterType);
+        } else if (path.equals("sequential")) {
+            operation = buffer(sequential, size, filterType, false);
+        } else if (path.equals("parallel")) {
+            operation = buffer(parallel, size, filterType, false);
+        } else if (path.equals("fixed")) {
+            operation = buffer(fixed, size, filterType, false);
+        } else if (path.equals("pipeline")) {
+            operation = buffer(sequential, size, filterType, true);
+        } else {
+            throw new IllegalArgumentException("Unknown benchmark path: " + path);
+        }
+
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation, null);
+        }
+        double[] throughput = new double[iterations];
+        long[] allocation = new long[2];
+        for (int i = 0; i < iterations; i++) {
+            throughput[i] = iteration(operation, allocation);
+        }
+
+        double mean = 0;
+        for (double value : throughput) {
+            mean += value;
+        }
+        mean /= iterations;
+        double error = Double.NaN;
+        if (iterations > 1) {
+            double variance = 0;
+            for (double value : throughput) {
+                variance += (value - mean) * (value - mean);
+            }
+            double t = T_999[Math.min(iterations - 1, T_999.length) - 1];
+            error = t * Math.sqrt(variance / (iterations - 1) / iterations);
+        }
+        return new Result(path, size, filterType, mean, error, (double) allocation[0] / allocation[1]);
+    }
+
+    public void shutdown() throws InterruptedException {
+        processor.stop();
+        sequential.getConvolutionEngine().shutdown();
+        parallel.getConvolutionEngine().shutdown();
+        fixed.getConvolutionEngine().shutdown();
+    }
+
+    /**
+     * Run the operation until the iteration time is up and return ops/s,
+     * adding bytes allocated and operations run to {@code allocation}.
+     */
+    private double iteration(Runnable operation, long[] allocation) {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        do {
+            operation.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        if (allocation != null) {
+            allocation[0] += allocatedBytes() - bytesBefore;
+            allocation[1] += ops;
+        }
+        return ops / (elapsed / 1e9);
+    }
+
+    private long allocatedBytes() {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private Runnable legacy(int size, String filterType) {
+        PixelBuffer pixels = randomImage(size);
+        Color[][] colors = new Color[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int argb = pixels.getArgb(i, j);
+                colors[i][j] = Color.rgb(PixelBuffer.red(argb), PixelBuffer.green(argb), PixelBuffer.blue(argb));
+            }
+        }
+
+        if (filterType.equals(ImageFilters.SEPIA)) {
+            return () -> sink += processor.applySepia(colors).length;
+        } else if (filterType.equals(ImageFilters.GREYSCALE)) {
+            return () -> sink += processor.applyGreyscale(colors).length;
+        }
+        float[][] filter = processor.createFilter(filterType);
+        return () -> sink += processor.applyFilter(colors, filter).length;
+    }
+
+    private Runnable buffer(ImageFilters filters, int size, String filterType, boolean streamed) {
+        PixelBuffer pixels = randomImage(size);
+        if (streamed) {
+            FilterPipeline pipeline = new FilterPipeline(filters, Arrays.asList(filterType));
+            return () -> sink += pipeline.apply(pixels).getPixels()[0];
+        }
+        return () -> sink += filters.apply(filterType, pixels).getPixels()[0];
+    }
+
+    /**
+     * Whether the path can run the filter; the Color[][] applyFilter is
+     * hard-coded for 3x3 kernels.
+     */
+    static boolean supports(String path, String filterType) {
+        if (!path.equals("legacy") || filterType.equals(ImageFilters.SEPIA)
+                || filterType.equals(ImageFilters.GREYSCALE)) {
+            return true;
+        }
+        return !filterType.startsWith("GAUSSIAN_") && !filterType.startsWith("BOX_")
+               && !filterType.startsWith("MEDIAN_") && !filterType.startsWith("MIN_")
+               && !filterType.startsWith("MAX_") && !filterType.equals("SOBEL") && !filterType.equals("CANNY")
+               && !ImageFilters.isResize(filterType);
+    }
+
+    /**
+     * An image of random opaque pixels; the seed keeps runs comparable.
+     */
+    static PixelBuffer randomImage(int size) {
+        return randomImage(size, size);
+    }
+
+    static PixelBuffer randomImage(int width, int height) {
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        int[] data = pixels.getPixels();
+        Random random = new Random(SEED);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = PixelBuffer.OPAQUE | random.nextInt(1 << 24);
+        }
+        return pixels;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java FilterBenchmark [--sizes N,...] [--filters F,...] [--paths P,...]"
+                + " [--warmup N] [--iterations N] [--time SECONDS] [--csv FILE]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] sizes = {"256", "1024", "4096", "8192"};
+        String[] filterTypes = ALL_FILTERS;
+        String[] paths = ALL_PATHS;
+        int warmup = 3;
+        int iterations = 5;
+        double seconds = 2;
+        String csv = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String arg = args[i];
+            String value = args[++i];
+            if (arg.equals("--sizes")) {
+                sizes = value.split(",");
+            } else if (arg.equals("--filters")) {
+                filterTypes = value.toUpperCase(Locale.ROOT).split(",");
+            } else if (arg.equals("--paths")) {
+                paths = value.toLowerCase(Locale.ROOT).split(",");
+            } else if (arg.equals("--warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.equals("--iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if (arg.equals("--time")) {
+                seconds = Double.parseDouble(value);
+            } else if (arg.equals("--csv")) {
+                csv = value;
+            } else {
+                usage();
+            }
+        }
+        if (iterations < 1) {
+            usage();
+        }
+
+        FilterBenchmark benchmark = new FilterBenchmark(warmup, iterations, seconds);
+        List<Result> results = new ArrayList<>();
+        for (String size : sizes) {
+            for (String path : paths) {
+                for (String filterType : filterTypes) {
+                    if (!supports(path, filterType)) {
+                        continue;
+                    }
+                    Result result = benchmark.run(path, Integer.parseInt(size.trim()), filterType);
+                    System.out.println(result);
+                    results.add(result);
+                    // Let the previous benchmark's images go before the next one allocates
+                    System.gc();
+                }
+            }
+        }
+
+        benchmark.shutdown();
+
+        if (csv != null) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(csv)))) {
+                out.println("benchmark,size,filter,ops_per_s,error,bytes_per_op");
+                for (Result result : results) {
+                    out.println(result.toCsv());
+                }
+            }
+        }
+        System.exit(0);
+    }
+}
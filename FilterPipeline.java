@@ -0,0 +1,498 @@
+//Runs a chain of ImageProcessor filters in a single streamed pass
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * An ordered chain of filters that reads its input once and writes its output
+ * once, with no intermediate images.
+ *
+ * Neighbouring point operations are folded into as few ColorTransforms as
+ * possible (one, unless several colour matrices are involved) and run in one
+ * per-pixel loop. Each convolution keeps a rolling buffer of just the
+ * {@code kernel.getHeight()} input rows it needs and pulls further rows from
+ * the stage before it on demand, so the whole chain advances one row at a time.
+ * RESIZE_ and SCALE_ stages do the same with a Resampler's vertical taps, and
+ * change the size of everything after them; see {@link #outputSize}.
+ *
+ * Edges follow the ConvolutionEngine's EdgeMode. WRAP needs rows from the far
+ * side of the image, so it cannot be streamed: {@link #run} rejects it and
+ * {@link #apply} falls back to filtering the whole image once per filter.
+ * The same goes for chains containing a filter that ImageFilters.isStreamable
+ * says works on whole bands, such as BOX_BLUR_<radius>.
+ *
+ * On a fixed-point ConvolutionEngine the convolution stages use the engine's
+ * integer loops, so streaming gives the same pixels as filtering whole images.
+ * Streams always sum taps; {@link #apply} filters whole images instead when
+ * the engine would convolve some kernel of the chain by FFT.
+ *
+ * {@link #apply(PixelStore, PixelStore, ProgressMonitor)} filters between
+ * images held anywhere, such as an OffHeapPixelBuffer too large for the
+ * heap, through a BandedPipeline.
+ */
+public class FilterPipeline {
+
+    private final List<String> filterTypes;
+    private final ImageFilters filters;
+
+    public FilterPipeline(ImageFilters filters, List<String> filterTypes) {
+        for (String filterType : filterTypes) {
+            if (!ImageFilters.isFilterType(filterType)) {
+                throw new IllegalArgumentException("Unknown filter type: " + filterType);
+            }
+        }
+        this.filters = filters;
+        this.filterTypes = new ArrayList<>(filterTypes);
+    }
+
+    public List<String> getFilterTypes() {
+        return filterTypes;
+    }
+
+    public PixelBuffer apply(PixelBuffer pixels) {
+        return apply(pixels, ProgressMonitor.NONE);
+    }
+
+    /**
+     * Whether {@link #run} can stream this chain a row at a time.
+     */
+    public boolean isStreamable() {
+        if (!filters.getConvolutionEngine().getEdgeMode().isLocal()) {
+            return false;
+        }
+        for (String filterType : filterTypes) {
+            if (!ImageFilters.isStreamable(filterType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public PixelBuffer apply(PixelBuffer pixels, ProgressMonitor monitor) {
+        if (!isStreamable() || usesFft(pixels.getWidth(), pixels.getHeight())) {
+            return applyEach(pixels, monitor);
+        }
+        int[] size = outputSize(pixels.getWidth(), pixels.getHeight());
+        PixelBuffer result = new PixelBuffer(size[0], size[1]);
+        int[] dst = result.getPixels();
+        int width = size[0];
+        int[] nextRow = {0};
+        ImageStatistics.Collector statistics = monitor.getStatistics();
+
+        try {
+            run(pixels.rows(), row -> {
+                if (statistics != null) {
+                    statistics.add(row, 0, width);
+                }
+                System.arraycopy(row, 0, dst, nextRow[0]++ * width, width);
+            }, monitor);
+        } catch (IOException e) {
+            // Neither end touches any I/O here
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    public void apply(PixelStore pixels, PixelStore result) {
+        apply(pixels, result, ProgressMonitor.NONE);
+    }
+
+    /**
+     * Filter {@code pixels} into {@code result}, which must already have
+     * the chain's {@link #outputSize}. Unless both are PixelBuffers, this
+     * runs in parallel bands through a BandedPipeline, which copies only a
+     * window of rows around each band onto the heap. A chain containing
+     * CANNY, which BandedPipeline cannot split, filters a heap copy of the
+     * whole image through {@link #apply(PixelBuffer, ProgressMonitor)}
+     * instead, as two PixelBuffers always do.
+     *
+     * @throws UnsupportedOperationException if the chain contains CANNY and
+     *         the image has more than PixelBuffer.MAX_PIXELS pixels
+     */
+    public void apply(PixelStore pixels, PixelStore result, ProgressMonitor monitor) {
+        int[] size = outputSize(pixels.getWidth(), pixels.getHeight());
+        if (result.getWidth() != size[0] || result.getHeight() != size[1]) {
+            throw new IllegalArgumentException("Result is " + result.getWidth() + "x" + result.getHeight()
+                                               + " but the chain makes " + size[0] + "x" + size[1]);
+        }
+        BandedPipeline banded = new BandedPipeline(filters, filterTypes);
+        boolean heap = pixels instanceof PixelBuffer && result instanceof PixelBuffer;
+        if (heap || !banded.isBanded()) {
+            result.copyFrom(apply(pixels.toHeap(), monitor));
+            return;
+        }
+        banded.apply(pixels, result, monitor);
+    }
+
+    /**
+     * The size of the chain's output for a {@code width x height} input, as
+     * {@code {width, height}}; only RESIZE_ and SCALE_ filters change it.
+     */
+    public int[] outputSize(int width, int height) {
+        int[] size = {width, height};
+        for (String filterType : filterTypes) {
+            if (ImageFilters.isResize(filterType)) {
+                size = ImageFilters.resizedSize(filterType, size[0], size[1]);
+            }
+        }
+        return size;
+    }
+
+    // Whether the engine would convolve some filter of the chain by FFT, which works on whole tiles
+    private boolean usesFft(int width, int height) {
+        ConvolutionEngine engine = filters.getConvolutionEngine();
+        for (String filterType : filterTypes) {
+            if (ImageFilters.pointOperation(filterType) == null && !ImageFilters.isResize(filterType)
+                    && engine.methodFor(filters.createKernel(filterType), width, height)
+                       == ConvolutionCostModel.Method.FFT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PixelBuffer applyEach(PixelBuffer pixels, ProgressMonitor monitor) {
+        ProgressMonitor overall = monitor.perPass(filterTypes.size());
+        for (int i = 0; i < filterTypes.size(); i++) {
+            boolean last = i == filterTypes.size() - 1;
+            pixels = filters.apply(filterTypes.get(i), pixels, last ? monitor.lastPass(filterTypes.size()) : overall);
+        }
+        return pixels;
+    }
+
+    /**
+     * Pull every row of {@code source} through the chain and push it to {@code sink}.
+     */
+    public void run(RowSource source, RowSink sink) throws IOException {
+        run(source, sink, ProgressMonitor.NONE);
+    }
+
+    public void run(RowSource source, RowSink sink, ProgressMonitor monitor) throws IOException {
+        EdgeMode edges = filters.getConvolutionEngine().getEdgeMode();
+        if (!edges.isLocal()) {
+            throw new UnsupportedOperationException(edges + " edges cannot be streamed");
+        }
+        for (String filterType : filterTypes) {
+            if (!ImageFilters.isStreamable(filterType)) {
+                throw new UnsupportedOperationException(filterType + " cannot be streamed");
+            }
+        }
+        RowSource last = compile(source);
+        int[] row = new int[last.getWidth()];
+        int height = last.getHeight();
+        for (int y = 0; y < height; y++) {
+            if (monitor.isCancelled()) {
+                throw new CancellationException();
+            }
+            last.readRow(row, 0);
+            sink.writeRow(row);
+            monitor.rowsDone(1, height);
+        }
+    }
+
+    private RowSource compile(RowSource source) {
+        RowSource stage = source;
+        List<PointOperation> pending = new ArrayList<>();
+        ColorTransform folded = null;
+
+        for (String filterType : filterTypes) {
+            ColorTransform operation = ImageFilters.pointOperation(filterType);
+            if (operation != null) {
+                if (folded == null) {
+                    folded = operation;
+                } else if (folded.canCompose(operation)) {
+                    folded = folded.then(operation);
+                } else {
+                    pending.add(folded);
+                    folded = operation;
+                }
+                continue;
+            }
+            if (folded != null) {
+                pending.add(folded);
+                folded = null;
+            }
+            if (!pending.isEmpty()) {
+                stage = new PointStage(stage, pending);
+                pending = new ArrayList<>();
+            }
+            if (ImageFilters.isResize(filterType)) {
+                int[] size = ImageFilters.resizedSize(filterType, stage.getWidth(), stage.getHeight());
+                stage = new ResizeStage(stage, size[0], size[1], ImageFilters.resizeMethod(filterType));
+                continue;
+            }
+            Kernel kernel = filters.createKernel(filterType);
+            ConvolutionEngine engine = filters.getConvolutionEngine();
+            FixedPointKernel quantised = engine.isFixedPoint() ? kernel.toFixedPoint() : null;
+            stage = kernel.isSeparable()
+                    ? new SeparableStage(stage, kernel, quantised, engine.getEdgeMode(), engine.getBorderColour())
+                    : new ConvolutionStage(stage, kernel, quantised, engine.getEdgeMode(), engine.getBorderColour());
+        }
+        if (folded != null) {
+            pending.add(folded);
+        }
+        if (!pending.isEmpty()) {
+            stage = new PointStage(stage, pending);
+        }
+        return stage;
+    }
+
+    private static class PointStage implements RowSource {
+        private final RowSource upstream;
+        private final PointOperation[] operations;
+
+        PointStage(RowSource upstream, List<PointOperation> operations) {
+            this.upstream = upstream;
+            this.operations = operations.toArray(new PointOperation[0]);
+        }
+
+        @Override
+        public int getWidth() {
+            return upstream.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return upstream.getHeight();
+        }
+
+        @Override
+        public void readRow(int[] row, int offset) throws IOException {
+            upstream.readRow(row, offset);
+            int end = offset + upstream.getWidth();
+            for (PointOperation operation : operations) {
+                operation.apply(row, row, offset, end);
+            }
+        }
+    }
+
+    private static class ConvolutionStage implements RowSource {
+        private final RowSource upstream;
+        private final float[][] weights;
+        private final FixedPointKernel quantised;
+        private final EdgeMode edges;
+        private final int border;
+        private final int width;
+        private final int height;
+        private final int[] ring;
+        private final int[] rowStarts;
+        private int nextIn;
+        private int nextOut;
+
+        // quantised is null to convolve in float
+        ConvolutionStage(RowSource upstream, Kernel kernel, FixedPointKernel quantised, EdgeMode edges, int border) {
+            this.upstream = upstream;
+            this.weights = kernel.getWeights();
+            this.quantised = quantised;
+            this.edges = edges;
+            this.border = border;
+            this.width = upstream.getWidth();
+            this.height = upstream.getHeight();
+            this.ring = new int[kernel.getHeight() * width];
+            this.rowStarts = new int[kernel.getHeight()];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int[] row, int offset) throws IOException {
+            int kh = weights.length;
+            int ry = kh / 2;
+            int y = nextOut++;
+
+            int last = Math.min(y + ry, height - 1);
+            while (nextIn <= last) {
+                upstream.readRow(ring, (nextIn % kh) * width);
+                nextIn++;
+            }
+            // CLAMP and MIRROR only map onto rows nearer to y, which are still in the ring
+            for (int ky = 0; ky < kh; ky++) {
+                int sy = edges.index(y + ky - ry, height);
+                rowStarts[ky] = sy < 0 ? -1 : (sy % kh) * width;
+            }
+            if (quantised != null) {
+                FixedPointKernel.convolveRow(ring, rowStarts, quantised, row, offset, width, edges, border);
+            } else {
+                ConvolutionEngine.convolveRow(ring, rowStarts, weights, row, offset, width, edges, border);
+            }
+        }
+    }
+
+    private static class SeparableStage implements RowSource {
+        private final RowSource upstream;
+        private final float[] rowTaps;
+        private final float[] columnTaps;
+        private final FixedPointKernel quantised;
+        private final EdgeMode edges;
+        private final int border;
+        private final int width;
+        private final int height;
+        private final int[] input;
+        private final float[] red;
+        private final float[] green;
+        private final float[] blue;
+        private final int[] fixedRed;
+        private final int[] fixedGreen;
+        private final int[] fixedBlue;
+        private final int[] rowStarts;
+        private int nextIn;
+        private int nextOut;
+
+        // quantised is null to convolve in float; only one set of scratch rows is allocated
+        SeparableStage(RowSource upstream, Kernel kernel, FixedPointKernel quantised, EdgeMode edges, int border) {
+            this.upstream = upstream;
+            this.rowTaps = kernel.getRow();
+            this.columnTaps = kernel.getColumn();
+            this.quantised = quantised;
+            this.edges = edges;
+            this.border = border;
+            this.width = upstream.getWidth();
+            this.height = upstream.getHeight();
+            this.input = new int[width];
+
+            // One slot per kernel row plus a last slot holding the filtered border row
+            int slots = columnTaps.length + 1;
+            this.rowStarts = new int[columnTaps.length];
+            if (quantised != null) {
+                this.red = null;
+                this.green = null;
+                this.blue = null;
+                this.fixedRed = new int[slots * width];
+                this.fixedGreen = new int[slots * width];
+                this.fixedBlue = new int[slots * width];
+            } else {
+                this.red = new float[slots * width];
+                this.green = new float[slots * width];
+                this.blue = new float[slots * width];
+                this.fixedRed = null;
+                this.fixedGreen = null;
+                this.fixedBlue = null;
+            }
+            horizontalRow(-1, columnTaps.length * width);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int[] row, int offset) throws IOException {
+            int kh = columnTaps.length;
+            int ry = kh / 2;
+            int y = nextOut++;
+
+            int last = Math.min(y + ry, height - 1);
+            while (nextIn <= last) {
+                upstream.readRow(input, 0);
+                horizontalRow(0, (nextIn % kh) * width);
+                nextIn++;
+            }
+            for (int k = 0; k < kh; k++) {
+                int sy = edges.index(y + k - ry, height);
+                rowStarts[k] = sy < 0 ? kh * width : (sy % kh) * width;
+            }
+            if (quantised != null) {
+                FixedPointKernel.verticalRow(fixedRed, fixedGreen, fixedBlue, rowStarts, quantised, row, offset,
+                                             width);
+            } else {
+                ConvolutionEngine.verticalRow(red, green, blue, rowStarts, columnTaps, row, offset, width);
+            }
+        }
+
+        // Filter the input row, or a row of border if srcStart is -1, into the slot at dstStart
+        private void horizontalRow(int srcStart, int dstStart) {
+            if (quantised != null) {
+                FixedPointKernel.horizontalRow(input, srcStart, quantised, fixedRed, fixedGreen, fixedBlue, dstStart,
+                                               width, edges, border);
+            } else {
+                ConvolutionEngine.horizontalRow(input, srcStart, rowTaps, red, green, blue, dstStart, width, edges,
+                                                border);
+            }
+        }
+    }
+
+    /**
+     * Resamples to a new size through Resampler's tables, keeping the
+     * horizontally resampled source rows the current output row reaches in
+     * a ring of one slot per vertical tap.
+     */
+    private static class ResizeStage implements RowSource {
+        private final RowSource upstream;
+        private final int width;
+        private final int height;
+        private final Resampler.Weights horizontal;
+        private final Resampler.Weights vertical;
+        private final int[] input;
+        private final float[] red;
+        private final float[] green;
+        private final float[] blue;
+        private final int[] rowStarts;
+        private int nextIn;
+        private int nextOut;
+
+        ResizeStage(RowSource upstream, int width, int height, Resampler.Method method) {
+            this.upstream = upstream;
+            this.width = width;
+            this.height = height;
+            this.horizontal = Resampler.weights(upstream.getWidth(), width, method);
+            this.vertical = Resampler.weights(upstream.getHeight(), height, method);
+            this.input = new int[upstream.getWidth()];
+            this.red = new float[vertical.taps * width];
+            this.green = new float[vertical.taps * width];
+            this.blue = new float[vertical.taps * width];
+            this.rowStarts = new int[vertical.taps];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int[] row, int offset) throws IOException {
+            int taps = vertical.taps;
+            int y = nextOut++;
+            int first = vertical.first[y];
+            while (nextIn < first + taps) {
+                upstream.readRow(input, 0);
+                // Rows before the window are passed over when shrinking
+                if (nextIn >= first) {
+                    Resampler.horizontalRow(input, 0, horizontal, red, green, blue, (nextIn % taps) * width);
+                }
+                nextIn++;
+            }
+            for (int k = 0; k < taps; k++) {
+                rowStarts[k] = ((first + k) % taps) * width;
+            }
+            ConvolutionEngine.verticalRow(red, green, blue, rowStarts, vertical.weights[y], row, offset, width);
+            // Read any rows below the last window, so the source is always consumed whole
+            if (nextOut == height) {
+                for (; nextIn < upstream.getHeight(); nextIn++) {
+                    upstream.readRow(input, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+//Checks the fixed-point convolution path against a double-precision reference
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs 41 kernels through a fixed-point ConvolutionEngine under every
+ * EdgeMode and compares each channel of each pixel with a reference computed
+ * in double precision from the Kernel's float weights and rounded by
+ * PixelBuffer.clamp(double). FixedPointKernel promises results within one
+ * level of that, so the check exits with status 1 if any channel is off by
+ * more than {@link #TOLERANCE}.
+ *
+ * The kernels are the five named 3x3 ones, Gaussian and box blurs of every
+ * odd size from 3 to 21, and random kernels of odd sizes up to 9, dense ones
+ * with negative weights and separable ones, each scaled to sum to one.
+ *
+ * Usage:
+ * <pre>
+ * java FixedPointCheck [--width N] [--height N]
+ * </pre>
+ * The image defaults to 97x61, odd so that no row or column is special.
+ */
+public class FixedPointCheck {
+
+    /** The largest difference allowed in any channel, in levels of 0-255. */
+    public static final int TOLERANCE = 1;
+
+    private static final int BORDER = 0xFF336699;
+    private static final int RANDOM_KERNELS = 8;
+    private static final long SEED = 1234L;
+
+    private FixedPointCheck() {
+    }
+
+    static Map<String, Kernel> kernels() {
+        Map<String, Kernel> kernels = new LinkedHashMap<>();
+        ImageFilters names = new ImageFilters(new ConvolutionEngine(1));
+        for (String filterType : new String[] {"IDENTITY", "BLUR", "SHARPEN", "EMBOSS", "EDGE"}) {
+            kernels.put(filterType, names.createKernel(filterType));
+        }
+        for (int size = 3; size <= 21; size += 2) {
+            kernels.put("GAUSSIAN_" + size, Kernel.gaussian(size));
+        }
+        for (int size = 3; size <= 21; size += 2) {
+            kernels.put("BOX_" + size, Kernel.box(size));
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_KERNELS; i++) {
+            int width = 3 + 2 * random.nextInt(4);
+            int height = 3 + 2 * random.nextInt(4);
+            float[] weights = normalised(random, width * height);
+            float[][] rows = new float[height][width];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(weights, y * width, rows[y], 0, width);
+            }
+            kernels.put("DENSE_" + width + "x" + height + "_" + i, new Kernel(rows));
+        }
+        for (int i = 0; i < RANDOM_KERNELS; i++) {
+            int width = 3 + 2 * random.nextInt(4);
+            int height = 3 + 2 * random.nextInt(4);
+            kernels.put("SEPARABLE_" + width + "x" + height + "_" + i,
+                        Kernel.separable(normalised(random, height), normalised(random, width)));
+        }
+        return kernels;
+    }
+
+    // Weights between -0.5 and 1 scaled to sum to one, so flat areas keep their level
+    private static float[] normalised(Random random, int count) {
+        float[] weights = new float[count];
+        double sum;
+        do {
+            sum = 0;
+            for (int i = 0; i < count; i++) {
+                weights[i] = random.nextFloat() * 1.5f - 0.5f;
+                sum += weights[i];
+            }
+        } while (sum < 0.25);
+        for (int i = 0; i < count; i++) {
+            weights[i] = (float) (weights[i] / sum);
+        }
+        return weights;
+    }
+
+    /**
+     * The convolution of {@code pixels} with {@code kernel} summed in double
+     * precision, reading taps outside the image as {@code edges} says.
+     */
+    static PixelBuffer reference(PixelBuffer pixels, Kernel kernel, EdgeMode edges, int border) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        float[][] weights = kernel.getWeights();
+        int ry = kernel.getHeight() / 2;
+        int rx = kernel.getWidth() / 2;
+        PixelBuffer result = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double red = 0;
+                double green = 0;
+                double blue = 0;
+                for (int ky = 0; ky < kernel.getHeight(); ky++) {
+                    int sy = edges.index(y + ky - ry, height);
+                    for (int kx = 0; kx < kernel.getWidth(); kx++) {
+                        int sx = edges.index(x + kx - rx, width);
+                        int argb = sx < 0 || sy < 0 ? border : pixels.getArgb(sx, sy);
+                        double weight = weights[ky][kx];
+                        red += ((argb >> 16) & 0xFF) * weight;
+                        green += ((argb >> 8) & 0xFF) * weight;
+                        blue += (argb & 0xFF) * weight;
+                    }
+                }
+                result.setArgb(x, y, PixelBuffer.pack(PixelBuffer.clamp(red), PixelBuffer.clamp(green),
+                                                      PixelBuffer.clamp(blue)));
+            }
+        }
+        return result;
+    }
+
+    // The largest difference between any channel of a and b
+    private static int maxDifference(PixelBuffer a, PixelBuffer b) {
+        int[] pa = a.getPixels();
+        int[] pb = b.getPixels();
+        int max = 0;
+        for (int i = 0; i < pa.length; i++) {
+            for (int s = 0; s <= 16; s += 8) {
+                max = Math.max(max, Math.abs(((pa[i] >> s) & 0xFF) - ((pb[i] >> s) & 0xFF)));
+            }
+        }
+        return max;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java FixedPointCheck [--width N] [--height N]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        int width = 97;
+        int height = 61;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            String arg = args[i];
+            String value = args[++i];
+            if (arg.equals("--width")) {
+                width = Integer.parseInt(value);
+            } else if (arg.equals("--height")) {
+                height = Integer.parseInt(value);
+            } else {
+                usage();
+            }
+        }
+
+        PixelBuffer pixels = FilterBenchmark.randomImage(width, height);
+        Map<String, Kernel> kernels = kernels();
+        List<String> failures = new ArrayList<>();
+        int worst = 0;
+        for (EdgeMode edges : EdgeMode.values()) {
+            ConvolutionEngine engine = new ConvolutionEngine(1, edges, BORDER, true);
+            for (Map.Entry<String, Kernel> entry : kernels.entrySet()) {
+                Kernel kernel = entry.getValue();
+                int difference = maxDifference(engine.convolve(pixels, kernel),
+                                               reference(pixels, kernel, edges, BORDER));
+                worst = Math.max(worst, difference);
+                if (difference > TOLERANCE) {
+                    failures.add(entry.getKey() + " " + edges + ": off by " + difference);
+                }
+            }
+        }
+
+        for (String failure : failures) {
+            System.out.println("MISMATCH " + failure);
+        }
+        System.out.printf(Locale.ROOT, "%d kernels x %d edge modes on %dx%d: largest difference %d, tolerance %d%n",
+                          kernels.size(), EdgeMode.values().length, width, height, worst, TOLERANCE);
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,334 @@
+//Convolution kernels quantised to integer weights for the fixed-point path
+
+/**
+ * A Kernel with its weights rounded to integers scaled by {@code 2^shift},
+ * and the integer-only loops that convolve with it. Channels are multiplied
+ * by the integer weights and summed in an int, and the sum is rounded back
+ * to a byte by a shift and PixelBuffer.clampFixed, so a pixel costs integer
+ * multiply-adds and no float conversions.
+ *
+ * The shift is the largest, up to {@link #MAX_SHIFT}, for which no
+ * accumulator can overflow: 255 times the sum of the absolute integer
+ * weights, plus the rounding constant, must fit in an int. For the built-in
+ * kernels that leaves over 20 fraction bits, so the quantisation error summed
+ * over all taps stays far below half a level and results are within one
+ * level of the float path.
+ *
+ * After rounding, the weight with the largest magnitude takes up any
+ * difference between the integer weights' sum and the rounded sum of the
+ * real weights, so that kernels summing to one leave flat areas unchanged.
+ *
+ * Separable kernels are quantised per factor. The horizontal pass keeps
+ * {@link #INTERMEDIATE_BITS} fraction bits in int scratch rows, and the
+ * column weights get whatever shift is left once those bits and the size of
+ * the horizontal results are allowed for.
+ */
+public class FixedPointKernel {
+
+    /** The most fraction bits given to any weight. */
+    public static final int MAX_SHIFT = 24;
+
+    /** Fraction bits kept between the two passes of a separable kernel. */
+    public static final int INTERMEDIATE_BITS = 6;
+
+    private final int[][] weights;
+    private final int shift;
+    private final int[] row;
+    private final int rowShift;
+    private final int[] column;
+    private final int columnShift;
+    private final int intermediateBits;
+
+    public FixedPointKernel(Kernel kernel) {
+        float[][] real = kernel.getWeights();
+        int height = real.length;
+        int width = real[0].length;
+        float[] flat = new float[width * height];
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(real[i], 0, flat, i * width, width);
+        }
+        this.shift = shiftFor(flat, 255, 0);
+        int[] quantised = quantise(flat, shift);
+        this.weights = new int[height][width];
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(quantised, i * width, weights[i], 0, width);
+        }
+
+        if (kernel.isSeparable()) {
+            this.rowShift = shiftFor(kernel.getRow(), 255, 0);
+            this.row = quantise(kernel.getRow(), rowShift);
+            this.intermediateBits = Math.min(INTERMEDIATE_BITS, rowShift);
+            // The largest magnitude a horizontal result can have, rounding included
+            long horizontal = ((255L * absSum(row) + ((1L << rowShift) >> 1)) >> (rowShift - intermediateBits)) + 1;
+            this.columnShift = shiftFor(kernel.getColumn(), horizontal, intermediateBits);
+            this.column = quantise(kernel.getColumn(), columnShift);
+        } else {
+            this.row = null;
+            this.rowShift = 0;
+            this.column = null;
+            this.columnShift = 0;
+            this.intermediateBits = 0;
+        }
+    }
+
+    public int getWidth() {
+        return weights[0].length;
+    }
+
+    public int getHeight() {
+        return weights.length;
+    }
+
+    /**
+     * The weights scaled by {@code 2^getShift()} and rounded.
+     */
+    public int[][] getWeights() {
+        return weights;
+    }
+
+    public int getShift() {
+        return shift;
+    }
+
+    public boolean isSeparable() {
+        return row != null;
+    }
+
+    /**
+     * @return the horizontal factor scaled by {@code 2^getRowShift()}, or
+     *         null if the kernel is not separable
+     */
+    public int[] getRow() {
+        return row;
+    }
+
+    public int getRowShift() {
+        return rowShift;
+    }
+
+    /**
+     * @return the vertical factor scaled by {@code 2^getColumnShift()}, or
+     *         null if the kernel is not separable
+     */
+    public int[] getColumn() {
+        return column;
+    }
+
+    public int getColumnShift() {
+        return columnShift;
+    }
+
+    /**
+     * The fraction bits in the horizontal pass's results.
+     */
+    public int getIntermediateBits() {
+        return intermediateBits;
+    }
+
+    // The most fraction bits for which taps times values up to maxValue, plus
+    // the rounding constant for a result with extraBits more, cannot overflow
+    private static int shiftFor(float[] taps, long maxValue, int extraBits) {
+        for (int s = MAX_SHIFT; s > 0; s--) {
+            if (maxValue * absSum(quantise(taps, s)) + (1L << (s + extraBits - 1)) <= Integer.MAX_VALUE) {
+                return s;
+            }
+        }
+        return 0;
+    }
+
+    private static int[] quantise(float[] taps, int shift) {
+        double scale = 1L << shift;
+        int[] quantised = new int[taps.length];
+        double sum = 0;
+        long quantisedSum = 0;
+        int largest = 0;
+        for (int i = 0; i < taps.length; i++) {
+            quantised[i] = (int) Math.round(taps[i] * scale);
+            sum += taps[i];
+            quantisedSum += quantised[i];
+            if (Math.abs(taps[i]) > Math.abs(taps[largest])) {
+                largest = i;
+            }
+        }
+        quantised[largest] += (int) (Math.round(sum * scale) - quantisedSum);
+        return quantised;
+    }
+
+    private static long absSum(int[] taps) {
+        long sum = 0;
+        for (int tap : taps) {
+            sum += Math.abs(tap);
+        }
+        return sum;
+    }
+
+    /**
+     * ConvolutionEngine.convolveRow in fixed point: one output row from the
+     * source rows at {@code rowStarts}, -1 meaning a row of {@code border}.
+     */
+    static void convolveRow(int[] src, int[] rowStarts, FixedPointKernel kernel, int[] dst, int dstStart, int width,
+                            EdgeMode edges, int border) {
+        int[][] weights = kernel.weights;
+        int shift = kernel.shift;
+        int kh = weights.length;
+        int kw = weights[0].length;
+        int rx = kw / 2;
+        int left = Math.min(rx, width);
+        int right = Math.max(width - rx, left);
+
+        for (int x = 0; x < left; x++) {
+            dst[dstStart + x] = convolveEdgePixel(src, rowStarts, kernel, x, width, edges, border);
+        }
+
+        for (int x = left; x < right; x++) {
+            int newRed = 0;
+            int newGreen = 0;
+            int newBlue = 0;
+
+            for (int ky = 0; ky < kh; ky++) {
+                int start = rowStarts[ky];
+                int[] row = weights[ky];
+                if (start < 0) {
+                    for (int kx = 0; kx < kw; kx++) {
+                        int weight = row[kx];
+                        newRed += ((border >> 16) & 0xFF) * weight;
+                        newGreen += ((border >> 8) & 0xFF) * weight;
+                        newBlue += (border & 0xFF) * weight;
+                    }
+                } else {
+                    int base = start + x - rx;
+                    for (int kx = 0; kx < kw; kx++) {
+                        int argb = src[base + kx];
+                        int weight = row[kx];
+                        newRed += ((argb >> 16) & 0xFF) * weight;
+                        newGreen += ((argb >> 8) & 0xFF) * weight;
+                        newBlue += (argb & 0xFF) * weight;
+                    }
+                }
+            }
+
+            dst[dstStart + x] = PixelBuffer.pack(PixelBuffer.clampFixed(newRed, shift),
+                                                 PixelBuffer.clampFixed(newGreen, shift),
+                                                 PixelBuffer.clampFixed(newBlue, shift));
+        }
+
+        for (int x = right; x < width; x++) {
+            dst[dstStart + x] = convolveEdgePixel(src, rowStarts, kernel, x, width, edges, border);
+        }
+    }
+
+    private static int convolveEdgePixel(int[] src, int[] rowStarts, FixedPointKernel kernel, int x, int width,
+                                         EdgeMode edges, int border) {
+        int[][] weights = kernel.weights;
+        int kw = weights[0].length;
+        int rx = kw / 2;
+        int newRed = 0;
+        int newGreen = 0;
+        int newBlue = 0;
+
+        for (int ky = 0; ky < weights.length; ky++) {
+            int start = rowStarts[ky];
+            int[] row = weights[ky];
+            for (int kx = 0; kx < kw; kx++) {
+                int sx = edges.index(x + kx - rx, width);
+                int argb = (start < 0 || sx < 0) ? border : src[start + sx];
+                int weight = row[kx];
+                newRed += ((argb >> 16) & 0xFF) * weight;
+                newGreen += ((argb >> 8) & 0xFF) * weight;
+                newBlue += (argb & 0xFF) * weight;
+            }
+        }
+
+        int shift = kernel.shift;
+        return PixelBuffer.pack(PixelBuffer.clampFixed(newRed, shift), PixelBuffer.clampFixed(newGreen, shift),
+                                PixelBuffer.clampFixed(newBlue, shift));
+    }
+
+    /**
+     * ConvolutionEngine.horizontalRow in fixed point: the results keep
+     * {@code getIntermediateBits()} fraction bits.
+     */
+    static void horizontalRow(int[] src, int srcStart, FixedPointKernel kernel, int[] red, int[] green, int[] blue,
+                              int dstStart, int width, EdgeMode edges, int border) {
+        int[] taps = kernel.row;
+        int drop = kernel.rowShift - kernel.intermediateBits;
+        int half = (1 << drop) >> 1;
+        int rx = taps.length / 2;
+        // A row of border colour has no interior
+        int left = srcStart < 0 ? width : Math.min(rx, width);
+        int right = Math.max(width - rx, left);
+
+        for (int x = 0; x < left; x++) {
+            horizontalEdgePixel(src, srcStart, kernel, red, green, blue, dstStart, x, width, edges, border);
+        }
+
+        for (int x = left; x < right; x++) {
+            int base = srcStart + x - rx;
+            int sumRed = half;
+            int sumGreen = half;
+            int sumBlue = half;
+            for (int k = 0; k < taps.length; k++) {
+                int argb = src[base + k];
+                int weight = taps[k];
+                sumRed += ((argb >> 16) & 0xFF) * weight;
+                sumGreen += ((argb >> 8) & 0xFF) * weight;
+                sumBlue += (argb & 0xFF) * weight;
+            }
+            red[dstStart + x] = sumRed >> drop;
+            green[dstStart + x] = sumGreen >> drop;
+            blue[dstStart + x] = sumBlue >> drop;
+        }
+
+        for (int x = right; x < width; x++) {
+            horizontalEdgePixel(src, srcStart, kernel, red, green, blue, dstStart, x, width, edges, border);
+        }
+    }
+
+    private static void horizontalEdgePixel(int[] src, int srcStart, FixedPointKernel kernel, int[] red,
+                                            int[] green, int[] blue, int dstStart, int x, int width,
+                                            EdgeMode edges, int border) {
+        int[] taps = kernel.row;
+        int drop = kernel.rowShift - kernel.intermediateBits;
+        int half = (1 << drop) >> 1;
+        int rx = taps.length / 2;
+        int sumRed = half;
+        int sumGreen = half;
+        int sumBlue = half;
+        for (int k = 0; k < taps.length; k++) {
+            int sx = srcStart < 0 ? -1 : edges.index(x + k - rx, width);
+            int argb = sx < 0 ? border : src[srcStart + sx];
+            int weight = taps[k];
+            sumRed += ((argb >> 16) & 0xFF) * weight;
+            sumGreen += ((argb >> 8) & 0xFF) * weight;
+            sumBlue += (argb & 0xFF) * weight;
+        }
+        red[dstStart + x] = sumRed >> drop;
+        green[dstStart + x] = sumGreen >> drop;
+        blue[dstStart + x] = sumBlue >> drop;
+    }
+
+    /**
+     * ConvolutionEngine.verticalRow in fixed point, from the int rows left
+     * by horizontalRow.
+     */
+    static void verticalRow(int[] red, int[] green, int[] blue, int[] rowStarts, FixedPointKernel kernel,
+                            int[] dst, int dstStart, int width) {
+        int[] taps = kernel.column;
+        int shift = kernel.intermediateBits + kernel.columnShift;
+        for (int x = 0; x < width; x++) {
+            int sumRed = 0;
+            int sumGreen = 0;
+            int sumBlue = 0;
+            for (int k = 0; k < taps.length; k++) {
+                int index = rowStarts[k] + x;
+                int weight = taps[k];
+                sumRed += red[index] * weight;
+                sumGreen += green[index] * weight;
+                sumBlue += blue[index] * weight;
+            }
+            dst[dstStart + x] = PixelBuffer.pack(PixelBuffer.clampFixed(sumRed, shift),
+                                                 PixelBuffer.clampFixed(sumGreen, shift),
+                                                 PixelBuffer.clampFixed(sumBlue, shift));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+//Bulk copies between JavaFX images and PixelBuffer
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Moves pixels between JavaFX images and {@code PixelBuffer} with a single
+ * {@code getPixels}/{@code setPixels} call each way. Kept apart from
+ * PixelBuffer so the filters load without JavaFX on the class path.
+ */
+public class FxImageConverter {
+
+    private FxImageConverter() {
+    }
+
+    public static PixelBuffer toPixelBuffer(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        PixelReader pr = image.getPixelReader();
+        pr.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), buffer.getPixels(), 0, width);
+        return buffer;
+    }
+
+    public static WritableImage toWritableImage(PixelBuffer buffer) {
+        WritableImage wimg = new WritableImage(buffer.getWidth(), buffer.getHeight());
+        write(buffer, wimg.getPixelWriter());
+        return wimg;
+    }
+
+    public static void write(PixelBuffer buffer, PixelWriter pw) {
+        pw.setPixels(0, 0, buffer.getWidth(), buffer.getHeight(), PixelFormat.getIntArgbInstance(),
+                     buffer.getPixels(), 0, buffer.getWidth());
+    }
+}
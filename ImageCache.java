@@ -0,0 +1,276 @@
+//Memory-bounded LRU cache of decoded images and their downscaled pyramids
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Holds decoded images and a pyramid of downscaled copies of each, within a
+ * budget in bytes. Level 0 of an image is the image itself; each further
+ * level halves the one before it in both directions, rounding up, so level
+ * {@code n} is roughly {@code 1/2^n} the size.
+ *
+ * Entries are evicted least recently used first, whatever their level, until
+ * the total fits the budget again. A level that is asked for but not cached
+ * is built from the nearest finer level still cached, so an evicted preview
+ * costs a few halvings while an evicted original has to be decoded again by
+ * the caller.
+ *
+ * An original's ImageStatistics can be kept with it, for as long as level 0
+ * stays cached. They are a few kilobytes of histograms, so they are not
+ * counted against the budget.
+ *
+ * All methods are synchronized; filter tasks read levels off the FX thread.
+ */
+public class ImageCache {
+
+    private final Map<Key, PixelBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ImageStatistics> statistics = new HashMap<>();
+    private long budget;
+    private long size;
+
+    /**
+     * @param budget the most bytes of pixels to hold at once
+     */
+    public ImageCache(long budget) {
+        // Not through setBudget, which a subclass could override; there is nothing to evict yet
+        this.budget = checkBudget(budget);
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Change the budget, evicting at once if the cache is now over it.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = checkBudget(budget);
+        evict(null);
+    }
+
+    private static long checkBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget must not be negative: " + budget);
+        }
+        return budget;
+    }
+
+    /**
+     * The bytes of pixels currently held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Cache {@code original} as level 0 of {@code name}, dropping any levels
+     * cached for an earlier image of that name. An image larger than the
+     * whole budget is not kept.
+     */
+    public synchronized void put(String name, PixelBuffer original) {
+        remove(name);
+        store(new Key(name, 0), original);
+    }
+
+    /**
+     * Level {@code level} of {@code name}, built from a finer level and cached
+     * if need be, or null if no level at or below it is still cached.
+     */
+    public synchronized PixelBuffer get(String name, int level) {
+        PixelBuffer pixels = entries.get(new Key(name, level));
+        if (pixels != null) {
+            return pixels;
+        }
+        int finer = level - 1;
+        while (finer >= 0 && (pixels = entries.get(new Key(name, finer))) == null) {
+            finer--;
+        }
+        if (pixels == null) {
+            return null;
+        }
+        while (finer < level) {
+            pixels = halve(pixels);
+            finer++;
+            store(new Key(name, finer), pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Keep the statistics of level 0 of {@code name} for as long as that
+     * level is cached; if it is not cached now, they are not kept at all.
+     */
+    public synchronized void putStatistics(String name, ImageStatistics original) {
+        if (entries.containsKey(new Key(name, 0))) {
+            statistics.put(name, original);
+        }
+    }
+
+    /**
+     * The statistics kept for level 0 of {@code name}, or null if there are
+     * none or that level has been evicted.
+     */
+    public synchronized ImageStatistics getStatistics(String name) {
+        return statistics.get(name);
+    }
+
+    /**
+     * Drop every level of {@code name}, and its statistics.
+     */
+    public synchronized void remove(String name) {
+        statistics.remove(name);
+        Iterator<Map.Entry<Key, PixelBuffer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, PixelBuffer> entry = it.next();
+            if (entry.getKey().name.equals(name)) {
+                size -= bytes(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        statistics.clear();
+        size = 0;
+    }
+
+    /**
+     * The coarsest pyramid level of a {@code width x height} image that still
+     * has at least as many pixels in each direction as the image shows when
+     * scaled down to fit within {@code maxWidth x maxHeight}.
+     */
+    public static int levelFor(int width, int height, int maxWidth, int maxHeight) {
+        double scale = Math.min(1, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        double shownWidth = width * scale;
+        double shownHeight = height * scale;
+        int level = 0;
+        while (width > 1 && height > 1 && (width + 1) / 2 >= shownWidth && (height + 1) / 2 >= shownHeight) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Level {@code level} of the pyramid over {@code pixels}, without caching.
+     */
+    public static PixelBuffer downsample(PixelBuffer pixels, int level) {
+        for (int i = 0; i < level; i++) {
+            pixels = halve(pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Levels 0 to {@code levels} of the pyramid over {@code pixels}, without
+     * caching; element 0 is {@code pixels} itself.
+     */
+    public static PixelBuffer[] pyramid(PixelBuffer pixels, int levels) {
+        PixelBuffer[] pyramid = new PixelBuffer[levels + 1];
+        pyramid[0] = pixels;
+        for (int i = 1; i <= levels; i++) {
+            pyramid[i] = halve(pyramid[i - 1]);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Average each 2x2 block of pixels, all four channels including alpha.
+     * An odd last row or column averages the one or two pixels it has.
+     */
+    static PixelBuffer halve(PixelBuffer pixels) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+        int[] src = pixels.getPixels();
+        PixelBuffer result = new PixelBuffer(halfWidth, halfHeight);
+        int[] dst = result.getPixels();
+
+        for (int y = 0; y < halfHeight; y++) {
+            int row0 = 2 * y * width;
+            int row1 = 2 * y + 1 < height ? row0 + width : row0;
+            for (int x = 0; x < halfWidth; x++) {
+                int x0 = 2 * x;
+                int x1 = x0 + 1 < width ? x0 + 1 : x0;
+                int a = src[row0 + x0];
+                int b = src[row0 + x1];
+                int c = src[row1 + x0];
+                int d = src[row1 + x1];
+                // Where the block is cut short the edge pixels are counted twice,
+                // which still averages to their mean
+                dst[y * halfWidth + x] = average(a, b, c, d, 24) << 24 | average(a, b, c, d, 16) << 16
+                                         | average(a, b, c, d, 8) << 8 | average(a, b, c, d, 0);
+            }
+        }
+        return result;
+    }
+
+    private static int average(int a, int b, int c, int d, int shift) {
+        return (((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF)
+                + ((d >>> shift) & 0xFF) + 2) >> 2;
+    }
+
+    private void store(Key key, PixelBuffer pixels) {
+        PixelBuffer old = entries.remove(key);
+        if (old != null) {
+            size -= bytes(old);
+        }
+        if (bytes(pixels) > budget) {
+            // It could never fit, so keep what is cached rather than flush it all
+            return;
+        }
+        entries.put(key, pixels);
+        size += bytes(pixels);
+        evict(key);
+    }
+
+    // Evict least recently used entries other than keep until within budget
+    private void evict(Key keep) {
+        Iterator<Map.Entry<Key, PixelBuffer>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<Key, PixelBuffer> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            size -= bytes(entry.getValue());
+            it.remove();
+            if (entry.getKey().level == 0) {
+                statistics.remove(entry.getKey().name);
+            }
+        }
+    }
+
+    private static long bytes(PixelBuffer pixels) {
+        return 4L * pixels.getWidth() * pixels.getHeight();
+    }
+
+    private static class Key {
+        final String name;
+        final int level;
+
+        Key(String name, int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return level == other.level && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, level);
+        }
+    }
+}
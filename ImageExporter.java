@@ -0,0 +1,215 @@
+//Encodes and writes filtered images off the caller's thread
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes PixelBuffers to disk on a small pool of writer threads, with at
+ * most {@code threads + queueCapacity} writes pending at once so images do
+ * not pile up. Nothing is ever encoded on the submitting thread. When the
+ * exporter is full, {@link #export} refuses the write at once, which is what
+ * the FX thread needs, while {@link #exportWaiting} blocks a background
+ * producer until a write finishes, throttling it to the writers' pace.
+ *
+ * PNG goes through PngRowWriter straight from the pixel array, so the
+ * deflate level can be set exactly. JPEG and BMP go through ImageIO using a
+ * BufferedImage view that shares the pixel array rather than a copy. RAW is
+ * copied into a memory map of the file by RawImageFile, with no encoding.
+ */
+public class ImageExporter {
+
+    private final ThreadPoolExecutor writers;
+    private final Semaphore pending;
+
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    public ImageExporter(int threads, int queueCapacity) {
+        // The semaphore bounds the queue, so the executor's own can be unbounded and never rejects
+        this.writers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "image-exporter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.pending = new Semaphore(threads + queueCapacity);
+    }
+
+    /**
+     * Queue {@code pixels} to be written, without blocking. The buffer must
+     * not change until the returned future completes. I/O failures complete
+     * it exceptionally, and so does a full exporter, at once, with a
+     * RejectedExecutionException; the image is then not written.
+     */
+    public CompletableFuture<ExportResult> export(PixelBuffer pixels, File file, ExportSettings settings) {
+        if (!pending.tryAcquire()) {
+            CompletableFuture<ExportResult> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new RejectedExecutionException(
+                    "Still writing earlier images; " + file.getName() + " was not saved"));
+            return busy;
+        }
+        return submit(pixels, file, settings);
+    }
+
+    /**
+     * Like {@link #export}, but when the exporter is full wait on the calling
+     * thread until a write finishes. Only for background threads.
+     */
+    public CompletableFuture<ExportResult> exportWaiting(PixelBuffer pixels, File file, ExportSettings settings)
+            throws InterruptedException {
+        pending.acquire();
+        return submit(pixels, file, settings);
+    }
+
+    // Run the write on the pool, giving back the pending slot it holds when done
+    private CompletableFuture<ExportResult> submit(PixelBuffer pixels, File file, ExportSettings settings) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return write(pixels, file, settings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    pending.release();
+                }
+            }, writers);
+        } catch (RejectedExecutionException e) {
+            // Only once the pool has been shut down
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode and write on the calling thread.
+     */
+    public ExportResult write(PixelBuffer pixels, File file, ExportSettings settings) throws IOException {
+        long allocated = OperationTimer.allocatedBytes(false);
+        long start = System.nanoTime();
+        if (settings.getFormat() == ExportFormat.RAW) {
+            long bytes = RawImageFile.write(pixels, file);
+            return record(file, start, bytes, allocated);
+        }
+
+        CountingOutputStream counted;
+        if (settings.getFormat() == ExportFormat.PNG) {
+            int width = pixels.getWidth();
+            // The writer emits the signature and header as it is built, so the stream must already be
+            // in the try to be closed if that throws
+            // RGBA only when there is some transparency to keep; opaque images are a quarter smaller as RGB
+            boolean alpha = !pixels.isOpaque();
+            try (CountingOutputStream out = open(file);
+                 PngRowWriter png = new PngRowWriter(out, width, pixels.getHeight(), settings.getCompressionLevel(),
+                                                     alpha)) {
+                counted = out;
+                for (int y = 0; y < pixels.getHeight(); y++) {
+                    png.writeRow(pixels.getPixels(), y * width);
+                }
+            }
+        } else {
+            try (CountingOutputStream out = open(file)) {
+                counted = out;
+                writeWithImageIO(pixels.toBufferedImage(settings.getFormat().hasAlpha()), out, settings);
+            }
+        }
+
+        return record(file, start, counted.count, allocated);
+    }
+
+    private static CountingOutputStream open(File file) throws IOException {
+        return new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    // Finish timing a write begun at start, with allocatedBefore bytes allocated by then
+    private ExportResult record(File file, long start, long bytes, long allocatedBefore) {
+        long nanos = System.nanoTime() - start;
+        long allocatedAfter = OperationTimer.allocatedBytes(false);
+        ExportResult result = new ExportResult(file, nanos, bytes, allocatedBefore < 0 || allocatedAfter < 0 ? -1
+                                               : allocatedAfter - allocatedBefore);
+        filesWritten.incrementAndGet();
+        bytesWritten.addAndGet(result.getBytesWritten());
+        encodeNanos.addAndGet(result.getEncodeNanos());
+        return result;
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos.get();
+    }
+
+    /**
+     * Stop accepting work and wait for queued writes to finish.
+     */
+    public void shutdown() throws InterruptedException {
+        writers.shutdown();
+        writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private static void writeWithImageIO(BufferedImage image, OutputStream out, ExportSettings settings)
+            throws IOException {
+        Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(settings.getFormat().getImageIOName());
+        if (!found.hasNext()) {
+            throw new IOException("No ImageIO writer for " + settings.getFormat());
+        }
+        ImageWriter writer = found.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (settings.getFormat() == ExportFormat.JPEG) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(settings.getQuality());
+        }
+
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,752 @@
+//The ImageProcessor filters, usable without a JavaFX stage
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The filter implementations behind ImageProcessor. Nothing here needs a
+ * JavaFX Application or Stage, so the batch tools can share it.
+ */
+public class ImageFilters {
+
+    // The built-in filter names. The first five are createFilter's 3x3 kernels, looked up by index;
+    // those with a number are examples of GAUSSIAN_<n>, BOX_BLUR_<radius> and the other
+    // parameterised forms, which isFilterType also accepts with any valid number
+    private static final String[] filterTypes = {"IDENTITY","BLUR", "SHARPEN", "EMBOSS", "EDGE",
+                                                 "GAUSSIAN_5", "GAUSSIAN_7", "BOX_5", "BOX_7",
+                                                 "BOX_BLUR_25", "GAUSSIAN_BLUR_25", "MEDIAN_2", "MIN_1", "MAX_1",
+                                                 "SOBEL", "CANNY"};
+
+    public static final String SEPIA = "SEPIA";
+    public static final String GREYSCALE = "GREYSCALE";
+    public static final String INVERT = "INVERT";
+
+    // Rows between progress reports and cancellation checks in point operations
+    private static final int PROGRESS_BAND_ROWS = 64;
+
+    // Filters built on SummedAreaTable rather than a Kernel, parameterised by
+    // box radius and Gaussian sigma respectively
+    private static final String BOX_BLUR = "BOX_BLUR_";
+    private static final String GAUSSIAN_BLUR = "GAUSSIAN_BLUR_";
+
+    // Box passes making up GAUSSIAN_BLUR; three come within a few percent of a true Gaussian
+    private static final int GAUSSIAN_BOX_PASSES = 3;
+
+    // Rank-order filters built on RankFilter, parameterised by window radius
+    private static final String MEDIAN = "MEDIAN_";
+    private static final String MIN = "MIN_";
+    private static final String MAX = "MAX_";
+
+    // Edge detectors built on EdgeDetector
+    private static final String SOBEL = "SOBEL";
+    private static final String CANNY = "CANNY";
+
+    // Size changes built on Resampler: RESIZE_<width>x<height> and
+    // SCALE_<factor>, each optionally followed by _<method>
+    private static final String RESIZE = "RESIZE_";
+    private static final String SCALE = "SCALE_";
+
+    // CANNY's hysteresis thresholds on the Sobel gradient magnitude, which a
+    // full-contrast step reaches at 1020, and the Gaussian it smooths with first
+    public static final int CANNY_LOW = 40;
+    public static final int CANNY_HIGH = 100;
+    private static final int CANNY_GAUSSIAN_SIZE = 5;
+
+    // CANNY is previewed on proxy levels below this one; at 1/8 scale its edges break up
+    private static final int CANNY_PROXY_LEVELS = 3;
+
+    private final ConvolutionEngine convolutionEngine;
+
+    public ImageFilters(ConvolutionEngine convolutionEngine) {
+        this.convolutionEngine = convolutionEngine;
+    }
+
+    public ConvolutionEngine getConvolutionEngine() {
+        return convolutionEngine;
+    }
+
+    public static boolean isFilterType(String filterType) {
+        try {
+            if (pointOperation(filterType) != null) {
+                return true;
+            }
+        } catch (IllegalArgumentException e) {
+            // A malformed BRIGHTNESS_/CONTRAST_/GAMMA_ parameter
+            return false;
+        }
+        for (String type : filterTypes) {
+            if (type.equals(filterType)) {
+                return true;
+            }
+        }
+        if (isResize(filterType)) {
+            try {
+                resizedSize(filterType, 1, 1);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return isSizedKernel(filterType, "GAUSSIAN_") || isSizedKernel(filterType, "BOX_")
+               || isBoxBlur(filterType) || isGaussianBlur(filterType) || isRankFilter(filterType);
+    }
+
+    /**
+     * Whether FilterPipeline can stream the filter a row at a time. BOX_BLUR_
+     * and GAUSSIAN_BLUR_ work on summed-area tables of whole bands instead,
+     * MEDIAN_, MIN_ and MAX_ on column histograms of whole bands, and CANNY
+     * follows edges across the whole image. SOBEL is left with it so both
+     * edge detectors run the same way.
+     */
+    public static boolean isStreamable(String filterType) {
+        return !filterType.startsWith(BOX_BLUR) && !filterType.startsWith(GAUSSIAN_BLUR)
+               && rankPrefix(filterType) == null && !filterType.equals(SOBEL) && !filterType.equals(CANNY);
+    }
+
+    /**
+     * Whether each output pixel of the filter depends only on source pixels
+     * within a fixed distance; see {@link #verticalReach}. CANNY's
+     * hysteresis can follow an edge across the whole image.
+     */
+    public static boolean isLocal(String filterType) {
+        return !filterType.equals(CANNY);
+    }
+
+    /**
+     * How many source rows above and below an output row a local filter
+     * reads, not counting RESIZE_ and SCALE_, which map rows through their
+     * Resampler tables instead.
+     */
+    public int verticalReach(String filterType) {
+        if (!isLocal(filterType) || isResize(filterType)) {
+            throw new IllegalArgumentException(filterType + " has no fixed reach");
+        }
+        if (pointOperation(filterType) != null) {
+            return 0;
+        } else if (filterType.startsWith(BOX_BLUR)) {
+            return Integer.parseInt(filterType.substring(BOX_BLUR.length()));
+        } else if (filterType.startsWith(GAUSSIAN_BLUR)) {
+            int reach = 0;
+            for (int radius : gaussianBoxRadii(Double.parseDouble(filterType.substring(GAUSSIAN_BLUR.length())))) {
+                reach += radius;
+            }
+            return reach;
+        }
+        String rankPrefix = rankPrefix(filterType);
+        if (rankPrefix != null) {
+            return Integer.parseInt(filterType.substring(rankPrefix.length()));
+        } else if (filterType.equals(SOBEL)) {
+            return 1;
+        }
+        return createKernel(filterType).getHeight() / 2;
+    }
+
+    /**
+     * Apply any filter by name: a point operation from pointOperation, a
+     * BOX_BLUR_<radius> or GAUSSIAN_BLUR_<sigma>, a MEDIAN_, MIN_ or
+     * MAX_<radius>, SOBEL or CANNY, a RESIZE_ or SCALE_, or a convolution
+     * from createKernel.
+     */
+    public PixelBuffer apply(String filterType, PixelBuffer pixels) {
+        return apply(filterType, pixels, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer apply(String filterType, PixelBuffer pixels, ProgressMonitor monitor) {
+        if (!isFilterType(filterType)) {
+            throw new IllegalArgumentException("Unknown filter type: " + filterType);
+        }
+        if (filterType.startsWith(BOX_BLUR)) {
+            return boxBlur(pixels, Integer.parseInt(filterType.substring(BOX_BLUR.length())), monitor);
+        } else if (filterType.startsWith(GAUSSIAN_BLUR)) {
+            return gaussianBlur(pixels, Double.parseDouble(filterType.substring(GAUSSIAN_BLUR.length())), monitor);
+        }
+        String rankPrefix = rankPrefix(filterType);
+        if (rankPrefix != null) {
+            int radius = Integer.parseInt(filterType.substring(rankPrefix.length()));
+            if (rankPrefix.equals(MEDIAN)) {
+                return median(pixels, radius, monitor);
+            }
+            return rankPrefix.equals(MIN) ? minimum(pixels, radius, monitor) : maximum(pixels, radius, monitor);
+        }
+        if (isResize(filterType)) {
+            int[] size = resizedSize(filterType, pixels.getWidth(), pixels.getHeight());
+            return resize(pixels, size[0], size[1], resizeMethod(filterType), monitor);
+        } else if (filterType.equals(SOBEL)) {
+            return sobel(pixels, monitor);
+        } else if (filterType.equals(CANNY)) {
+            return canny(pixels, CANNY_LOW, CANNY_HIGH, monitor);
+        }
+        PointOperation operation = pointOperation(filterType);
+        if (operation != null) {
+            return applyPointOperation(pixels, operation, monitor);
+        }
+        return applyFilter(pixels, createKernel(filterType), monitor);
+    }
+
+    /**
+     * Apply any filter by name from {@code pixels} into {@code result},
+     * either of which may be off the heap; {@code result} must already have
+     * the filter's output size. See FilterPipeline's method of the same name.
+     */
+    public void apply(String filterType, PixelStore pixels, PixelStore result) {
+        apply(filterType, pixels, result, ProgressMonitor.NONE);
+    }
+
+    public void apply(String filterType, PixelStore pixels, PixelStore result, ProgressMonitor monitor) {
+        new FilterPipeline(this, List.of(filterType)).apply(pixels, result, monitor);
+    }
+
+    public PixelBuffer applyFilter(PixelBuffer pixels, Kernel kernel) {
+        return convolutionEngine.convolve(pixels, kernel);
+    }
+
+    public PixelBuffer applyFilter(PixelBuffer pixels, Kernel kernel, ProgressMonitor monitor) {
+        return convolutionEngine.convolve(pixels, kernel, monitor);
+    }
+
+    // GAUSSIAN_<n> and BOX_<n> accept any odd size n, not just those listed in filterTypes
+    public Kernel createKernel(String filterType) {
+        if (filterType.startsWith("GAUSSIAN_")) {
+            return Kernel.gaussian(Integer.parseInt(filterType.substring("GAUSSIAN_".length())));
+        } else if (filterType.startsWith("BOX_")) {
+            return Kernel.box(Integer.parseInt(filterType.substring("BOX_".length())));
+        }
+        return new Kernel(createFilter(filterType));
+    }
+
+    public float[][] createFilter(String filterType) {
+        if (filterType.startsWith("GAUSSIAN_") || filterType.startsWith("BOX_")) {
+            return createKernel(filterType).getWeights();
+        }
+
+        int x = 3;
+        int y = 3;
+
+        float[][] filter = new float[x][y];
+
+        for (int i = 0; i < x; i++) {
+            for (int j = 0; j < y; j++) {
+                filter[i][j] = 0;
+            }
+        }
+
+        if (filterType.equals(filterTypes[0])) {
+            for (int i = 0; i < x; i++) {
+                for (int j = 0; j < y; j++) {
+                    filter[i][j] = 0;
+                }
+            }
+            filter[1][1] = 1;
+        } else if (filterType.equals(filterTypes[1])) {
+            filter[0][0] = 0.0625f;
+            filter[0][1] = 0.125f;
+            filter[0][2] = 0.0625f;
+            filter[1][0] = 0.125f;
+            filter[1][1] = 0.25f;
+            filter[1][2] = 0.125f;
+            filter[2][0] = 0.0625f;
+            filter[2][1] = 0.125f;
+            filter[2][2] = 0.0625f;
+        } else if (filterType.equals(filterTypes[2])) {
+            filter[0][0] = 0;
+            filter[0][1] = -1;
+            filter[0][2] = 0;
+            filter[1][0] = -1;
+            filter[1][1] = 5;
+            filter[1][2] = -1;
+            filter[2][0] = 0;
+            filter[2][1] = -1;
+            filter[2][2] = 0;
+        } else if (filterType.equals(filterTypes[3])) {
+            filter[0][0] = -2;
+            filter[0][1] = -1;
+            filter[0][2] = 0;
+            filter[1][0] = -1;
+            filter[1][1] = 0;
+            filter[1][2] = 1;
+            filter[2][0] = 0;
+            filter[2][1] = 1;
+            filter[2][2] = 2;
+        } else if (filterType.equals(filterTypes[4])) {
+            for (int i = 0; i < x; i++) {
+                for (int j = 0; j < y; j++) {
+                    filter[i][j] = -1;
+                }
+            }
+            filter[1][1] = 8;
+        }
+        return filter;
+    }
+
+    /**
+     * Replace each pixel with the mean of the {@code (2 * radius + 1)}-pixel
+     * square around it, at a cost per pixel that does not depend on the
+     * radius. Each band of rows builds a SummedAreaTable over itself plus
+     * {@code radius} rows and columns of edge on every side, following the
+     * engine's EdgeMode, so the result matches convolving with
+     * {@code Kernel.box(2 * radius + 1)} apart from that kernel's float
+     * rounding.
+     */
+    public PixelBuffer boxBlur(PixelBuffer pixels, int radius) {
+        return boxBlur(pixels, radius, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer boxBlur(PixelBuffer pixels, int radius, ProgressMonitor monitor) {
+        if (!isBoxRadius(radius)) {
+            throw new IllegalArgumentException("Box radius must be between 0 and "
+                                               + maxBoxRadius() + ": " + radius);
+        }
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        EdgeMode edges = convolutionEngine.getEdgeMode();
+        int border = convolutionEngine.getBorderColour();
+        PixelBuffer result = new PixelBuffer(width, height);
+        int[] dst = result.getPixels();
+
+        // Bands at least as tall as the box keep the table's halo rows from
+        // outnumbering the rows it produces
+        int minBandRows = Math.max(PROGRESS_BAND_ROWS, 2 * radius + 1);
+        convolutionEngine.forEachBand(height, minBandRows, monitor,
+                ConvolutionEngine.collecting(result, monitor, (y0, y1) -> {
+                    SummedAreaTable table = new SummedAreaTable(pixels, -radius, y0 - radius, width + 2 * radius,
+                                                                y1 - y0 + 2 * radius, edges, border);
+                    for (int y = y0; y < y1; y++) {
+                        table.boxRow(y, 0, width, radius, dst, y * width);
+                    }
+                }));
+        return result;
+    }
+
+    /**
+     * Approximate a Gaussian blur of the given sigma by repeated box blurs,
+     * whose cost per pixel does not grow with sigma the way a Gaussian
+     * kernel's does.
+     */
+    public PixelBuffer gaussianBlur(PixelBuffer pixels, double sigma) {
+        return gaussianBlur(pixels, sigma, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer gaussianBlur(PixelBuffer pixels, double sigma, ProgressMonitor monitor) {
+        int[] radii = gaussianBoxRadii(sigma);
+        ProgressMonitor pass = monitor.perPass(radii.length);
+        for (int i = 0; i < radii.length; i++) {
+            pixels = boxBlur(pixels, radii[i], i < radii.length - 1 ? pass : monitor.lastPass(radii.length));
+        }
+        return pixels;
+    }
+
+    /**
+     * The radii of the GAUSSIAN_BOX_PASSES box blurs whose combined variance
+     * is closest to {@code sigma * sigma}: boxes of two consecutive odd
+     * widths, the narrower ones first, as in Kovesi's "Fast Almost-Gaussian
+     * Filtering".
+     */
+    public static int[] gaussianBoxRadii(double sigma) {
+        if (!(sigma > 0) || Double.isInfinite(sigma)) {
+            throw new IllegalArgumentException("Sigma must be positive: " + sigma);
+        }
+        int passes = GAUSSIAN_BOX_PASSES;
+        double variance = 12 * sigma * sigma;
+        int lower = (int) Math.min(Math.floor(Math.sqrt(variance / passes + 1)), Integer.MAX_VALUE - 2);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        double narrow = Math.round((variance - passes * ((double) lower * lower + 4.0 * lower + 3))
+                                   / (-4.0 * lower - 4));
+        int[] radii = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            radii[i] = i < narrow ? lower / 2 : lower / 2 + 1;
+        }
+        return radii;
+    }
+
+    private static boolean isBoxRadius(long radius) {
+        return radius >= 0 && radius <= maxBoxRadius();
+    }
+
+    // The largest radius whose box sums fit SummedAreaTable's ints
+    private static int maxBoxRadius() {
+        return (int) ((Math.sqrt(SummedAreaTable.MAX_AREA) - 1) / 2);
+    }
+
+    private static boolean isBoxBlur(String filterType) {
+        if (!filterType.startsWith(BOX_BLUR)) {
+            return false;
+        }
+        try {
+            return isBoxRadius(Integer.parseInt(filterType.substring(BOX_BLUR.length())));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isGaussianBlur(String filterType) {
+        if (!filterType.startsWith(GAUSSIAN_BLUR)) {
+            return false;
+        }
+        try {
+            int[] radii = gaussianBoxRadii(Double.parseDouble(filterType.substring(GAUSSIAN_BLUR.length())));
+            return isBoxRadius(radii[radii.length - 1]);
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            return false;
+        }
+    }
+
+    /**
+     * Replace each channel of each pixel with its median over the
+     * {@code (2 * radius + 1)}-pixel square around it, which removes
+     * salt-and-pepper noise without smearing edges the way a blur does. The
+     * cost per pixel barely grows with the radius; see RankFilter.
+     */
+    public PixelBuffer median(PixelBuffer pixels, int radius) {
+        return median(pixels, radius, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer median(PixelBuffer pixels, int radius, ProgressMonitor monitor) {
+        int size = 2 * radius + 1;
+        return rankFilter(pixels, radius, size * size / 2, monitor);
+    }
+
+    /**
+     * The minimum of each channel over the square around each pixel: a
+     * greyscale erosion, which shrinks bright features.
+     */
+    public PixelBuffer minimum(PixelBuffer pixels, int radius) {
+        return minimum(pixels, radius, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer minimum(PixelBuffer pixels, int radius, ProgressMonitor monitor) {
+        return rankFilter(pixels, radius, 0, monitor);
+    }
+
+    /**
+     * The maximum of each channel over the square around each pixel: a
+     * greyscale dilation, which grows bright features.
+     */
+    public PixelBuffer maximum(PixelBuffer pixels, int radius) {
+        return maximum(pixels, radius, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer maximum(PixelBuffer pixels, int radius, ProgressMonitor monitor) {
+        int size = 2 * radius + 1;
+        return rankFilter(pixels, radius, size * size - 1, monitor);
+    }
+
+    private PixelBuffer rankFilter(PixelBuffer pixels, int radius, int rank, ProgressMonitor monitor) {
+        if (!isRankRadius(radius)) {
+            throw new IllegalArgumentException("Rank filter radius must be between 0 and "
+                                               + RankFilter.MAX_RADIUS + ": " + radius);
+        }
+        EdgeMode edges = convolutionEngine.getEdgeMode();
+        int border = convolutionEngine.getBorderColour();
+        PixelBuffer result = new PixelBuffer(pixels.getWidth(), pixels.getHeight());
+
+        // As for boxBlur, bands at least as tall as the window keep the
+        // histograms' start-up rows from outnumbering the rows produced
+        int minBandRows = Math.max(PROGRESS_BAND_ROWS, 2 * radius + 1);
+        convolutionEngine.forEachBand(pixels.getHeight(), minBandRows, monitor, ConvolutionEngine.collecting(result,
+                monitor, (y0, y1) -> RankFilter.filterRows(pixels, result, radius, rank, edges, border, y0, y1)));
+        return result;
+    }
+
+    private static boolean isRankRadius(long radius) {
+        return radius >= 0 && radius <= RankFilter.MAX_RADIUS;
+    }
+
+    // MEDIAN, MIN or MAX if the filter type starts with one, else null
+    private static String rankPrefix(String filterType) {
+        for (String prefix : new String[] {MEDIAN, MIN, MAX}) {
+            if (filterType.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isRankFilter(String filterType) {
+        String prefix = rankPrefix(filterType);
+        if (prefix == null) {
+            return false;
+        }
+        try {
+            return isRankRadius(Integer.parseInt(filterType.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resample to {@code width x height} by {@code method}; see Resampler.
+     */
+    public PixelBuffer resize(PixelBuffer pixels, int width, int height, Resampler.Method method) {
+        return resize(pixels, width, height, method, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer resize(PixelBuffer pixels, int width, int height, Resampler.Method method,
+                              ProgressMonitor monitor) {
+        Resampler.Weights horizontal = Resampler.weights(pixels.getWidth(), width, method);
+        Resampler.Weights vertical = Resampler.weights(pixels.getHeight(), height, method);
+        PixelBuffer result = new PixelBuffer(width, height);
+        convolutionEngine.forEachBand(height, PROGRESS_BAND_ROWS, monitor, ConvolutionEngine.collecting(result,
+                monitor, (y0, y1) -> Resampler.resizeRows(pixels, result, horizontal, vertical, y0, y1)));
+        return result;
+    }
+
+    /**
+     * Whether the filter is a RESIZE_ or SCALE_, which changes the image's size.
+     */
+    public static boolean isResize(String filterType) {
+        return filterType.startsWith(RESIZE) || filterType.startsWith(SCALE);
+    }
+
+    /**
+     * The size a RESIZE_<width>x<height> or SCALE_<factor> filter, with or
+     * without a _<method> suffix, gives a {@code width x height} image, as
+     * {@code {width, height}}. Scaled sizes round to the nearest pixel, and
+     * at least one.
+     */
+    public static int[] resizedSize(String filterType, int width, int height) {
+        String[] parts = filterType.split("_");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Malformed size change: " + filterType);
+        }
+        if (parts.length == 3) {
+            Resampler.Method.valueOf(parts[2]);
+        }
+        if (filterType.startsWith(SCALE)) {
+            double factor = Double.parseDouble(parts[1]);
+            if (!(factor > 0) || Double.isInfinite(factor)) {
+                throw new IllegalArgumentException("Scale factor must be positive: " + parts[1]);
+            }
+            return new int[] {scaled(width, factor), scaled(height, factor)};
+        }
+        int x = parts[1].indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException("Resize needs <width>x<height>: " + filterType);
+        }
+        int[] size = {Integer.parseInt(parts[1].substring(0, x)), Integer.parseInt(parts[1].substring(x + 1))};
+        if (size[0] < 1 || size[1] < 1) {
+            throw new IllegalArgumentException("Resize dimensions must be positive: " + filterType);
+        }
+        return size;
+    }
+
+    private static int scaled(int size, double factor) {
+        double scaled = Math.rint(size * factor);
+        if (scaled >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Scaled size too large: " + size + " x " + factor);
+        }
+        return Math.max(1, (int) scaled);
+    }
+
+    /**
+     * The method of a RESIZE_ or SCALE_ filter: its suffix, or LANCZOS3.
+     */
+    public static Resampler.Method resizeMethod(String filterType) {
+        String[] parts = filterType.split("_");
+        return parts.length == 3 ? Resampler.Method.valueOf(parts[2]) : Resampler.Method.LANCZOS3;
+    }
+
+    /**
+     * The filter that does to an image downsampled {@code level} times by a
+     * factor of two what {@code filterType} does at full size, for previews
+     * on proxies. Radii, sigmas, kernel sizes and RESIZE_ dimensions are
+     * divided by {@code 2^level}, rounding to the nearest. Everything else is
+     * unchanged: point operations and SCALE_ do not depend on scale, and a
+     * fixed 3x3 kernel or SOBEL on a proxy is just the filter at display
+     * resolution. CANNY's thresholds are tuned to full-size gradients and
+     * its edges break up on a 1/8-scale proxy, so there it gives null and
+     * that proxy is skipped.
+     */
+    public static String atLevel(String filterType, int level) {
+        if (level == 0) {
+            return filterType;
+        } else if (filterType.equals(CANNY)) {
+            return level < CANNY_PROXY_LEVELS ? filterType : null;
+        }
+        double scale = 1.0 / (1 << level);
+        if (filterType.startsWith(BOX_BLUR)) {
+            return BOX_BLUR + scaledRadius(filterType.substring(BOX_BLUR.length()), scale);
+        } else if (filterType.startsWith(GAUSSIAN_BLUR)) {
+            return GAUSSIAN_BLUR + Double.parseDouble(filterType.substring(GAUSSIAN_BLUR.length())) * scale;
+        }
+        String rankPrefix = rankPrefix(filterType);
+        if (rankPrefix != null) {
+            return rankPrefix + scaledRadius(filterType.substring(rankPrefix.length()), scale);
+        }
+        for (String prefix : new String[] {"GAUSSIAN_", "BOX_"}) {
+            if (isSizedKernel(filterType, prefix)) {
+                int radius = Integer.parseInt(filterType.substring(prefix.length())) / 2;
+                return prefix + (2 * Math.round(radius * scale) + 1);
+            }
+        }
+        if (filterType.startsWith(RESIZE)) {
+            int[] size = resizedSize(filterType, 1, 1);
+            String[] parts = filterType.split("_");
+            return RESIZE + scaled(size[0], scale) + "x" + scaled(size[1], scale)
+                   + (parts.length == 3 ? "_" + parts[2] : "");
+        }
+        return filterType;
+    }
+
+    private static long scaledRadius(String radius, double scale) {
+        return Math.round(Integer.parseInt(radius) * scale);
+    }
+
+    /**
+     * The Sobel gradient magnitude of each pixel's intensity, in grey. A
+     * full-contrast step along a row or column comes out white.
+     */
+    public PixelBuffer sobel(PixelBuffer pixels) {
+        return sobel(pixels, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer sobel(PixelBuffer pixels, ProgressMonitor monitor) {
+        int width = pixels.getWidth();
+        EdgeMode edges = convolutionEngine.getEdgeMode();
+        int border = convolutionEngine.getBorderColour();
+        PixelBuffer result = new PixelBuffer(width, pixels.getHeight());
+        int[] dst = result.getPixels();
+        int[] magnitude = new int[dst.length];
+
+        convolutionEngine.forEachBand(pixels.getHeight(), PROGRESS_BAND_ROWS, monitor,
+                ConvolutionEngine.collecting(result, monitor, (y0, y1) -> {
+                    EdgeDetector.gradientRows(pixels, magnitude, null, edges, border, y0, y1);
+                    for (int i = y0 * width; i < y1 * width; i++) {
+                        int grey = PixelBuffer.clamp(Math.sqrt(magnitude[i]) / 4);
+                        dst[i] = PixelBuffer.pack(grey, grey, grey);
+                    }
+                }));
+        return result;
+    }
+
+    /**
+     * Canny edge detection: white lines one pixel wide where the smoothed
+     * intensity changes fastest, on black. Ridges of the gradient magnitude
+     * above {@code high} are edges, and so are ridges above {@code low}
+     * joined to them; see EdgeDetector.
+     */
+    public PixelBuffer canny(PixelBuffer pixels, int low, int high) {
+        return canny(pixels, low, high, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer canny(PixelBuffer pixels, int low, int high, ProgressMonitor monitor) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Canny thresholds must satisfy 0 <= low <= high: "
+                                               + low + ", " + high);
+        }
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        EdgeMode edges = convolutionEngine.getEdgeMode();
+        int border = convolutionEngine.getBorderColour();
+        // Magnitudes never exceed 1443, so larger thresholds are as good as infinite
+        int lowSquared = (int) Math.min(Integer.MAX_VALUE, (long) low * low);
+        int highSquared = (int) Math.min(Integer.MAX_VALUE, (long) high * high);
+        ProgressMonitor pass = monitor.perPass(4);
+
+        PixelBuffer smoothed = convolutionEngine.convolve(pixels, Kernel.gaussian(CANNY_GAUSSIAN_SIZE), pass);
+        int[] magnitude = new int[width * height];
+        byte[] direction = new byte[width * height];
+        convolutionEngine.forEachBand(height, PROGRESS_BAND_ROWS, pass,
+                (y0, y1) -> EdgeDetector.gradientRows(smoothed, magnitude, direction, edges, border, y0, y1));
+
+        byte[] state = new byte[width * height];
+        convolutionEngine.forEachBand(height, PROGRESS_BAND_ROWS, pass,
+                (y0, y1) -> EdgeDetector.suppressRows(magnitude, direction, state, width, height,
+                                                      lowSquared, highSquared, y0, y1));
+
+        if (monitor.isCancelled()) {
+            throw new CancellationException();
+        }
+        EdgeDetector.hysteresis(state, width, height);
+
+        PixelBuffer result = new PixelBuffer(width, height);
+        int[] dst = result.getPixels();
+        ProgressMonitor last = monitor.lastPass(4);
+        convolutionEngine.forEachBand(height, PROGRESS_BAND_ROWS, last, ConvolutionEngine.collecting(result, last,
+                (y0, y1) -> {
+                    for (int i = y0 * width; i < y1 * width; i++) {
+                        dst[i] = state[i] == EdgeDetector.EDGE ? PixelBuffer.WHITE : PixelBuffer.OPAQUE;
+                    }
+                }));
+        return result;
+    }
+
+    public PixelBuffer applySepia(PixelBuffer pixels) {
+        return applyPointOperation(pixels, ColorTransform.SEPIA);
+    }
+
+    public PixelBuffer applyGreyscale(PixelBuffer pixels) {
+        return applyPointOperation(pixels, ColorTransform.GREYSCALE);
+    }
+
+    public PixelBuffer applyPointOperation(PixelBuffer pixels, PointOperation operation) {
+        return applyPointOperation(pixels, operation, ProgressMonitor.NONE);
+    }
+
+    public PixelBuffer applyPointOperation(PixelBuffer pixels, PointOperation operation, ProgressMonitor monitor) {
+        int[] src = pixels.getPixels();
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        PixelBuffer result = new PixelBuffer(width, height);
+        int[] dst = result.getPixels();
+        ImageStatistics.Collector statistics = monitor.getStatistics();
+
+        for (int y0 = 0; y0 < height; y0 += PROGRESS_BAND_ROWS) {
+            if (monitor.isCancelled()) {
+                throw new CancellationException();
+            }
+            int y1 = Math.min(height, y0 + PROGRESS_BAND_ROWS);
+            operation.apply(src, dst, y0 * width, y1 * width);
+            if (statistics != null) {
+                statistics.add(dst, y0 * width, y1 * width);
+            }
+            monitor.rowsDone(y1 - y0, height);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the compiled point operation for SEPIA, GREYSCALE, INVERT,
+     *         BRIGHTNESS_<delta>, CONTRAST_<factor> or GAMMA_<gamma>, or null
+     *         for a convolution
+     */
+    public static ColorTransform pointOperation(String filterType) {
+        if (filterType.equals(SEPIA)) {
+            return ColorTransform.SEPIA;
+        } else if (filterType.equals(GREYSCALE)) {
+            return ColorTransform.GREYSCALE;
+        } else if (filterType.equals(INVERT)) {
+            return ColorTransform.INVERT;
+        } else if (filterType.startsWith("BRIGHTNESS_")) {
+            return ColorTransform.brightness(Integer.parseInt(filterType.substring("BRIGHTNESS_".length())));
+        } else if (filterType.startsWith("CONTRAST_")) {
+            return ColorTransform.contrast(Double.parseDouble(filterType.substring("CONTRAST_".length())));
+        } else if (filterType.startsWith("GAMMA_")) {
+            return ColorTransform.gamma(Double.parseDouble(filterType.substring("GAMMA_".length())));
+        }
+        return null;
+    }
+
+    public static int sepia(int argb) {
+        return ColorTransform.SEPIA.apply(argb);
+    }
+
+    public static int greyscale(int argb) {
+        return ColorTransform.GREYSCALE.apply(argb);
+    }
+
+    private static boolean isSizedKernel(String filterType, String prefix) {
+        if (!filterType.startsWith(prefix)) {
+            return false;
+        }
+        try {
+            int size = Integer.parseInt(filterType.substring(prefix.length()));
+            return size > 0 && size % 2 == 1;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+//Reads any ImageIO-supported file a band of rows at a time
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A {@code RowSource} over an ImageIO reader that decodes one band of rows per
+ * request through {@code ImageReadParam.setSourceRegion}. Only one band is
+ * held at a time. Formats whose readers cannot seek to a row (such as JPEG)
+ * re-scan from the top for each band, so PngRowReader is preferred for PNG.
+ */
+public class ImageIORowReader implements RowSource {
+
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final int bandRows;
+    private final int[] band;
+    private int bandStart;
+    private int bandEnd;
+    private int next;
+
+    public ImageIORowReader(File file, int bandRows) throws IOException {
+        this.stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("No ImageIO reader for " + file);
+        }
+        this.reader = readers.next();
+        reader.setInput(stream, true, true);
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+        this.bandRows = Math.max(1, Math.min(bandRows, height));
+        this.band = new int[this.bandRows * width];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int[] row, int offset) throws IOException {
+        if (next >= height) {
+            throw new EOFException("All " + height + " rows have already been read");
+        }
+        if (next >= bandEnd) {
+            bandStart = next;
+            bandEnd = Math.min(height, bandStart + bandRows);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, bandStart, width, bandEnd - bandStart));
+            BufferedImage decoded = reader.read(0, param);
+            decoded.getRGB(0, 0, width, bandEnd - bandStart, band, 0, width);
+        }
+        System.arraycopy(band, (next - bandStart) * width, row, offset, width);
+        next++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        stream.close();
+    }
+}
@@ -1,26 +1,34 @@
 //This is an image processing tool, enabling the use of different image filters
 
 import javafx.application.Application;
-import javafx.embed.swing.SwingFXUtils;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 
 public class ImageProcessor extends Application {
@@ -29,20 +37,115 @@ public class ImageProcessor extends Application {
     private static final int STAGE_WIDTH = 400;
     private static final int STAGE_HEIGHT = 400;
 
-    // Image filters to be implemented
-    private static final String[] filterTypes = {"IDENTITY","BLUR", "SHARPEN", "EMBOSS", "EDGE"};
-
-    private Image image;
+    // Images are shown scaled down to fit this box
+    private static final int PREVIEW_WIDTH = STAGE_WIDTH - 20;
+    private static final int PREVIEW_HEIGHT = STAGE_HEIGHT - 20;
+
+    // Images at least twice the size of the preview box are filtered at 1/8,
+    // 1/4 and 1/2 scale first, each shown as soon as it is ready
+    private static final int PROXY_LEVELS = 3;
+
+    // Steps that can be undone before the oldest is folded into the base image
+    private static final int HISTORY_STEPS = 50;
+
+    // The full-resolution image as filtered so far, its downscaled proxies
+    // (element 0 is current itself), the level of it the preview box shows,
+    // and what is on screen
+    private PixelBuffer current;
+    private PixelBuffer[] proxies;
+    private int previewLevel;
+    private PixelBuffer currentPreview;
+    private EditHistory history;
+    // The cache key of the open file's decoded original
+    private String currentKey;
+    private long historyBudget = Runtime.getRuntime().maxMemory() / 8;
     private ImageView imgv;
     private VBox vbox;
     private Scene scene;
     private ArrayList<MenuItem> menuItems;
     private String currentFilename;
+    private ImageFilters filters = new ImageFilters(new ConvolutionEngine());
+    private ProgressBar progressBar;
+    private Label statusLabel;
+    private FilterTask currentTask;
+    private volatile OperationTimer lastTimings;
+    // Of the image as opened and as it is now, gathered while filtering
+    private ImageStatistics originalStatistics;
+    private ImageStatistics currentStatistics;
+    private ExportSettings exportSettings = ExportSettings.DEFAULT;
+    private final ImageExporter exporter = new ImageExporter(1, 4);
+    private final ImageCache cache = new ImageCache(Runtime.getRuntime().maxMemory() / 4);
+
+    // One background thread; a superseded task notices its cancellation at the next band
+    private final ExecutorService filterExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "filter-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ImageProcessor() {
 
     }
 
+    public void setParallelism(int parallelism) {
+        ConvolutionEngine engine = filters.getConvolutionEngine();
+        setConvolutionEngine(new ConvolutionEngine(parallelism, engine.getEdgeMode(), engine.getBorderColour(),
+                                                   engine.isFixedPoint()));
+    }
+
+    /**
+     * How convolutions read beyond the edge of the image; see EdgeMode.
+     */
+    public void setEdgeMode(EdgeMode edgeMode) {
+        ConvolutionEngine engine = filters.getConvolutionEngine();
+        setConvolutionEngine(new ConvolutionEngine(engine.getParallelism(), edgeMode, engine.getBorderColour(),
+                                                   engine.isFixedPoint()));
+    }
+
+    /**
+     * Whether convolutions use integer weights and accumulators rather than
+     * floats; see FixedPointKernel.
+     */
+    public void setFixedPoint(boolean fixedPoint) {
+        ConvolutionEngine engine = filters.getConvolutionEngine();
+        setConvolutionEngine(new ConvolutionEngine(engine.getParallelism(), engine.getEdgeMode(),
+                                                   engine.getBorderColour(), fixedPoint));
+    }
+
+    /**
+     * The most memory, in bytes, to spend on decoded originals and their
+     * previews; a quarter of the heap unless set.
+     */
+    public void setCacheBudget(long bytes) {
+        cache.setBudget(bytes);
+    }
+
+    /**
+     * The most memory, in bytes, to spend on undo deltas; an eighth of the
+     * heap unless set. Steps beyond it are recomputed instead.
+     */
+    public void setHistoryBudget(long bytes) {
+        historyBudget = bytes;
+        if (history != null) {
+            history.setBudget(bytes);
+        }
+    }
+
+    private void setConvolutionEngine(ConvolutionEngine engine) {
+        ConvolutionEngine old = filters.getConvolutionEngine();
+        filters = new ImageFilters(engine);
+        // The filter thread runs one task at a time, so this waits for any task still using the old engine
+        filterExecutor.execute(old::shutdown);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        filterExecutor.shutdownNow();
+        filters.getConvolutionEngine().shutdown();
+        // Let saves already queued reach the disk
+        exporter.shutdown();
+    }
+
     public Color[][] applyFilter(Color[][] pixels, float[][] filter) {
         Color[][] result = new Color[pixels.length - 2][pixels[0].length - 2];
 
@@ -99,64 +202,20 @@ public class ImageProcessor extends Application {
         return result;
     }
 
-    public float[][] createFilter(String filterType) {
-        int x = 3;
-        int y = 3;
+    public PixelBuffer applyFilter(PixelBuffer pixels, float[][] filter) {
+        return filters.applyFilter(pixels, new Kernel(filter));
+    }
 
-        float[][] filter = new float[x][y];
+    public PixelBuffer applyFilter(PixelBuffer pixels, Kernel kernel) {
+        return filters.applyFilter(pixels, kernel);
+    }
 
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                filter[i][j] = 0;
-            }
-        }
+    public Kernel createKernel(String filterType) {
+        return filters.createKernel(filterType);
+    }
 
-        if (filterType.equals(filterTypes[0])) {
-            for (int i = 0; i < x; i++) {
-                for (int j = 0; j < y; j++) {
-                    filter[i][j] = 0;
-                }
-            }
-            filter[1][1] = 1;
-        } else if (filterType.equals(filterTypes[1])) {
-            filter[0][0] = 0.0625f;
-            filter[0][1] = 0.125f;
-            filter[0][2] = 0.0625f;
-            filter[1][0] = 0.125f;
-            filter[1][1] = 0.25f;
-            filter[1][2] = 0.125f;
-            filter[2][0] = 0.0625f;
-            filter[2][1] = 0.125f;
-            filter[2][2] = 0.0625f;
-        } else if (filterType.equals(filterTypes[2])) {
-            filter[0][0] = 0;
-            filter[0][1] = -1;
-            filter[0][2] = 0;
-            filter[1][0] = -1;
-            filter[1][1] = 5;
-            filter[1][2] = -1;
-            filter[2][0] = 0;
-            filter[2][1] = -1;
-            filter[2][2] = 0;
-        } else if (filterType.equals(filterTypes[3])) {
-            filter[0][0] = -2;
-            filter[0][1] = -1;
-            filter[0][2] = 0;
-            filter[1][0] = -1;
-            filter[1][1] = 0;
-            filter[1][2] = 1;
-            filter[2][0] = 0;
-            filter[2][1] = 1;
-            filter[2][2] = 2;
-        } else if (filterType.equals(filterTypes[4])) {
-            for (int i = 0; i < x; i++) {
-                for (int j = 0; j < y; j++) {
-                    filter[i][j] = -1;
-                }
-            }
-            filter[1][1] = 8;
-        }
-        return filter;
+    public float[][] createFilter(String filterType) {
+        return filters.createFilter(filterType);
     }
 
     public Color[][] applySepia(Color[][] pixels) {
@@ -240,127 +299,233 @@ public class ImageProcessor extends Application {
         return result;
     }
 
-    public void filterImage(String filterType) {
-
-        Color[][] pixels = getPixelDataExtended();
-
-        float[][] filter = createFilter(filterType);
-
-        Color[][] filteredImage = applyFilter(pixels, filter);
-
-        WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
+    public PixelBuffer applySepia(PixelBuffer pixels) {
+        return filters.applySepia(pixels);
+    }
 
-        PixelWriter pw = wimg.getPixelWriter();
+    public PixelBuffer applyGreyscale(PixelBuffer pixels) {
+        return filters.applyGreyscale(pixels);
+    }
 
-        for (int i = 0; i < wimg.getHeight(); i++) {
-            for (int j = 0; j < wimg.getWidth(); j++) {
-                pw.setColor(i, j, filteredImage[i][j]);
-            }
+    public void filterImage(String filterType) {
+        // Checked before anything runs: createKernel would turn an unknown name into an all-zero kernel
+        if (!ImageFilters.isFilterType(filterType)) {
+            throw new IllegalArgumentException("Unknown filter type: " + filterType);
         }
-
-        File newFile = new File("filtered_" + filterType + "_" + this.currentFilename);
-
-        try {
-            ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-        } catch (Exception s) {
+        if (!ImageFilters.isStreamable(filterType) || ImageFilters.isResize(filterType)
+                || ImageFilters.pointOperation(filterType) != null) {
+            // Undo may replay the filter after the settings change, so it keeps these filters
+            ImageFilters active = filters;
+            runFilter(filterType, List.of(filterType), (pixels, monitor) -> active.apply(filterType, pixels, monitor));
+            return;
         }
+        Kernel kernel = createKernel(filterType);
+        ImageFilters active = filters;
+        runFilter(filterType, List.of(filterType), (pixels, monitor) -> active.applyFilter(pixels, kernel, monitor));
+    }
 
-        initialiseVBox(false);
+    public void filterChain(List<String> filterTypes) {
+        FilterPipeline pipeline = new FilterPipeline(filters, filterTypes);
+        runFilter(String.join("_", filterTypes), filterTypes, pipeline::apply);
+    }
 
-        image = wimg;
-        imgv = new ImageView(wimg);
-        vbox.getChildren().add(imgv);
+    /**
+     * Run a point operation by name, e.g. INVERT, BRIGHTNESS_20 or GAMMA_2.2.
+     */
+    public void pointOperation(String filterType) {
+        ColorTransform operation = ImageFilters.pointOperation(filterType);
+        if (operation == null) {
+            throw new IllegalArgumentException("Not a point operation: " + filterType);
+        }
+        ImageFilters active = filters;
+        runFilter(filterType, List.of(filterType),
+                  (pixels, monitor) -> active.applyPointOperation(pixels, operation, monitor));
     }
 
     private void sepia() {
+        pointOperation(ImageFilters.SEPIA);
+    }
 
-        Color[][] pixels = getPixelData();
-
-        Color[][] newPixels = applySepia(pixels);
-
-        WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-
-        PixelWriter pw = wimg.getPixelWriter();
+    private void greyscale() {
+        pointOperation(ImageFilters.GREYSCALE);
+    }
 
-        for (int i = 0; i < wimg.getHeight(); i++) {
-            for (int j = 0; j < wimg.getWidth(); j++) {
-                pw.setColor(i, j, newPixels[i][j]);
+    /**
+     * Run a filter on a background thread, superseding any filter still running,
+     * and record it in the history. Only swapping the result in touches the FX
+     * thread. {@code filterTypes} names what {@code filter} does, so that the
+     * proxies can be previewed with the same chain scaled to their size.
+     */
+    private void runFilter(String name, List<String> filterTypes,
+                           BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> filter) {
+        File newFile = new File("filtered_" + name + "_" + baseName(currentFilename) + "."
+                                + exportSettings.getFormat().getExtension());
+        EditHistory steps = history;
+        OperationTimer timings = newTimings(name);
+        ImageFilters active = filters;
+        FilterTask task = new FilterTask(proxies, previewLevel, filter,
+                                         level -> proxyFilter(active, filterTypes, level), name, steps, timings);
+
+        // Refinements of a superseded task never reach the screen
+        task.setOnPreview(filtered -> {
+            if (task == currentTask) {
+                showImage(filtered);
             }
-        }
-
-        File newFile = new File("filtered_SEPIA_" + this.currentFilename);
+        });
+        startTask(task, result -> {
+            // The export reports the timings once it has finished encoding
+            exportResult(result, newFile, timings);
+            steps.push(task.getEdit());
+            currentStatistics = task.getResultStatistics();
+            timings.time("display", task.getPreview().getPixels().length, () -> {
+                showState(task.getPyramid(), task.getPreview());
+                return null;
+            });
+        });
+    }
 
-        try {
-            ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-        } catch (Exception s) {
+    /**
+     * Step back to the state before the last filter, if there is one.
+     */
+    public void undo() {
+        if (history != null && history.canUndo()) {
+            restore(history.getPosition() - 1, "UNDO");
         }
-
-        initialiseVBox(false);
-
-        image = wimg;
-        imgv = new ImageView(wimg);
-        vbox.getChildren().add(imgv);
     }
 
-    private void greyscale() {
-        Color[][] pixels = getPixelData();
-
-        Color[][] newPixels = applyGreyscale(pixels);
-
-        WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-
-        PixelWriter pw = wimg.getPixelWriter();
-
-        for (int i = 0; i < wimg.getHeight(); i++) {
-            for (int j = 0; j < wimg.getWidth(); j++) {
-                pw.setColor(i, j, newPixels[i][j]);
-            }
+    public void redo() {
+        if (history != null && history.canRedo()) {
+            restore(history.getPosition() + 1, "REDO");
         }
+    }
 
-        File newFile = new File("filtered_GREYSCALE_" + this.currentFilename);
+    /**
+     * Rebuild state {@code index} of the history in the background, from
+     * deltas where it can and by rerunning filters where it must. Nothing is
+     * decoded or saved. {@code operation} names it in the timings.
+     */
+    private void restore(int index, String operation) {
+        EditHistory steps = history;
+        OperationTimer timings = newTimings(operation);
+        // No proxies: the history only knows how to rebuild the full image
+        PixelBuffer[] full = {current};
+        FilterTask task = new FilterTask(full, previewLevel,
+                                         (pixels, monitor) -> steps.stateAt(index, pixels, monitor),
+                                         level -> null, null, null, timings);
+
+        startTask(task, result -> {
+            steps.moveTo(index);
+            currentStatistics = task.getResultStatistics();
+            timings.time("display", task.getPreview().getPixels().length, () -> {
+                showState(task.getPyramid(), task.getPreview());
+                return null;
+            });
+            reportTimings(timings);
+        });
+    }
 
-        try {
-            ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-        } catch (Exception s) {
-        }
+    // Timings for an operation on the current image; its work runs on the
+    // engine's workers, so allocation is counted over all threads
+    private OperationTimer newTimings(String operation) {
+        OperationTimer timings = new OperationTimer(operation, currentFilename, true);
+        timings.setSize(current.getWidth(), current.getHeight());
+        return timings;
+    }
 
-        initialiseVBox(false);
+    /**
+     * Run {@code task} on the filter thread in place of any task still
+     * running, handing its result to {@code onResult} on the FX thread unless
+     * it has been superseded by then.
+     */
+    private void startTask(FilterTask task, Consumer<PixelBuffer> onResult) {
+        if (currentTask != null) {
+            currentTask.cancel();
+        }
 
-        image = wimg;
-        imgv = new ImageView(wimg);
-        vbox.getChildren().add(imgv);
+        task.setOnSucceeded(e -> {
+            if (task != currentTask) {
+                return;
+            }
+            finishTask();
+            onResult.accept(task.getValue());
+            updateHistoryMenu();
+        });
+        task.setOnCancelled(e -> {
+            if (task == currentTask) {
+                finishTask();
+                // Take down a preview of the result that will not come
+                showImage(currentPreview);
+            }
+        });
+        task.setOnFailed(e -> {
+            if (task == currentTask) {
+                finishTask();
+                showImage(currentPreview);
+                Alert alert = new Alert(AlertType.ERROR, "Filter failed: " + task.getException(), ButtonType.OK);
+                alert.showAndWait();
+            }
+        });
 
+        currentTask = task;
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressBar.setVisible(true);
+        enableMenuItem("cancel");
+        filterExecutor.execute(task);
     }
 
-    private Color[][] getPixelData() {
-        PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[(int) image.getWidth()][(int) image.getHeight()];
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixels[i][j] = pr.getColor(i, j);
+    private void exportResult(PixelBuffer result, File file, OperationTimer timings) {
+        statusLabel.setText("Saving " + file.getName() + "...");
+        exporter.export(result, file, exportSettings).whenComplete((saved, error) -> Platform.runLater(() -> {
+            if (error == null) {
+                timings.add("encode", result.getPixels().length, saved.getEncodeNanos(), saved.getAllocatedBytes());
+                reportTimings(timings);
+            } else if (error instanceof RejectedExecutionException) {
+                // Earlier saves are still being encoded; the step itself is kept in the history
+                statusLabel.setText(error.getMessage());
+            } else {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                statusLabel.setText("Could not save " + file.getName());
+                Alert alert = new Alert(AlertType.ERROR, "Could not save " + file.getName() + ": "
+                                        + cause.getMessage(), ButtonType.OK);
+                alert.showAndWait();
             }
-        }
+        }));
+    }
 
-        return pixels;
+    /**
+     * The stage timings of the last operation to finish, or null if none has.
+     */
+    public OperationTimer getLastTimings() {
+        return lastTimings;
     }
 
-    private Color[][] getPixelDataExtended() {
-        PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
+    // Show a finished operation's breakdown in the status bar and log it
+    private void reportTimings(OperationTimer timings) {
+        lastTimings = timings;
+        statusLabel.setText(timings.summary());
+        timings.log();
+    }
 
-        for (int i = 0; i < pixels.length; i++) {
-            for (int j = 0; j < pixels.length; j++) {
-                pixels[i][j] = new Color(1.0, 1.0, 1.0, 1.0);
-            }
-        }
+    public void setExportSettings(ExportSettings exportSettings) {
+        this.exportSettings = exportSettings;
+    }
 
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixels[i + 1][j + 1] = pr.getColor(i, j);
-            }
+    private static String baseName(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot > 0 ? filename.substring(0, dot) : filename;
+    }
+
+    private void cancelFilter() {
+        if (currentTask != null) {
+            currentTask.cancel();
         }
+    }
 
-        return pixels;
+    private void finishTask() {
+        currentTask = null;
+        progressBar.progressProperty().unbind();
+        progressBar.setVisible(false);
+        disableMenuItem("cancel");
     }
 
     private void initialiseStage(Stage stage) {
@@ -398,6 +563,7 @@ public class ImageProcessor extends Application {
                 if (file != null) {
                     enableAllMenuItems();
                     disableMenuItem("open");
+                    disableMenuItem("cancel");
                     openFile(file);
                 }
             }
@@ -417,6 +583,17 @@ public class ImageProcessor extends Application {
 
         menuFile.getItems().add(close);
 
+        MenuItem statistics = getMenuItem("statistics");
+
+        statistics.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                showStatistics();
+            }
+        });
+
+        menuFile.getItems().add(statistics);
+
         Menu menuTools = new Menu("Tools");
 
         MenuItem greyscale = getMenuItem("greyscale");
@@ -441,6 +618,105 @@ public class ImageProcessor extends Application {
 
         menuTools.getItems().add(blur);
 
+        MenuItem wideBlur = getMenuItem("wide blur");
+
+        wideBlur.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("BOX_BLUR_25");
+            }
+        });
+
+        menuTools.getItems().add(wideBlur);
+
+        MenuItem wideGaussian = getMenuItem("wide gaussian");
+
+        wideGaussian.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("GAUSSIAN_BLUR_25");
+            }
+        });
+
+        menuTools.getItems().add(wideGaussian);
+
+        MenuItem median = getMenuItem("median");
+
+        median.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("MEDIAN_2");
+            }
+        });
+
+        menuTools.getItems().add(median);
+
+        MenuItem erode = getMenuItem("erode");
+
+        erode.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("MIN_1");
+            }
+        });
+
+        menuTools.getItems().add(erode);
+
+        MenuItem dilate = getMenuItem("dilate");
+
+        dilate.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("MAX_1");
+            }
+        });
+
+        menuTools.getItems().add(dilate);
+
+        MenuItem sobel = getMenuItem("sobel");
+
+        sobel.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("SOBEL");
+            }
+        });
+
+        menuTools.getItems().add(sobel);
+
+        MenuItem canny = getMenuItem("canny");
+
+        canny.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("CANNY");
+            }
+        });
+
+        menuTools.getItems().add(canny);
+
+        MenuItem halfSize = getMenuItem("half size");
+
+        halfSize.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("SCALE_0.5_AREA");
+            }
+        });
+
+        menuTools.getItems().add(halfSize);
+
+        MenuItem doubleSize = getMenuItem("double size");
+
+        doubleSize.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                filterImage("SCALE_2_LANCZOS3");
+            }
+        });
+
+        menuTools.getItems().add(doubleSize);
+
         MenuItem sharpen = getMenuItem("sharpen");
 
         sharpen.setOnAction(new EventHandler<ActionEvent>() {
@@ -474,6 +750,17 @@ public class ImageProcessor extends Application {
 
         menuTools.getItems().add(sepia);
 
+        MenuItem invert = getMenuItem("invert");
+
+        invert.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                pointOperation(ImageFilters.INVERT);
+            }
+        });
+
+        menuTools.getItems().add(invert);
+
         MenuItem emboss = getMenuItem("emboss");
 
         emboss.setOnAction(new EventHandler<ActionEvent>() {
@@ -496,6 +783,28 @@ public class ImageProcessor extends Application {
 
         menuTools.getItems().add(identity);
 
+        MenuItem undo = getMenuItem("undo");
+
+        undo.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                undo();
+            }
+        });
+
+        menuTools.getItems().add(undo);
+
+        MenuItem redo = getMenuItem("redo");
+
+        redo.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                redo();
+            }
+        });
+
+        menuTools.getItems().add(redo);
+
         MenuItem reset = getMenuItem("reset");
 
         reset.setOnAction(new EventHandler<ActionEvent>() {
@@ -507,20 +816,122 @@ public class ImageProcessor extends Application {
 
         menuTools.getItems().add(reset);
 
+        MenuItem cancel = getMenuItem("cancel");
+
+        cancel.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent t) {
+                cancelFilter();
+            }
+        });
+
+        menuTools.getItems().add(cancel);
+
+        Menu menuExport = new Menu("Export");
+
+        ToggleGroup formats = new ToggleGroup();
+
+        for (ExportFormat format : ExportFormat.values()) {
+            RadioMenuItem item = new RadioMenuItem(format.name());
+            item.setToggleGroup(formats);
+            item.setSelected(format == exportSettings.getFormat());
+            item.setOnAction(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent t) {
+                    setExportSettings(exportSettings.withFormat(format));
+                }
+            });
+            menuExport.getItems().add(item);
+        }
+
+        Menu menuEdges = new Menu("Edges");
+
+        ToggleGroup edgeModes = new ToggleGroup();
+
+        for (EdgeMode edgeMode : EdgeMode.values()) {
+            RadioMenuItem item = new RadioMenuItem(edgeMode.name());
+            item.setToggleGroup(edgeModes);
+            item.setSelected(edgeMode == filters.getConvolutionEngine().getEdgeMode());
+            item.setOnAction(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent t) {
+                    setEdgeMode(edgeMode);
+                }
+            });
+            menuEdges.getItems().add(item);
+        }
+
+        Menu menuArithmetic = new Menu("Arithmetic");
+
+        ToggleGroup arithmetic = new ToggleGroup();
+
+        for (boolean fixedPoint : new boolean[] {false, true}) {
+            RadioMenuItem item = new RadioMenuItem(fixedPoint ? "Fixed Point" : "Float");
+            item.setToggleGroup(arithmetic);
+            item.setSelected(fixedPoint == filters.getConvolutionEngine().isFixedPoint());
+            item.setOnAction(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent t) {
+                    setFixedPoint(fixedPoint);
+                }
+            });
+            menuArithmetic.getItems().add(item);
+        }
+
         MenuBar menuBar = new MenuBar();
 
-        menuBar.getMenus().addAll(menuFile, menuTools);
+        menuBar.getMenus().addAll(menuFile, menuTools, menuExport, menuEdges, menuArithmetic);
 
-        ((VBox) scene.getRoot()).getChildren().addAll(menuBar, vbox);
+        progressBar = new ProgressBar();
+        progressBar.setMaxWidth(Double.MAX_VALUE);
+        progressBar.setVisible(false);
+
+        statusLabel = new Label();
+
+        ((VBox) scene.getRoot()).getChildren().addAll(menuBar, progressBar, vbox, statusLabel);
 
         stage.setScene(scene);
 
         stage.show();
     }
 
+    /**
+     * Go back to the image as opened, or to the oldest state the history
+     * still holds if older steps have been folded into its base. It is a
+     * move through the history like undo, so every step can be redone
+     * afterwards. While the opened image is still the base and still cached,
+     * and no filter is running, its pyramid and statistics come straight from
+     * the cache and the reset is instant; otherwise the base is restored off
+     * the FX thread, which EditHistory.stateAt returns without applying any
+     * deltas.
+     */
     protected void reset() {
-        initialiseVBox(false);
-        openFile(new File(currentFilename));
+        if (history == null || !history.canUndo()) {
+            return;
+        }
+        PixelBuffer original = cache.get(currentKey, 0);
+        // A running task is superseded through startTask, so its result cannot land after the reset
+        if (original == null || original != history.getBase() || currentTask != null) {
+            restore(0, "RESET");
+            return;
+        }
+        OperationTimer timings = newTimings("RESET");
+        PixelBuffer[] pyramid = timings.time("pyramid", original.getPixels().length,
+                                             () -> cachedPyramid(currentKey, original));
+        PixelBuffer preview = cachedPreview(currentKey, pyramid);
+        history.moveTo(0);
+        updateHistoryMenu();
+        currentStatistics = originalStatistics;
+        timings.time("display", preview.getPixels().length, () -> {
+            showState(pyramid, preview);
+            return null;
+        });
+        reportTimings(timings);
+    }
+
+    private void updateHistoryMenu() {
+        getMenuItem("undo").setDisable(history == null || !history.canUndo());
+        getMenuItem("redo").setDisable(history == null || !history.canRedo());
     }
 
     private void initialiseVBox(boolean create) {
@@ -543,14 +954,28 @@ public class ImageProcessor extends Application {
         menuItems = new ArrayList<MenuItem>();
         menuItems.add(new MenuItem("Open"));
         menuItems.add(new MenuItem("Close"));
+        menuItems.add(new MenuItem("Statistics"));
         menuItems.add(new MenuItem("Greyscale"));
         menuItems.add(new MenuItem("Blur"));
+        menuItems.add(new MenuItem("Wide Blur"));
+        menuItems.add(new MenuItem("Wide Gaussian"));
+        menuItems.add(new MenuItem("Median"));
+        menuItems.add(new MenuItem("Erode"));
+        menuItems.add(new MenuItem("Dilate"));
+        menuItems.add(new MenuItem("Sobel"));
+        menuItems.add(new MenuItem("Canny"));
+        menuItems.add(new MenuItem("Half Size"));
+        menuItems.add(new MenuItem("Double Size"));
         menuItems.add(new MenuItem("Sharpen"));
         menuItems.add(new MenuItem("Sepia"));
+        menuItems.add(new MenuItem("Invert"));
         menuItems.add(new MenuItem("Emboss"));
         menuItems.add(new MenuItem("Edge"));
         menuItems.add(new MenuItem("Identity"));
+        menuItems.add(new MenuItem("Undo"));
+        menuItems.add(new MenuItem("Redo"));
         menuItems.add(new MenuItem("Reset"));
+        menuItems.add(new MenuItem("Cancel"));
         disableAllMenuItems();
     }
 
@@ -593,24 +1018,321 @@ public class ImageProcessor extends Application {
     }
 
     private void closeFile() {
+        cancelFilter();
         enableMenuItem("open");
         initialiseVBox(false);
+        current = null;
+        proxies = null;
+        currentPreview = null;
+        history = null;
+        originalStatistics = null;
+        currentStatistics = null;
     }
 
     private void openFile(File file) {
+        // The modification time keeps an edited file from being served stale
+        String key = file.getAbsolutePath() + "@" + file.lastModified();
+        OperationTimer timings = new OperationTimer("OPEN", file.getName(), true);
+        OperationTimer.Clock decode = timings.start();
+        PixelBuffer original = cache.get(key, 0);
+        if (original == null) {
+            try {
+                original = RawImageFile.isRawImage(file) ? RawImageFile.read(file)
+                           : FxImageConverter.toPixelBuffer(new Image("file:" + file.getPath()));
+            } catch (IOException e) {
+                closeFile();
+                Alert alert = new Alert(AlertType.ERROR, "Could not open " + file.getName() + ": "
+                                        + e.getMessage(), ButtonType.OK);
+                alert.showAndWait();
+                return;
+            }
+            cache.put(key, original);
+        }
+        // A cache hit shows up as a decode stage of next to nothing
+        decode.stop("decode", original.getPixels().length);
+        timings.setSize(original.getWidth(), original.getHeight());
+
+        OperationTimer.Clock proxyClock = timings.start();
+        previewLevel = ImageCache.levelFor(original.getWidth(), original.getHeight(), PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        PixelBuffer[] pyramid = cachedPyramid(key, original);
+        PixelBuffer preview = cachedPreview(key, pyramid);
+        proxyClock.stop("pyramid", original.getPixels().length);
+
+        // Cached with the original, so reopening the same file skips the pass over every pixel
+        originalStatistics = cache.getStatistics(key);
+        if (originalStatistics == null) {
+            PixelBuffer opened = original;
+            originalStatistics = timings.time("statistics", opened.getPixels().length,
+                                              () -> ImageStatistics.of(opened, filters.getConvolutionEngine()));
+            cache.putStatistics(key, originalStatistics);
+        }
+        currentStatistics = originalStatistics;
 
-        image = new Image("file:" + file.getPath());
+        currentKey = key;
+        currentFilename = file.getName();
+        history = new EditHistory(original, HISTORY_STEPS, historyBudget);
+        updateHistoryMenu();
+        PixelBuffer shown = preview;
+        timings.time("display", shown.getPixels().length, () -> {
+            showState(pyramid, shown);
+            return null;
+        });
+        reportTimings(timings);
+    }
 
-        if (image.getWidth() != image.getHeight()) {
-            Alert alert = new Alert(AlertType.ERROR, "Image is not square.", ButtonType.OK);
-            alert.showAndWait();
+    /**
+     * Show the histograms and channel statistics of the image as opened and
+     * as it is now.
+     */
+    private void showStatistics() {
+        if (currentStatistics == null) {
             return;
         }
+        VBox content = new VBox(10);
+        content.getChildren().addAll(new Label("Opened: " + originalStatistics.summary()),
+                                     histogramCanvas(originalStatistics),
+                                     new Label("Current: " + currentStatistics.summary()),
+                                     histogramCanvas(currentStatistics));
+        Alert alert = new Alert(AlertType.INFORMATION, null, ButtonType.OK);
+        alert.setTitle("Statistics");
+        alert.setHeaderText(currentFilename);
+        alert.getDialogPane().setContent(content);
+        alert.showAndWait();
+    }
+
+    // One level per pixel across, each channel scaled to its own fullest level
+    private static Canvas histogramCanvas(ImageStatistics statistics) {
+        Canvas canvas = new Canvas(256, 100);
+        GraphicsContext graphics = canvas.getGraphicsContext2D();
+        Color[] colours = {Color.RED, Color.GREEN, Color.BLUE};
+        for (int channel = ImageStatistics.RED; channel <= ImageStatistics.BLUE; channel++) {
+            long[] histogram = statistics.getHistogram(channel);
+            long fullest = 1;
+            for (long n : histogram) {
+                fullest = Math.max(fullest, n);
+            }
+            graphics.setStroke(colours[channel]);
+            graphics.beginPath();
+            for (int v = 0; v < histogram.length; v++) {
+                double y = canvas.getHeight() * (1 - (double) histogram[v] / fullest);
+                if (v == 0) {
+                    graphics.moveTo(v + 0.5, y);
+                } else {
+                    graphics.lineTo(v + 0.5, y);
+                }
+            }
+            graphics.stroke();
+        }
+        return canvas;
+    }
+
+    // The pyramid over original, cached as key, with the levels the cache has kept
+    private PixelBuffer[] cachedPyramid(String key, PixelBuffer original) {
+        PixelBuffer[] pyramid = new PixelBuffer[proxyLevels(previewLevel) + 1];
+        pyramid[0] = original;
+        for (int level = 1; level < pyramid.length; level++) {
+            pyramid[level] = cache.get(key, level);
+            if (pyramid[level] == null) {
+                // The original alone is over the budget
+                pyramid[level] = ImageCache.downsample(pyramid[level - 1], 1);
+            }
+        }
+        return pyramid;
+    }
+
+    private PixelBuffer cachedPreview(String key, PixelBuffer[] pyramid) {
+        PixelBuffer preview = cache.get(key, previewLevel);
+        return preview != null ? preview : shownLevel(pyramid, previewLevel);
+    }
+
+    private void showState(PixelBuffer[] pyramid, PixelBuffer preview) {
+        current = pyramid[0];
+        proxies = pyramid;
+        currentPreview = preview;
+        showImage(preview);
+    }
+
+    // The chain with each filter scaled to proxy level, or null if one of them
+    // cannot be previewed that coarsely, in which case that proxy is skipped
+    private static BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> proxyFilter(ImageFilters active,
+                                                                                     List<String> filterTypes,
+                                                                                     int level) {
+        List<String> scaled = new ArrayList<>();
+        for (String filterType : filterTypes) {
+            String atLevel = ImageFilters.atLevel(filterType, level);
+            if (atLevel == null) {
+                return null;
+            }
+            scaled.add(atLevel);
+        }
+        return new FilterPipeline(active, scaled)::apply;
+    }
 
-        imgv = new ImageView();
-        imgv.setImage(image);
+    // Small images are quick to filter at full size and get no proxies
+    private static int proxyLevels(int previewLevel) {
+        return previewLevel == 0 ? 0 : PROXY_LEVELS;
+    }
+
+    // Level previewLevel of the image whose pyramid this is, taken from the
+    // finest proxy at or below it
+    private static PixelBuffer shownLevel(PixelBuffer[] pyramid, int previewLevel) {
+        int level = Math.min(previewLevel, pyramid.length - 1);
+        return ImageCache.downsample(pyramid[level], previewLevel - level);
+    }
+
+    /**
+     * Show {@code preview} in place of whatever is shown, scaled to the size
+     * the full image would have when fitted to the preview box.
+     */
+    private void showImage(PixelBuffer preview) {
+        double scale = Math.min(1, Math.min((double) PREVIEW_WIDTH / current.getWidth(),
+                                            (double) PREVIEW_HEIGHT / current.getHeight()));
+        initialiseVBox(false);
+        imgv = new ImageView(FxImageConverter.toWritableImage(preview));
+        imgv.setFitWidth(current.getWidth() * scale);
+        imgv.setFitHeight(current.getHeight() * scale);
+        imgv.setSmooth(true);
         vbox.getChildren().add(imgv);
-        currentFilename = file.getName();
+    }
+
+    /**
+     * Filters the image's pixels, reporting progress as bands of rows finish.
+     * Given proxies, it filters the coarsest first and works up, handing each
+     * result to the FX thread as it is ready, so the effect shows long before
+     * the full image is done. Afterwards it builds the result's own proxies
+     * and preview from the full result, so that errors in the proxies do not
+     * build up from one filter to the next. Saving is left to the exporter.
+     */
+    private static class FilterTask extends Task<PixelBuffer> implements ProgressMonitor {
+        private final PixelBuffer[] proxies;
+        private final int previewLevel;
+        private final BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> filter;
+        private final IntFunction<BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer>> proxyFilter;
+        private final AtomicLong rowsDone = new AtomicLong();
+        private final String name;
+        private final EditHistory history;
+        private final OperationTimer timings;
+        private Consumer<PixelBuffer> onPreview = filtered -> { };
+        private volatile PixelBuffer[] pyramid;
+        private volatile PixelBuffer preview;
+        private volatile EditHistory.Edit edit;
+        private final ImageStatistics.Collector collector = new ImageStatistics.Collector();
+        private volatile ImageStatistics statistics;
+
+        /**
+         * @param proxies      the image to filter followed by any proxies to
+         *                     filter first, coarser by a factor of two each
+         * @param previewLevel the pyramid level the preview box shows
+         * @param proxyFilter  the filter to run on each proxy level in place
+         *                     of {@code filter}, whose parameters are for the
+         *                     full image, or null to leave that level out
+         * @param history      where the step named {@code name} will be
+         *                     recorded, or null if the task is not a new step
+         * @param timings      where each stage's time is recorded
+         */
+        FilterTask(PixelBuffer[] proxies, int previewLevel,
+                   BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> filter,
+                   IntFunction<BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer>> proxyFilter, String name,
+                   EditHistory history, OperationTimer timings) {
+            this.proxies = proxies;
+            this.previewLevel = previewLevel;
+            this.filter = filter;
+            this.proxyFilter = proxyFilter;
+            this.name = name;
+            this.history = history;
+            this.timings = timings;
+        }
+
+        /**
+         * Called on the FX thread with each refinement, at the preview level.
+         */
+        void setOnPreview(Consumer<PixelBuffer> onPreview) {
+            this.onPreview = onPreview;
+        }
+
+        /**
+         * The result followed by its proxies.
+         */
+        PixelBuffer[] getPyramid() {
+            return pyramid;
+        }
+
+        /**
+         * The result at the preview level.
+         */
+        PixelBuffer getPreview() {
+            return preview;
+        }
+
+        /**
+         * The step ready to push onto the history, once the task has succeeded.
+         */
+        EditHistory.Edit getEdit() {
+            return edit;
+        }
+
+        /**
+         * The result's statistics, once the task has succeeded.
+         */
+        ImageStatistics getResultStatistics() {
+            return statistics;
+        }
+
+        // The full-size filter pass counts its output here; proxies do not
+        @Override
+        public ImageStatistics.Collector getStatistics() {
+            return collector;
+        }
+
+        @Override
+        protected PixelBuffer call() {
+            // Cancellable, but proxy rows are not part of the reported progress
+            ProgressMonitor proxyMonitor = new ProgressMonitor() {
+                @Override
+                public void rowsDone(int rows, int total) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return FilterTask.this.isCancelled();
+                }
+            };
+            if (proxies.length > 1) {
+                OperationTimer.Clock clock = timings.start();
+                long proxyPixels = 0;
+                for (int level = proxies.length - 1; level > 0; level--) {
+                    BiFunction<PixelBuffer, ProgressMonitor, PixelBuffer> scaled = proxyFilter.apply(level);
+                    if (scaled == null) {
+                        continue;
+                    }
+                    PixelBuffer filtered = scaled.apply(proxies[level], proxyMonitor);
+                    PixelBuffer shown = ImageCache.downsample(filtered, Math.max(0, previewLevel - level));
+                    Platform.runLater(() -> onPreview.accept(shown));
+                    proxyPixels += proxies[level].getPixels().length;
+                }
+                clock.stop("preview", proxyPixels);
+            }
+
+            long pixels = proxies[0].getPixels().length;
+            PixelBuffer result = timings.time("filter", pixels, () -> filter.apply(proxies[0], this));
+            // Steps rebuilt from the history may not have gone through a filter's last pass. The
+            // count is of output pixels, which a resize makes differ from the input's
+            long resultPixels = result.getPixels().length;
+            statistics = collector.getCount() == resultPixels ? collector.finish()
+                         : timings.time("statistics", resultPixels, () -> ImageStatistics.of(result));
+            if (history != null) {
+                // Compressing the delta is too slow for the FX thread
+                edit = timings.time("history", pixels, () -> history.prepare(name, filter, proxies[0], result));
+            }
+            pyramid = timings.time("pyramid", pixels, () -> ImageCache.pyramid(result, proxyLevels(previewLevel)));
+            preview = shownLevel(pyramid, previewLevel);
+            return result;
+        }
+
+        @Override
+        public void rowsDone(int rows, int total) {
+            updateProgress(rowsDone.addAndGet(rows), total);
+        }
     }
 
     public static void main(String[] args) {
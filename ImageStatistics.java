@@ -0,0 +1,278 @@
+//Per-channel histograms, mean, standard deviation and range of an image
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The histogram of each of an image's red, green and blue channels, and the
+ * mean, standard deviation, minimum and maximum derived from them. Alpha is
+ * ignored.
+ *
+ * Statistics are gathered by a {@link Collector}, which threads feed rows as
+ * they produce them. Each thread counts into its own partial histograms, so
+ * the counting never contends, and the partials are summed once at the end.
+ * Filters feed the collector from their last pass over the output, band by
+ * band while the rows are still in cache, when their ProgressMonitor has
+ * one; see {@link ProgressMonitor#getStatistics}. That gives the statistics
+ * of a filter's result without reading it again.
+ */
+public class ImageStatistics {
+
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private static final String[] CHANNEL_NAMES = {"r", "g", "b"};
+    private static final int LEVELS = 256;
+
+    // Rows per band when computing statistics on their own
+    private static final int BAND_ROWS = 64;
+
+    private final long[][] histograms;
+    private final long count;
+
+    private ImageStatistics(long[][] histograms) {
+        this.histograms = histograms;
+        long total = 0;
+        for (long n : histograms[RED]) {
+            total += n;
+        }
+        this.count = total;
+    }
+
+    /**
+     * Gathers statistics from any number of threads. Rows may arrive in any
+     * order, but each must arrive once.
+     */
+    public static class Collector {
+        private final List<long[]> partials = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<long[]> partial = ThreadLocal.withInitial(() -> {
+            long[] counts = new long[3 * LEVELS];
+            partials.add(counts);
+            return counts;
+        });
+
+        /**
+         * Count rows {@code [y0, y1)} of {@code pixels}.
+         */
+        public void addRows(PixelBuffer pixels, int y0, int y1) {
+            int width = pixels.getWidth();
+            add(pixels.getPixels(), y0 * width, y1 * width);
+        }
+
+        /**
+         * Count the pixels {@code [from, to)} of {@code argb}.
+         */
+        public void add(int[] argb, int from, int to) {
+            long[] counts = partial.get();
+            for (int i = from; i < to; i++) {
+                int pixel = argb[i];
+                counts[(pixel >> 16) & 0xFF]++;
+                counts[LEVELS + ((pixel >> 8) & 0xFF)]++;
+                counts[2 * LEVELS + (pixel & 0xFF)]++;
+            }
+        }
+
+        /**
+         * {@code source}, counting each row as it is read.
+         */
+        public RowSource counting(RowSource source) {
+            return new RowSource() {
+                @Override
+                public int getWidth() {
+                    return source.getWidth();
+                }
+
+                @Override
+                public int getHeight() {
+                    return source.getHeight();
+                }
+
+                @Override
+                public void readRow(int[] row, int offset) throws IOException {
+                    source.readRow(row, offset);
+                    add(row, offset, offset + source.getWidth());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    source.close();
+                }
+            };
+        }
+
+        /**
+         * {@code sink}, counting each row as it is written.
+         */
+        public RowSink counting(RowSink sink, int width) {
+            return new RowSink() {
+                @Override
+                public void writeRow(int[] row) throws IOException {
+                    add(row, 0, width);
+                    sink.writeRow(row);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    sink.close();
+                }
+            };
+        }
+
+        /**
+         * The pixels counted so far by all threads. Like {@link #finish}, it
+         * must only be called once the threads feeding the collector are done.
+         */
+        public long getCount() {
+            long total = 0;
+            for (long[] counts : partials) {
+                for (int v = 0; v < LEVELS; v++) {
+                    total += counts[v];
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Sum every thread's partial histograms.
+         */
+        public ImageStatistics finish() {
+            long[][] histograms = new long[3][LEVELS];
+            for (long[] counts : partials) {
+                for (int channel = 0; channel < 3; channel++) {
+                    for (int v = 0; v < LEVELS; v++) {
+                        histograms[channel][v] += counts[channel * LEVELS + v];
+                    }
+                }
+            }
+            return new ImageStatistics(histograms);
+        }
+    }
+
+    /**
+     * The statistics of a whole image, computed in bands on the engine's threads.
+     */
+    public static ImageStatistics of(PixelBuffer pixels, ConvolutionEngine engine) {
+        Collector collector = new Collector();
+        engine.forEachBand(pixels.getHeight(), BAND_ROWS, ProgressMonitor.NONE,
+                           (y0, y1) -> collector.addRows(pixels, y0, y1));
+        return collector.finish();
+    }
+
+    /**
+     * The statistics of a whole image, computed on the calling thread.
+     */
+    public static ImageStatistics of(PixelBuffer pixels) {
+        Collector collector = new Collector();
+        collector.addRows(pixels, 0, pixels.getHeight());
+        return collector.finish();
+    }
+
+    /**
+     * The pixels counted.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * How many pixels have each of the 256 levels of {@code channel}, which
+     * is RED, GREEN or BLUE.
+     */
+    public long[] getHistogram(int channel) {
+        return Arrays.copyOf(histograms[channel], LEVELS);
+    }
+
+    public double getMean(int channel) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long sum = 0;
+        long[] histogram = histograms[channel];
+        for (int v = 0; v < LEVELS; v++) {
+            sum += v * histogram[v];
+        }
+        return (double) sum / count;
+    }
+
+    /**
+     * The population standard deviation of {@code channel}.
+     */
+    public double getStandardDeviation(int channel) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double mean = getMean(channel);
+        double squares = 0;
+        long[] histogram = histograms[channel];
+        for (int v = 0; v < LEVELS; v++) {
+            squares += (v - mean) * (v - mean) * histogram[v];
+        }
+        return Math.sqrt(squares / count);
+    }
+
+    /**
+     * The lowest level of {@code channel} present, or -1 for no pixels.
+     */
+    public int getMin(int channel) {
+        long[] histogram = histograms[channel];
+        for (int v = 0; v < LEVELS; v++) {
+            if (histogram[v] > 0) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The highest level of {@code channel} present, or -1 for no pixels.
+     */
+    public int getMax(int channel) {
+        long[] histogram = histograms[channel];
+        for (int v = LEVELS - 1; v >= 0; v--) {
+            if (histogram[v] > 0) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A short per-channel summary for the status bar.
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+        for (int channel = RED; channel <= BLUE; channel++) {
+            if (channel > RED) {
+                text.append(", ");
+            }
+            text.append(String.format(Locale.ROOT, "%s %.1f +/- %.1f [%d-%d]",
+                    CHANNEL_NAMES[channel].toUpperCase(Locale.ROOT), getMean(channel),
+                    getStandardDeviation(channel), getMin(channel), getMax(channel)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * The statistics as space-separated {@code key=value} pairs, in the style
+     * of OperationTimer's log line, with keys such as {@code r_mean}.
+     */
+    public String toLogFields() {
+        StringBuilder line = new StringBuilder("pixels=" + count);
+        for (int channel = RED; channel <= BLUE; channel++) {
+            String name = CHANNEL_NAMES[channel];
+            line.append(String.format(Locale.ROOT, " %s_mean=%.3f %s_stddev=%.3f %s_min=%d %s_max=%d",
+                    name, getMean(channel), name, getStandardDeviation(channel), name, getMin(channel),
+                    name, getMax(channel)));
+        }
+        return line.toString();
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+}
@@ -0,0 +1,199 @@
+//Convolution kernels of any odd size for the ImageProcessor filters
+
+/**
+ * A rectangular convolution kernel. {@code getWeights()[row][column]} is the
+ * weight applied to the pixel {@code row - height / 2} rows and
+ * {@code column - width / 2} columns away from the output pixel.
+ *
+ * On construction the kernel is checked for being rank 1, i.e. the outer
+ * product of a column vector and a row vector. Such kernels can be run as two
+ * 1-D passes costing O(width + height) per pixel instead of O(width * height).
+ */
+public class Kernel {
+
+    // Relative tolerance when deciding whether a kernel is an outer product
+    private static final float SEPARABLE_TOLERANCE = 1e-5f;
+
+    private final int width;
+    private final int height;
+    private final float[][] weights;
+    private final float[] column;
+    private final float[] row;
+    private volatile FixedPointKernel fixedPoint;
+    private volatile FftConvolution fft;
+
+    public Kernel(float[][] weights) {
+        this.height = weights.length;
+        this.width = weights[0].length;
+        if (width % 2 == 0 || height % 2 == 0) {
+            throw new IllegalArgumentException("Kernel dimensions must be odd: " + width + "x" + height);
+        }
+        this.weights = new float[height][];
+        for (int i = 0; i < height; i++) {
+            if (weights[i].length != width) {
+                throw new IllegalArgumentException("Kernel rows must all have " + width + " weights");
+            }
+            this.weights[i] = weights[i].clone();
+        }
+
+        float[][] factors = factorise(this.weights);
+        this.column = factors == null ? null : factors[0];
+        this.row = factors == null ? null : factors[1];
+    }
+
+    /**
+     * Build the kernel {@code column x row} directly from its two factors.
+     */
+    public static Kernel separable(float[] column, float[] row) {
+        float[][] weights = new float[column.length][row.length];
+        for (int i = 0; i < column.length; i++) {
+            for (int j = 0; j < row.length; j++) {
+                weights[i][j] = column[i] * row[j];
+            }
+        }
+        return new Kernel(weights);
+    }
+
+    public static Kernel box(int size) {
+        checkSize(size);
+        float[] taps = new float[size];
+        for (int i = 0; i < size; i++) {
+            taps[i] = 1.0f / size;
+        }
+        return separable(taps, taps);
+    }
+
+    /**
+     * A Gaussian with the sigma OpenCV picks for the given aperture size.
+     */
+    public static Kernel gaussian(int size) {
+        checkSize(size);
+        return gaussian(size, 0.3 * ((size - 1) * 0.5 - 1) + 0.8);
+    }
+
+    public static Kernel gaussian(int size, double sigma) {
+        checkSize(size);
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("Sigma must be positive: " + sigma);
+        }
+        int radius = size / 2;
+        double[] values = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            int d = i - radius;
+            values[i] = Math.exp(-(d * d) / (2 * sigma * sigma));
+            sum += values[i];
+        }
+        float[] taps = new float[size];
+        for (int i = 0; i < size; i++) {
+            taps[i] = (float) (values[i] / sum);
+        }
+        return separable(taps, taps);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[][] getWeights() {
+        return weights;
+    }
+
+    public boolean isSeparable() {
+        return row != null;
+    }
+
+    /**
+     * @return the vertical factor, or null if the kernel is not separable
+     */
+    public float[] getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the horizontal factor, or null if the kernel is not separable
+     */
+    public float[] getRow() {
+        return row;
+    }
+
+    /**
+     * This kernel quantised for the fixed-point path, built on first use.
+     */
+    public FixedPointKernel toFixedPoint() {
+        FixedPointKernel quantised = fixedPoint;
+        if (quantised == null) {
+            // Racing threads build equal copies, so either may win
+            quantised = new FixedPointKernel(this);
+            fixedPoint = quantised;
+        }
+        return quantised;
+    }
+
+    /**
+     * This kernel's spectrum for FFT tiles of side {@code tile}. The last one
+     * built is kept, since an image is usually filtered at one size.
+     */
+    public FftConvolution toFft(int tile) {
+        FftConvolution transformed = fft;
+        if (transformed == null || transformed.getTileSize() != tile) {
+            transformed = new FftConvolution(this, tile);
+            fft = transformed;
+        }
+        return transformed;
+    }
+
+    private static void checkSize(int size) {
+        if (size < 1 || size % 2 == 0) {
+            throw new IllegalArgumentException("Kernel size must be a positive odd number: " + size);
+        }
+    }
+
+    /**
+     * Split the kernel into a column and a row vector whose outer product
+     * reproduces it, or return null if it is not rank 1.
+     */
+    private static float[][] factorise(float[][] weights) {
+        int height = weights.length;
+        int width = weights[0].length;
+
+        // Pivot on the largest weight so the division below is well conditioned
+        int pivotRow = 0;
+        int pivotColumn = 0;
+        float largest = 0;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (Math.abs(weights[i][j]) > largest) {
+                    largest = Math.abs(weights[i][j]);
+                    pivotRow = i;
+                    pivotColumn = j;
+                }
+            }
+        }
+        if (largest == 0) {
+            return null;
+        }
+
+        float[] column = new float[height];
+        float[] row = new float[width];
+        for (int i = 0; i < height; i++) {
+            column[i] = weights[i][pivotColumn];
+        }
+        for (int j = 0; j < width; j++) {
+            row[j] = weights[pivotRow][j] / weights[pivotRow][pivotColumn];
+        }
+
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (Math.abs(column[i] * row[j] - weights[i][j]) > SEPARABLE_TOLERANCE * largest) {
+                    return null;
+                }
+            }
+        }
+        return new float[][] {column, row};
+    }
+}
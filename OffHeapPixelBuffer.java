@@ -0,0 +1,139 @@
+//Packed ARGB pixel storage in native memory, for images too large for the heap
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image held outside the Java heap in a MemorySegment, laid out like
+ * PixelBuffer: row-major, one packed ARGB int per pixel. Indices are longs,
+ * so an image may have more than 2^31 pixels, and however large it is the
+ * GC sees only this small object.
+ *
+ * The memory belongs to the Arena it came from and is released when that
+ * arena closes, all at once and at a known point rather than whenever the
+ * GC gets to it; any access after that throws IllegalStateException. Only
+ * the thread that opened a confined arena ({@code Arena.ofConfined()}) may
+ * touch its buffers, so a buffer shared between threads needs
+ * {@code Arena.ofShared()}.
+ *
+ * Ints are little-endian, as in RawImageFile, so a buffer can be a direct
+ * mapping of such a file; see RawImageMapping. On x86 and ARM that is the
+ * native order and costs nothing.
+ *
+ * java.lang.foreign is final from JDK 22, and a preview API in JDK 21, so
+ * this class and RawImageMapping, the only ones that mention it, need JDK 22
+ * or {@code javac --release 21 --enable-preview} and
+ * {@code java --enable-preview}. Nothing else refers to them: the rest of the
+ * application builds and runs without them on JDK 17, and works on any
+ * PixelStore.
+ */
+public class OffHeapPixelBuffer implements PixelStore {
+
+    private static final ValueLayout.OfInt PIXEL = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final int width;
+    private final int height;
+    private final MemorySegment segment;
+
+    /**
+     * A buffer of transparent black pixels allocated from {@code arena}.
+     */
+    public OffHeapPixelBuffer(Arena arena, int width, int height) {
+        this(width, height, arena.allocate(byteSize(width, height), PIXEL.byteAlignment()));
+    }
+
+    private OffHeapPixelBuffer(int width, int height, MemorySegment segment) {
+        if (segment.byteSize() != byteSize(width, height)) {
+            throw new IllegalArgumentException("Expected " + byteSize(width, height) + " bytes for "
+                                               + width + "x" + height + " but got " + segment.byteSize());
+        }
+        this.width = width;
+        this.height = height;
+        this.segment = segment;
+    }
+
+    private static long byteSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        return (long) width * height * PIXEL.byteSize();
+    }
+
+    /**
+     * A copy of {@code pixels} allocated from {@code arena}.
+     */
+    public static OffHeapPixelBuffer copyOf(PixelStore pixels, Arena arena) {
+        OffHeapPixelBuffer copy = new OffHeapPixelBuffer(arena, pixels.getWidth(), pixels.getHeight());
+        copy.copyFrom(pixels);
+        return copy;
+    }
+
+    /**
+     * The {@code width x height} pixels starting {@code offset} bytes into
+     * {@code channel}'s file, mapped into memory until {@code arena} closes.
+     * With READ_WRITE, writes to the buffer go through to the file.
+     */
+    public static OffHeapPixelBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset,
+                                         int width, int height, Arena arena) throws IOException {
+        return new OffHeapPixelBuffer(width, height, channel.map(mode, offset, byteSize(width, height), arena));
+    }
+
+    /**
+     * @return the memory holding the pixels, which shares the arena's lifetime
+     */
+    public MemorySegment getSegment() {
+        return segment;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getArgb(int x, int y) {
+        return segment.getAtIndex(PIXEL, (long) y * width + x);
+    }
+
+    @Override
+    public void setArgb(int x, int y, int argb) {
+        segment.setAtIndex(PIXEL, (long) y * width + x, argb);
+    }
+
+    @Override
+    public void readRow(int y, int[] row, int offset) {
+        MemorySegment.copy(segment, PIXEL, rowOffset(y), row, offset, width);
+    }
+
+    @Override
+    public void writeRow(int y, int[] row, int offset) {
+        MemorySegment.copy(row, offset, segment, PIXEL, rowOffset(y), width);
+    }
+
+    // Rows outside the image would otherwise land in a neighbouring row, or past the segment
+    private long rowOffset(int y) {
+        if (y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("Row " + y + " outside 0-" + (height - 1));
+        }
+        return (long) y * width * PIXEL.byteSize();
+    }
+
+    @Override
+    public PixelBuffer toHeap() {
+        if (getPixelCount() > PixelBuffer.MAX_PIXELS) {
+            throw new UnsupportedOperationException(width + "x" + height + " is too many pixels for the heap");
+        }
+        PixelBuffer heap = new PixelBuffer(width, height);
+        MemorySegment.copy(segment, PIXEL, 0, heap.getPixels(), 0, width * height);
+        return heap;
+    }
+}
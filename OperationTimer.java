@@ -0,0 +1,251 @@
+//Per-stage wall time, throughput and allocation for one ImageProcessor operation
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Breaks one operation, such as a filter run or a batch file, into named
+ * stages and records for each its wall time, the pixels it covered and the
+ * bytes it allocated. The result is shown as a one-line summary for the
+ * status bar, or as a single {@code key=value} log line that scripts can
+ * scrape (shown wrapped):
+ * <pre>
+ * op=BLUR image=scan.png width=4096 height=4096 total_ms=512.300 filter_ms=301.200
+ *     filter_mpx_s=55.70 filter_alloc=67108880 ...
+ * </pre>
+ *
+ * Allocation is read from the JVM's per-thread counters, as FilterBenchmark
+ * does. A timer counting all threads includes the ConvolutionEngine workers
+ * but also anything else running at the time, such as the FX thread; one
+ * counting only the calling thread is exact for single-threaded work, like a
+ * batch worker's. Where the JVM has no such counters allocation is -1.
+ *
+ * Stages may be added from any thread.
+ */
+public class OperationTimer {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String operation;
+    private final String image;
+    private final boolean allThreads;
+    private int width;
+    private int height;
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * @param operation  what is being done, such as a filter type
+     * @param image      the name of the image it is done to
+     * @param allThreads whether to count allocation by every thread rather
+     *                   than only the one running each stage
+     */
+    public OperationTimer(String operation, String image, boolean allThreads) {
+        this.operation = operation;
+        this.image = image;
+        this.allThreads = allThreads;
+    }
+
+    /**
+     * Set the size of the image, for operations that only learn it by
+     * decoding the image.
+     */
+    public synchronized void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * One timed stage of an operation.
+     */
+    public static class Stage {
+        final String name;
+        final long pixels;
+        final long nanos;
+        final long allocatedBytes;
+
+        Stage(String name, long pixels, long nanos, long allocatedBytes) {
+            this.name = name;
+            this.pixels = pixels;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Millions of pixels per second, or NaN for a stage with no pixels.
+         */
+        public double getMegapixelsPerSecond() {
+            return pixels == 0 || nanos == 0 ? Double.NaN : pixels * 1e3 / nanos;
+        }
+    }
+
+    /**
+     * A stage under way, started by {@link #start()}.
+     */
+    public class Clock {
+        private final long start;
+        private final long allocatedBefore;
+
+        private Clock() {
+            this.allocatedBefore = allocatedBytes(allThreads);
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Record the time since the clock started as stage {@code name}
+         * over {@code pixels} pixels.
+         */
+        public void stop(String name, long pixels) {
+            long nanos = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes(allThreads);
+            add(name, pixels, nanos, allocatedBefore < 0 || allocatedAfter < 0 ? -1
+                                     : allocatedAfter - allocatedBefore);
+        }
+    }
+
+    /**
+     * Start timing a stage whose size is not known until it ends.
+     */
+    public Clock start() {
+        return new Clock();
+    }
+
+    /**
+     * Run {@code work} as stage {@code name} over {@code pixels} pixels and
+     * return its result. A stage that throws is not recorded.
+     */
+    public <T> T time(String name, long pixels, Supplier<T> work) {
+        Clock clock = start();
+        T result = work.get();
+        clock.stop(name, pixels);
+        return result;
+    }
+
+    /**
+     * Record a stage measured elsewhere, such as an export on a writer thread.
+     */
+    public synchronized void add(String name, long pixels, long nanos, long allocatedBytes) {
+        stages.add(new Stage(name, pixels, nanos, allocatedBytes));
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for (Stage stage : stages) {
+            total += stage.nanos;
+        }
+        return total;
+    }
+
+    /**
+     * The pixels in the whole image.
+     */
+    public synchronized long getPixels() {
+        return (long) width * height;
+    }
+
+    /**
+     * A short breakdown for the status bar, stage by stage.
+     */
+    public synchronized String summary() {
+        StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "%s %dx%d in %.1f ms:",
+                operation, width, height, getTotalNanos() / 1e6));
+        String separator = " ";
+        for (Stage stage : stages) {
+            text.append(separator).append(String.format(Locale.ROOT, "%s %.1f ms", stage.name, stage.nanos / 1e6));
+            double rate = stage.getMegapixelsPerSecond();
+            if (!Double.isNaN(rate)) {
+                text.append(String.format(Locale.ROOT, " (%.1f Mpx/s", rate));
+                if (stage.allocatedBytes >= 0) {
+                    text.append(String.format(Locale.ROOT, ", %.1f MB", stage.allocatedBytes / 1e6));
+                }
+                text.append(')');
+            }
+            separator = ", ";
+        }
+        return text.toString();
+    }
+
+    /**
+     * The whole operation as one line of space-separated {@code key=value}
+     * pairs, stage keys prefixed by the stage name. Names are written with
+     * spaces replaced so that every value is a single token.
+     */
+    public synchronized String toLogLine() {
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+                "op=%s image=%s width=%d height=%d total_ms=%.3f",
+                token(operation), token(image), width, height, getTotalNanos() / 1e6));
+        for (Stage stage : stages) {
+            String name = token(stage.name);
+            line.append(String.format(Locale.ROOT, " %s_ms=%.3f", name, stage.nanos / 1e6));
+            double rate = stage.getMegapixelsPerSecond();
+            if (!Double.isNaN(rate)) {
+                line.append(String.format(Locale.ROOT, " %s_mpx_s=%.2f", name, rate));
+            }
+            line.append(' ').append(name).append("_alloc=").append(stage.allocatedBytes);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Write {@link #toLogLine()} to standard error.
+     */
+    public void log() {
+        System.err.println(toLogLine());
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or by every live thread,
+     * or -1 if the JVM does not count them.
+     */
+    public static long allocatedBytes(boolean allThreads) {
+        if (!THREADS.isThreadAllocatedMemorySupported() || !THREADS.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        if (!allThreads) {
+            return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static String token(String value) {
+        return value == null || value.isEmpty() ? "-" : value.replaceAll("\\s", "_");
+    }
+}
@@ -0,0 +1,195 @@
+//Packed ARGB pixel storage used by the ImageProcessor filters
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image held as one flat, row-major {@code int[]} of packed ARGB values.
+ *
+ * The pixel at (x, y) lives at index {@code y * width + x}. Nothing here
+ * depends on JavaFX; FxImageConverter moves pixels between this and JavaFX
+ * images in bulk, so no {@code Color} objects are created.
+ *
+ * This is the heap PixelStore. Images with more than MAX_PIXELS pixels do
+ * not fit in one array and need an OffHeapPixelBuffer instead.
+ */
+public class PixelBuffer implements PixelStore {
+
+    public static final int OPAQUE = 0xFF000000;
+    public static final int WHITE = 0xFFFFFFFF;
+
+    /** The most pixels the JVM will reliably allocate in one {@code int[]}. */
+    public static final int MAX_PIXELS = Integer.MAX_VALUE - 8;
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[pixelCount(width, height)]);
+    }
+
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (pixels.length != pixelCount(width, height)) {
+            throw new IllegalArgumentException("Expected " + (width * height) + " pixels but got " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    private static int pixelCount(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        if ((long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException(width + "x" + height + " is too many pixels for one array");
+        }
+        return width * height;
+    }
+
+    /**
+     * Decode-side conversion for code that reads through ImageIO rather than JavaFX.
+     */
+    public static PixelBuffer fromBufferedImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        image.getRGB(0, 0, width, height, buffer.pixels, 0, width);
+        return buffer;
+    }
+
+    /**
+     * Wrap this buffer's array as a TYPE_INT_ARGB BufferedImage without copying,
+     * so ImageIO can encode it directly. The two share storage from then on.
+     */
+    public BufferedImage toBufferedImage() {
+        return toBufferedImage(true);
+    }
+
+    /**
+     * As {@link #toBufferedImage()}, but with {@code alpha} false the view
+     * ignores the alpha byte, which encoders without alpha (JPEG, BMP) require.
+     */
+    public BufferedImage toBufferedImage(boolean alpha) {
+        DirectColorModel colorModel = alpha ? (DirectColorModel) ColorModel.getRGBdefault()
+                                            : new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+        DataBufferInt data = new DataBufferInt(pixels, pixels.length);
+        WritableRaster raster = Raster.createPackedRaster(data, width, height, width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the backing array; writes to it are visible in this buffer
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    @Override
+    public int getArgb(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    @Override
+    public void setArgb(int x, int y, int argb) {
+        pixels[y * width + x] = argb;
+    }
+
+    @Override
+    public void readRow(int y, int[] row, int offset) {
+        System.arraycopy(pixels, y * width, row, offset, width);
+    }
+
+    @Override
+    public void writeRow(int y, int[] row, int offset) {
+        System.arraycopy(row, offset, pixels, y * width, width);
+    }
+
+    /**
+     * @return this buffer itself, not a copy
+     */
+    @Override
+    public PixelBuffer toHeap() {
+        return this;
+    }
+
+    public PixelBuffer copy() {
+        return new PixelBuffer(width, height, pixels.clone());
+    }
+
+    /**
+     * Whether every pixel has full alpha, so an encoder can leave alpha out.
+     */
+    public boolean isOpaque() {
+        for (int argb : pixels) {
+            if (argb >>> 24 != 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    public static int pack(int red, int green, int blue) {
+        return OPAQUE | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Round a channel value computed on the 0-255 scale and clamp it into a byte.
+     */
+    public static int clamp(float value) {
+        if (value <= 0) {
+            return 0;
+        } else if (value >= 255) {
+            return 255;
+        }
+        return (int) (value + 0.5f);
+    }
+
+    public static int clamp(double value) {
+        if (value <= 0) {
+            return 0;
+        } else if (value >= 255) {
+            return 255;
+        }
+        return (int) (value + 0.5);
+    }
+
+    /**
+     * Round a fixed-point channel value with {@code shift} fraction bits and
+     * clamp it into a byte. There are no branches to mispredict on noisy
+     * images: the sign bit of the value, and of {@code 255 - value}, is
+     * smeared into a mask instead.
+     */
+    public static int clampFixed(int value, int shift) {
+        int rounded = (value + ((1 << shift) >> 1)) >> shift;
+        rounded &= ~(rounded >> 31);
+        return (rounded | ((255 - rounded) >> 31)) & 0xFF;
+    }
+}
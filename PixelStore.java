@@ -0,0 +1,97 @@
+//Packed ARGB pixels wherever they are held, on or off the Java heap
+
+/**
+ * An image of packed ARGB pixels, row-major, whatever memory holds them.
+ * PixelBuffer keeps them in an {@code int[]} on the heap, where the filters'
+ * whole-image loops work on them directly; OffHeapPixelBuffer keeps them in
+ * native memory that the GC neither scans nor moves, and that can hold more
+ * than 2^31 pixels.
+ *
+ * Bulk access is a row at a time, since a row always fits in an
+ * {@code int[]} even when the whole image would not. That is all
+ * {@link FilterPipeline#apply(PixelStore, PixelStore, ProgressMonitor)}
+ * needs to filter from and to either kind, a band of rows at a time.
+ */
+public interface PixelStore {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getArgb(int x, int y);
+
+    void setArgb(int x, int y, int argb);
+
+    /**
+     * Copy row {@code y} into {@code row[offset, offset + getWidth())}.
+     */
+    void readRow(int y, int[] row, int offset);
+
+    /**
+     * Replace row {@code y} with {@code row[offset, offset + getWidth())}.
+     */
+    void writeRow(int y, int[] row, int offset);
+
+    default long getPixelCount() {
+        return (long) getWidth() * getHeight();
+    }
+
+    /**
+     * The pixels as a PixelBuffer: this one if it already is, otherwise a
+     * copy on the heap.
+     *
+     * @throws UnsupportedOperationException if there are too many pixels for an {@code int[]}
+     */
+    default PixelBuffer toHeap() {
+        if (getPixelCount() > PixelBuffer.MAX_PIXELS) {
+            throw new UnsupportedOperationException(
+                    getWidth() + "x" + getHeight() + " is too many pixels for the heap");
+        }
+        int width = getWidth();
+        PixelBuffer heap = new PixelBuffer(width, getHeight());
+        int[] dst = heap.getPixels();
+        for (int y = 0; y < getHeight(); y++) {
+            readRow(y, dst, y * width);
+        }
+        return heap;
+    }
+
+    /**
+     * Replace every pixel with those of {@code source}, which has the same size.
+     */
+    default void copyFrom(PixelStore source) {
+        if (source.getWidth() != getWidth() || source.getHeight() != getHeight()) {
+            throw new IllegalArgumentException("Cannot copy " + source.getWidth() + "x" + source.getHeight()
+                                               + " pixels into " + getWidth() + "x" + getHeight());
+        }
+        int[] row = new int[getWidth()];
+        for (int y = 0; y < getHeight(); y++) {
+            source.readRow(y, row, 0);
+            writeRow(y, row, 0);
+        }
+    }
+
+    /**
+     * The rows from the top down, for the streaming pipeline.
+     */
+    default RowSource rows() {
+        return new RowSource() {
+            private int next;
+
+            @Override
+            public int getWidth() {
+                return PixelStore.this.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return PixelStore.this.getHeight();
+            }
+
+            @Override
+            public void readRow(int[] row, int offset) {
+                PixelStore.this.readRow(next++, row, offset);
+            }
+        };
+    }
+}
@@ -0,0 +1,304 @@
+//Decodes a PNG file one row at a time for the streaming pipeline
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A minimal PNG decoder that never holds more than two rows of the image.
+ *
+ * ImageIO always decodes a PNG into one BufferedImage, so an image bigger
+ * than the heap cannot be read at all. This reader inflates the IDAT stream
+ * as rows are requested and keeps only the current and previous scanline
+ * for unfiltering. Non-interlaced images of every colour type and bit depth
+ * are supported; 16-bit samples are reduced to their high byte.
+ */
+public class PngRowReader implements RowSource {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    private final DataInputStream in;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colorType;
+    private final int bytesPerPixel;
+    private final int[] palette;
+    private final InputStream pixels;
+
+    private byte[] current;
+    private byte[] previous;
+
+    public PngRowReader(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readLong() != SIGNATURE) {
+                throw new IOException("Not a PNG file: " + file);
+            }
+            if (in.readInt() != 13 || in.readInt() != chunkType("IHDR")) {
+                throw new IOException("PNG does not start with an IHDR chunk: " + file);
+            }
+            width = in.readInt();
+            height = in.readInt();
+            bitDepth = in.readUnsignedByte();
+            colorType = in.readUnsignedByte();
+            in.readUnsignedByte();
+            in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            in.readInt();
+            if (interlace != 0) {
+                throw new IOException("Interlaced PNGs cannot be streamed: " + file);
+            }
+
+            int bitsPerPixel = channels(colorType) * bitDepth;
+            bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+            int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+            current = new byte[rowBytes];
+            previous = new byte[rowBytes];
+
+            // Read ancillary chunks up to the first IDAT, keeping the palette if there is one
+            int[] colours = null;
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == chunkType("IDAT")) {
+                    pixels = new InflaterInputStream(new IdatStream(length), new Inflater(), 65536);
+                    break;
+                } else if (type == chunkType("PLTE")) {
+                    colours = new int[256];
+                    for (int i = 0; i < length / 3; i++) {
+                        colours[i] = PixelBuffer.pack(in.readUnsignedByte(), in.readUnsignedByte(),
+                                                      in.readUnsignedByte());
+                    }
+                    in.skipBytes(length % 3);
+                } else if (type == chunkType("tRNS") && colours != null) {
+                    for (int i = 0; i < length; i++) {
+                        colours[i] = (colours[i] & 0x00FFFFFF) | (in.readUnsignedByte() << 24);
+                    }
+                } else if (type == chunkType("IEND")) {
+                    throw new IOException("PNG has no image data: " + file);
+                } else {
+                    skipFully(length);
+                }
+                in.readInt();
+            }
+            if (colorType == PALETTE && colours == null) {
+                throw new IOException("Palette PNG has no PLTE chunk: " + file);
+            }
+            palette = colours;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int[] row, int offset) throws IOException {
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+
+        int filter = pixels.read();
+        if (filter < 0) {
+            throw new EOFException("PNG image data ends early");
+        }
+        readFully(pixels, current);
+        unfilter(filter, current, previous, bytesPerPixel);
+        toArgb(current, row, offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void toArgb(byte[] line, int[] row, int offset) {
+        int step = bitDepth == 16 ? 2 : 1;
+        for (int x = 0; x < width; x++) {
+            int argb;
+            if (bitDepth < 8) {
+                int perByte = 8 / bitDepth;
+                int shift = 8 - bitDepth * (x % perByte + 1);
+                int sample = ((line[x / perByte] & 0xFF) >> shift) & ((1 << bitDepth) - 1);
+                if (colorType == PALETTE) {
+                    argb = palette[sample];
+                } else {
+                    int grey = sample * 255 / ((1 << bitDepth) - 1);
+                    argb = PixelBuffer.pack(grey, grey, grey);
+                }
+            } else {
+                int i = x * bytesPerPixel;
+                switch (colorType) {
+                    case GREY:
+                        argb = PixelBuffer.pack(line[i] & 0xFF, line[i] & 0xFF, line[i] & 0xFF);
+                        break;
+                    case RGB:
+                        argb = PixelBuffer.pack(line[i] & 0xFF, line[i + step] & 0xFF, line[i + 2 * step] & 0xFF);
+                        break;
+                    case PALETTE:
+                        argb = palette[line[i] & 0xFF];
+                        break;
+                    case GREY_ALPHA:
+                        argb = ((line[i + step] & 0xFF) << 24) | (PixelBuffer.pack(line[i] & 0xFF, line[i] & 0xFF,
+                                                                                   line[i] & 0xFF) & 0x00FFFFFF);
+                        break;
+                    default:
+                        argb = ((line[i + 3 * step] & 0xFF) << 24) | ((line[i] & 0xFF) << 16)
+                               | ((line[i + step] & 0xFF) << 8) | (line[i + 2 * step] & 0xFF);
+                        break;
+                }
+            }
+            row[offset + x] = argb;
+        }
+    }
+
+    /**
+     * Undo one of the five PNG scanline filters in place. The sums wrap
+     * modulo 256, as the format specifies, so each is cast back to a byte.
+     */
+    static void unfilter(int filter, byte[] line, byte[] prior, int bpp) throws IOException {
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < line.length; i++) {
+                    line[i] = (byte) (line[i] + line[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = (byte) (line[i] + prior[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < line.length; i++) {
+                    int left = i >= bpp ? line[i - bpp] & 0xFF : 0;
+                    line[i] = (byte) (line[i] + ((left + (prior[i] & 0xFF)) >> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < line.length; i++) {
+                    int left = i >= bpp ? line[i - bpp] & 0xFF : 0;
+                    int upLeft = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+                    line[i] = (byte) (line[i] + paeth(left, prior[i] & 0xFF, upLeft));
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type " + filter);
+        }
+    }
+
+    static int paeth(int left, int up, int upLeft) {
+        int p = left + up - upLeft;
+        int pa = Math.abs(p - left);
+        int pb = Math.abs(p - up);
+        int pc = Math.abs(p - upLeft);
+        if (pa <= pb && pa <= pc) {
+            return left;
+        }
+        return pb <= pc ? up : upLeft;
+    }
+
+    static int chunkType(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    private static int channels(int colorType) throws IOException {
+        switch (colorType) {
+            case GREY:
+            case PALETTE:
+                return 1;
+            case GREY_ALPHA:
+                return 2;
+            case RGB:
+                return 3;
+            case RGB_ALPHA:
+                return 4;
+            default:
+                throw new IOException("Unknown PNG colour type " + colorType);
+        }
+    }
+
+    private static void readFully(InputStream stream, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = stream.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new EOFException("PNG image data ends early");
+            }
+            read += n;
+        }
+    }
+
+    private void skipFully(int length) throws IOException {
+        if (in.skipBytes(length) != length) {
+            throw new EOFException("PNG chunk ends early");
+        }
+    }
+
+    /**
+     * The concatenated payloads of consecutive IDAT chunks.
+     */
+    private class IdatStream extends InputStream {
+        private int remaining;
+        private boolean finished;
+
+        IdatStream(int firstLength) {
+            this.remaining = firstLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (finished || !nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = in.read(buffer, offset, Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("PNG IDAT chunk ends early");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            in.readInt();
+            remaining = in.readInt();
+            if (in.readInt() != chunkType("IDAT")) {
+                finished = true;
+                remaining = 0;
+                return false;
+            }
+            return true;
+        }
+    }
+}
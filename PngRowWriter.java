@@ -0,0 +1,221 @@
+//Encodes a PNG file one row at a time for the streaming pipeline
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGB or RGBA PNG as rows arrive, holding only the current
+ * and previous scanline. Each row uses whichever of the five PNG filters
+ * gives the smallest sum of absolute differences, the heuristic libpng uses.
+ *
+ * RGB, the default, drops alpha, so it suits only opaque images; the
+ * streaming pipeline writes RGB since its filters' output is opaque apart
+ * from point operations on transparent sources. ImageExporter asks for RGBA
+ * whenever the image has a pixel that is not opaque.
+ */
+public class PngRowWriter implements RowSink {
+
+    // PNG colour types
+    private static final int RGB = 2;
+    private static final int RGBA = 6;
+    private static final int CHUNK_SIZE = 65536;
+
+    private final DataOutputStream out;
+    private final DeflaterOutputStream pixels;
+    private final Deflater deflater;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private final byte[][] candidates = new byte[5][];
+    private byte[] current;
+    private byte[] previous;
+    private int rowsWritten;
+
+    public PngRowWriter(File file, int width, int height) throws IOException {
+        this(file, width, height, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public PngRowWriter(File file, int width, int height, int compressionLevel) throws IOException {
+        this(new FileOutputStream(file), width, height, compressionLevel);
+    }
+
+    public PngRowWriter(OutputStream stream, int width, int height, int compressionLevel) throws IOException {
+        this(stream, width, height, compressionLevel, false);
+    }
+
+    /**
+     * @param alpha whether to write colour type 6 (RGBA), keeping each
+     *              pixel's alpha, rather than 2 (RGB)
+     */
+    public PngRowWriter(OutputStream stream, int width, int height, int compressionLevel, boolean alpha)
+            throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream));
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.bytesPerPixel = alpha ? 4 : 3;
+        this.current = new byte[width * bytesPerPixel];
+        this.previous = new byte[width * bytesPerPixel];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = new byte[width * bytesPerPixel + 1];
+        }
+
+        out.writeLong(0x89504E470D0A1A0AL);
+        // 8 bits per sample, RGB or RGBA, deflate, adaptive filtering, no interlace
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height).put((byte) 8).put((byte) (alpha ? RGBA : RGB))
+              .put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk("IHDR", header.array(), 13);
+
+        this.deflater = new Deflater(compressionLevel);
+        this.pixels = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_SIZE);
+    }
+
+    @Override
+    public void writeRow(int[] row) throws IOException {
+        writeRow(row, 0);
+    }
+
+    /**
+     * Write the row held in {@code row[offset, offset + width)}.
+     */
+    public void writeRow(int[] row, int offset) throws IOException {
+        if (rowsWritten == height) {
+            throw new IOException("All " + height + " rows have already been written");
+        }
+        for (int x = 0, i = 0; x < width; x++) {
+            int argb = row[offset + x];
+            current[i++] = (byte) (argb >> 16);
+            current[i++] = (byte) (argb >> 8);
+            current[i++] = (byte) argb;
+            if (alpha) {
+                current[i++] = (byte) (argb >>> 24);
+            }
+        }
+        byte[] best = chooseFilter(current, rowsWritten == 0 ? null : previous);
+        pixels.write(best, 0, best.length);
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        rowsWritten++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+            }
+            pixels.finish();
+            pixels.flush();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private byte[] chooseFilter(byte[] line, byte[] prior) {
+        int bpp = bytesPerPixel;
+        long bestSum = Long.MAX_VALUE;
+        byte[] best = null;
+
+        for (int filter = 0; filter < candidates.length; filter++) {
+            byte[] encoded = candidates[filter];
+            encoded[0] = (byte) filter;
+            long sum = 0;
+            for (int i = 0; i < line.length; i++) {
+                int raw = line[i] & 0xFF;
+                int left = i >= bpp ? line[i - bpp] & 0xFF : 0;
+                int up = prior == null ? 0 : prior[i] & 0xFF;
+                int upLeft = (prior == null || i < bpp) ? 0 : prior[i - bpp] & 0xFF;
+                int predicted;
+                switch (filter) {
+                    case 1:
+                        predicted = left;
+                        break;
+                    case 2:
+                        predicted = up;
+                        break;
+                    case 3:
+                        predicted = (left + up) >> 1;
+                        break;
+                    case 4:
+                        predicted = PngRowReader.paeth(left, up, upLeft);
+                        break;
+                    default:
+                        predicted = 0;
+                        break;
+                }
+                byte value = (byte) (raw - predicted);
+                encoded[i + 1] = value;
+                sum += Math.abs(value);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = encoded;
+            }
+        }
+        return best;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Splits the deflated stream into IDAT chunks of at most CHUNK_SIZE bytes.
+     */
+    private class IdatStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[length++] = (byte) b;
+            if (length == buffer.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            while (count > 0) {
+                int n = Math.min(count, buffer.length - length);
+                System.arraycopy(data, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+                if (length == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                writeChunk("IDAT", buffer, length);
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+//Per-pixel colour operations such as sepia and greyscale
+
+/**
+ * Maps one packed ARGB pixel to another without looking at its neighbours.
+ */
+public interface PointOperation {
+
+    int apply(int argb);
+
+    /**
+     * Apply to {@code src[from, to)}, writing the same positions of
+     * {@code dst}, which may be {@code src} itself.
+     */
+    default void apply(int[] src, int[] dst, int from, int to) {
+        for (int i = from; i < to; i++) {
+            dst[i] = apply(src[i]);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//Progress reporting and cancellation for long-running filter passes
+
+/**
+ * Receives progress from a filter pass as bands of rows complete, and lets
+ * the caller stop the pass between bands. Implementations must be thread
+ * safe because parallel bands report concurrently.
+ */
+public interface ProgressMonitor {
+
+    ProgressMonitor NONE = new ProgressMonitor() {
+        @Override
+        public void rowsDone(int rows, int total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Called each time {@code rows} more of the {@code total} output rows are finished.
+     */
+    void rowsDone(int rows, int total);
+
+    /**
+     * Polled between bands; once true the pass throws {@code CancellationException}.
+     */
+    boolean isCancelled();
+
+    /**
+     * Where the pass writing the final image should count its rows as it
+     * finishes them, or null if no statistics are wanted.
+     */
+    default ImageStatistics.Collector getStatistics() {
+        return null;
+    }
+
+    /**
+     * A monitor for one of {@code passes} equal passes over the image, so
+     * that progress reaches the whole only once every pass has finished. Its
+     * pass is not the last, so it collects no statistics.
+     */
+    default ProgressMonitor perPass(int passes) {
+        ProgressMonitor overall = this;
+        return new ProgressMonitor() {
+            @Override
+            public void rowsDone(int rows, int total) {
+                overall.rowsDone(rows, total * passes);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return overall.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * As {@link #perPass}, for the pass that writes the final image, which
+     * keeps this monitor's statistics.
+     */
+    default ProgressMonitor lastPass(int passes) {
+        return perPass(passes).withStatistics(getStatistics());
+    }
+
+    /**
+     * This monitor, with {@code statistics} counting the final image's rows.
+     */
+    default ProgressMonitor withStatistics(ImageStatistics.Collector statistics) {
+        ProgressMonitor monitor = this;
+        return new ProgressMonitor() {
+            @Override
+            public void rowsDone(int rows, int total) {
+                monitor.rowsDone(rows, total);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return monitor.isCancelled();
+            }
+
+            @Override
+            public ImageStatistics.Collector getStatistics() {
+                return statistics;
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+//Median, minimum and maximum filters over square windows, by sliding histograms
+
+import java.util.Arrays;
+
+/**
+ * Rank-order filters: each output channel is the value of a given rank among
+ * that channel's values in the {@code (2 * radius + 1)}-pixel square around
+ * the pixel. Rank 0 is the minimum (erosion), the middle rank the median and
+ * the last rank the maximum (dilation).
+ *
+ * This follows Perreault and Hebert, "Median Filtering in Constant Time". A
+ * histogram is kept for each column of the window's height, and moving down a
+ * row adds one value to and removes one from each. The window's histogram is
+ * the sum of the column histograms under it; moving right adds the column
+ * entering and subtracts the column leaving. Histograms are split into 16
+ * coarse bins of 16 fine bins each. The coarse sums are kept up to date at
+ * every step, which finds the coarse bin holding the wanted rank, and only
+ * that bin's 16 fine sums are brought up to date, from wherever they were
+ * last used. The work per pixel therefore stays roughly constant as the
+ * radius grows.
+ *
+ * Windows reaching past the edge read through an EdgeMode, the same way
+ * convolution taps do. Channels are filtered one at a time to keep the
+ * histograms small, and the output is opaque.
+ */
+public class RankFilter {
+
+    /** The largest radius whose window sizes fit the histograms' counters. */
+    public static final int MAX_RADIUS = 23169;
+
+    private static final int BINS = 256;
+    private static final int COARSE_BINS = 16;
+    private static final int FINE_BITS = 4;
+
+    private RankFilter() {
+    }
+
+    /**
+     * Write rows {@code [y0, y1)} of {@code result}: the value of rank
+     * {@code rank}, counting from 0, in each channel's window of
+     * {@code pixels}.
+     */
+    static void filterRows(PixelBuffer pixels, PixelBuffer result, int radius, int rank, EdgeMode edges,
+                           int border, int y0, int y1) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int size = 2 * radius + 1;
+        int columns = width + 2 * radius;
+
+        // Window columns map to image columns once per band; -1 reads as border
+        int[] sourceColumns = new int[columns];
+        for (int c = 0; c < columns; c++) {
+            sourceColumns[c] = edges.index(c - radius, width);
+        }
+        int[] rowStarts = new int[y1 - y0 + 2 * radius];
+        for (int r = 0; r < rowStarts.length; r++) {
+            int sy = edges.index(y0 - radius + r, height);
+            rowStarts[r] = sy < 0 ? -1 : sy * width;
+        }
+
+        char[] fine = new char[columns * BINS];
+        char[] coarse = new char[columns * COARSE_BINS];
+        int[] windowFine = new int[BINS];
+        int[] windowCoarse = new int[COARSE_BINS];
+        int[] fineColumn = new int[COARSE_BINS];
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int borderValue = (border >> shift) & 0xFF;
+            Arrays.fill(fine, (char) 0);
+            Arrays.fill(coarse, (char) 0);
+            // Every row of the first window but its last
+            for (int r = 0; r < size - 1; r++) {
+                addRow(src, rowStarts[r], sourceColumns, shift, borderValue, fine, coarse, 1);
+            }
+
+            for (int y = y0; y < y1; y++) {
+                int r = y - y0;
+                addRow(src, rowStarts[r + size - 1], sourceColumns, shift, borderValue, fine, coarse, 1);
+
+                Arrays.fill(windowCoarse, 0);
+                for (int c = 0; c < size; c++) {
+                    for (int b = 0; b < COARSE_BINS; b++) {
+                        windowCoarse[b] += coarse[c * COARSE_BINS + b];
+                    }
+                }
+                // No fine bin has been summed for this row yet
+                Arrays.fill(fineColumn, -1);
+
+                int rowStart = y * width;
+                for (int x = 0; x < width; x++) {
+                    // The window covers columns [x, end] of the histograms
+                    int end = x + size - 1;
+                    if (x > 0) {
+                        int in = end * COARSE_BINS;
+                        int out = (x - 1) * COARSE_BINS;
+                        for (int b = 0; b < COARSE_BINS; b++) {
+                            windowCoarse[b] += coarse[in + b] - coarse[out + b];
+                        }
+                    }
+
+                    int remaining = rank;
+                    int b = 0;
+                    while (remaining >= windowCoarse[b]) {
+                        remaining -= windowCoarse[b];
+                        b++;
+                    }
+                    updateFine(fine, windowFine, fineColumn, b, x, end, size);
+
+                    int value = b << FINE_BITS;
+                    while (remaining >= windowFine[value]) {
+                        remaining -= windowFine[value];
+                        value++;
+                    }
+                    if (shift == 16) {
+                        dst[rowStart + x] = PixelBuffer.OPAQUE | value << 16;
+                    } else {
+                        dst[rowStart + x] |= value << shift;
+                    }
+                }
+
+                addRow(src, rowStarts[r], sourceColumns, shift, borderValue, fine, coarse, -1);
+            }
+        }
+    }
+
+    // Add (delta 1) or remove (delta -1) one row's values in every column histogram
+    private static void addRow(int[] src, int rowStart, int[] sourceColumns, int shift, int borderValue,
+                               char[] fine, char[] coarse, int delta) {
+        for (int c = 0; c < sourceColumns.length; c++) {
+            int sx = sourceColumns[c];
+            int value = rowStart < 0 || sx < 0 ? borderValue : (src[rowStart + sx] >> shift) & 0xFF;
+            // A column counts at most 2 * MAX_RADIUS + 1 rows, so the narrowing to char loses nothing
+            int f = c * BINS + value;
+            int b = c * COARSE_BINS + (value >> FINE_BITS);
+            fine[f] = (char) (fine[f] + delta);
+            coarse[b] = (char) (coarse[b] + delta);
+        }
+    }
+
+    /**
+     * Bring the window's fine bins under coarse bin {@code b} to columns
+     * {@code [x, end]}, from the window they were last summed for: column by
+     * column if that is close, otherwise from scratch.
+     */
+    private static void updateFine(char[] fine, int[] windowFine, int[] fineColumn, int b, int x, int end,
+                                   int size) {
+        int last = fineColumn[b];
+        int first = b << FINE_BITS;
+        if (last < 0 || 2 * (end - last) > size) {
+            Arrays.fill(windowFine, first, first + COARSE_BINS, 0);
+            for (int c = x; c <= end; c++) {
+                int base = c * BINS + first;
+                for (int i = 0; i < COARSE_BINS; i++) {
+                    windowFine[first + i] += fine[base + i];
+                }
+            }
+        } else {
+            for (int c = last + 1; c <= end; c++) {
+                int in = c * BINS + first;
+                int out = (c - size) * BINS + first;
+                for (int i = 0; i < COARSE_BINS; i++) {
+                    windowFine[first + i] += fine[in + i] - fine[out + i];
+                }
+            }
+        }
+        fineColumn[b] = end;
+    }
+}
@@ -0,0 +1,206 @@
+//Uncompressed pixel files for ImageProcessor, read and written through memory maps
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A working format with no codec: a 16-byte header followed by the pixels
+ * exactly as PixelBuffer holds them, so loading and saving are a bulk copy
+ * between the pixel array and a memory-mapped view of the file.
+ *
+ * <pre>
+ * offset  size       contents
+ * 0       4          magic "IPRB"
+ * 4       4          format version, 1
+ * 8       4          width
+ * 12      4          height
+ * 16      4 * w * h  pixels, row by row, as packed ARGB ints
+ * </pre>
+ * Every int is little-endian, the native order of x86 and ARM, so on those
+ * the copies need no byte swapping.
+ *
+ * The pixels are one interleaved ARGB plane rather than a plane per channel,
+ * because that is PixelBuffer's own layout; separate planes would cost a
+ * repacking pass on every load and save.
+ *
+ * RawImageMapping skips the copy altogether by mapping the pixels as an
+ * OffHeapPixelBuffer, which also takes images of more than 2^31 pixels.
+ */
+public class RawImageFile {
+
+    public static final String EXTENSION = "argb";
+
+    private static final int MAGIC = 'I' | 'P' << 8 | 'R' << 16 | 'B' << 24;
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    // A single mapping cannot pass 2 GB, so larger images are mapped a band of rows at a time
+    private static final long MAX_MAPPING_BYTES = 1 << 30;
+
+    private RawImageFile() {
+    }
+
+    /**
+     * Whether {@code file} starts with this format's magic number.
+     */
+    public static boolean isRawImage(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // Keep reading until all four bytes are in
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    public static PixelBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int[] size = readHeader(channel, file, PixelBuffer.MAX_PIXELS);
+            int width = size[0];
+            int height = size[1];
+
+            PixelBuffer pixels = new PixelBuffer(width, height);
+            int[] dst = pixels.getPixels();
+            int bandRows = bandRows(width);
+            for (int y = 0; y < height; y += bandRows) {
+                int rows = Math.min(bandRows, height - y);
+                map(channel, FileChannel.MapMode.READ_ONLY, width, y, rows).asIntBuffer()
+                        .get(dst, y * width, rows * width);
+            }
+            return pixels;
+        }
+    }
+
+    /**
+     * Open {@code file} for StreamingProcessor, which pulls a row at a time
+     * from a mapped band of the file without holding the whole image.
+     */
+    public static RowSource openRows(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            int[] size = readHeader(channel, file, Integer.MAX_VALUE);
+            return new Rows(channel, size[0], size[1]);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Check the header against the file and return {width, height}
+    static int[] readHeader(FileChannel channel, File file, long maxPixels) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            throw new IOException(file + " is too short to be a raw image");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a raw image");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException(file + " has unsupported raw image version " + header.getInt(4));
+        }
+        int width = header.getInt(8);
+        int height = header.getInt(12);
+        if (width <= 0 || height <= 0 || (long) width * height > maxPixels) {
+            throw new IOException(file + " has bad dimensions " + width + "x" + height);
+        }
+        if (channel.size() != HEADER_BYTES + 4L * width * height) {
+            throw new IOException(file + " should be " + (HEADER_BYTES + 4L * width * height)
+                                  + " bytes for " + width + "x" + height + " but is " + channel.size());
+        }
+        return new int[] {width, height};
+    }
+
+    /**
+     * Write {@code pixels} to {@code file}, replacing it.
+     *
+     * @return the size of the file in bytes
+     */
+    public static long write(PixelBuffer pixels, File file) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] src = pixels.getPixels();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeHeader(channel, width, height);
+
+            int bandRows = bandRows(width);
+            for (int y = 0; y < height; y += bandRows) {
+                int rows = Math.min(bandRows, height - y);
+                map(channel, FileChannel.MapMode.READ_WRITE, width, y, rows).asIntBuffer()
+                        .put(src, y * width, rows * width);
+            }
+            return channel.size();
+        }
+    }
+
+    static void writeHeader(FileChannel channel, int width, int height) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+    }
+
+    private static int bandRows(int width) {
+        return (int) Math.max(1, MAX_MAPPING_BYTES / (4L * width));
+    }
+
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, int width, int y, int rows)
+            throws IOException {
+        return channel.map(mode, HEADER_BYTES + 4L * y * width, 4L * rows * width).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class Rows implements RowSource {
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private final int bandRows;
+        private IntBuffer band;
+        private int next;
+
+        Rows(FileChannel channel, int width, int height) {
+            this.channel = channel;
+            this.width = width;
+            this.height = height;
+            this.bandRows = bandRows(width);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int[] row, int offset) throws IOException {
+            if (next >= height) {
+                throw new EOFException("All " + height + " rows have been read");
+            }
+            if (band == null || !band.hasRemaining()) {
+                band = map(channel, FileChannel.MapMode.READ_ONLY, width, next, Math.min(bandRows, height - next))
+                        .asIntBuffer();
+            }
+            band.get(row, offset, width);
+            next++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+//Raw pixel files mapped straight into off-heap pixel buffers
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Opens RawImageFile images as OffHeapPixelBuffers over a mapping of the
+ * file, so the pixels are read from and written to the page cache with no
+ * copy on the heap, and an image may have more than 2^31 pixels.
+ *
+ * Like OffHeapPixelBuffer this needs java.lang.foreign, so it is kept out of
+ * RawImageFile, which every load path uses.
+ */
+public class RawImageMapping {
+
+    private RawImageMapping() {
+    }
+
+    /**
+     * Map the pixels of {@code file} in place until {@code arena} closes.
+     * With {@code writable} set, changes to the buffer are written to the file.
+     */
+    public static OffHeapPixelBuffer map(File file, boolean writable, Arena arena) throws IOException {
+        StandardOpenOption[] options = writable
+                ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[] {StandardOpenOption.READ};
+        // The mapping outlives the channel
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            int[] size = RawImageFile.readHeader(channel, file, Long.MAX_VALUE);
+            return OffHeapPixelBuffer.map(channel, writable ? FileChannel.MapMode.READ_WRITE
+                                                            : FileChannel.MapMode.READ_ONLY,
+                                          RawImageFile.HEADER_BYTES, size[0], size[1], arena);
+        }
+    }
+
+    /**
+     * Create {@code file} as a {@code width x height} image, replacing it,
+     * and map its pixels for writing until {@code arena} closes. The pixels
+     * start transparent black.
+     */
+    public static OffHeapPixelBuffer create(File file, int width, int height, Arena arena) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            RawImageFile.writeHeader(channel, width, height);
+            return OffHeapPixelBuffer.map(channel, FileChannel.MapMode.READ_WRITE, RawImageFile.HEADER_BYTES,
+                                          width, height, arena);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+//Resizes images by separable resampling with cached weight tables
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changes an image's size as a horizontal pass followed by a vertical one.
+ * Each pass is described by a {@link Weights} table: for every output
+ * column (or row), the first source column it reads and one weight per tap.
+ * Tables depend only on the source size, the target size and the method, so
+ * they are built once and kept in a small cache shared by every caller.
+ *
+ * Filters are centred on each output pixel's centre mapped into the source.
+ * When shrinking, BILINEAR and LANCZOS3 are stretched by the scale factor so
+ * that every source pixel contributes, which keeps fine detail from
+ * aliasing. AREA weights each source pixel by how much of it the output
+ * pixel covers. Source pixels past the edge are read as the nearest edge
+ * pixel, whatever the engine's EdgeMode; the tables fold those taps onto the
+ * edge, so the loops never check bounds.
+ *
+ * The passes run in float, like ConvolutionEngine's separable passes, and
+ * LANCZOS3's negative lobes are clamped only at the end. Output is opaque.
+ */
+public class Resampler {
+
+    public enum Method {
+        NEAREST, BILINEAR, AREA, LANCZOS3
+    }
+
+    // Weight tables kept for reuse, least recently used dropped first
+    private static final int CACHED_TABLES = 64;
+
+    private static final Map<String, Weights> CACHE = new LinkedHashMap<String, Weights>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Weights> eldest) {
+            return size() > CACHED_TABLES;
+        }
+    };
+
+    private Resampler() {
+    }
+
+    /**
+     * How one axis of {@code from} pixels maps onto {@code to} pixels.
+     */
+    static class Weights {
+        final int taps;
+        final int[] first;
+        final float[][] weights;
+
+        private Weights(int taps, int[] first, float[][] weights) {
+            this.taps = taps;
+            this.first = first;
+            this.weights = weights;
+        }
+
+        /**
+         * Whether every output pixel copies exactly one source pixel.
+         */
+        boolean isCopy() {
+            return taps == 1;
+        }
+    }
+
+    /**
+     * The shared weight table taking {@code from} pixels to {@code to}.
+     */
+    static Weights weights(int from, int to, Method method) {
+        String key = from + ":" + to + ":" + method;
+        synchronized (CACHE) {
+            Weights cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Built outside the lock; racing threads build equal tables
+        Weights built = build(from, to, method);
+        synchronized (CACHE) {
+            CACHE.put(key, built);
+        }
+        return built;
+    }
+
+    private static Weights build(int from, int to, Method method) {
+        if (from < 1 || to < 1) {
+            throw new IllegalArgumentException("Sizes must be positive: " + from + " to " + to);
+        }
+        double scale = (double) from / to;
+        double stretch = Math.max(1, scale);
+        double[][] raw = new double[to][];
+        int[] lowest = new int[to];
+        int taps = 1;
+
+        for (int o = 0; o < to; o++) {
+            double centre = (o + 0.5) * scale;
+            int lo;
+            int hi;
+            double[] contributions;
+            if (method == Method.NEAREST) {
+                lo = clampIndex((int) Math.floor(centre), from);
+                hi = lo;
+                contributions = new double[] {1};
+            } else if (method == Method.AREA) {
+                // The output pixel covers [o * scale, (o + 1) * scale) of the source
+                double start = o * scale;
+                double end = start + scale;
+                lo = (int) Math.floor(start);
+                hi = Math.min(from - 1, (int) Math.ceil(end) - 1);
+                contributions = new double[hi - lo + 1];
+                for (int i = lo; i <= hi; i++) {
+                    contributions[i - lo] = Math.min(end, i + 1) - Math.max(start, i);
+                }
+            } else {
+                double support = (method == Method.LANCZOS3 ? 3 : 1) * stretch;
+                int start = (int) Math.floor(centre - support);
+                int end = (int) Math.ceil(centre + support);
+                // Fold taps past either edge onto the edge pixel
+                lo = clampIndex(start, from);
+                hi = clampIndex(end, from);
+                contributions = new double[hi - lo + 1];
+                for (int i = start; i <= end; i++) {
+                    double x = (i + 0.5 - centre) / stretch;
+                    contributions[clampIndex(i, from) - lo] += method == Method.LANCZOS3 ? lanczos3(x) : triangle(x);
+                }
+            }
+            raw[o] = contributions;
+            lowest[o] = lo;
+            taps = Math.max(taps, contributions.length);
+        }
+
+        // Every output gets the same number of taps, so windows near the end start earlier
+        taps = Math.min(taps, from);
+        int[] first = new int[to];
+        float[][] weights = new float[to][taps];
+        for (int o = 0; o < to; o++) {
+            first[o] = Math.min(lowest[o], from - taps);
+            double sum = 0;
+            for (double w : raw[o]) {
+                sum += w;
+            }
+            for (int i = 0; i < raw[o].length; i++) {
+                weights[o][lowest[o] + i - first[o]] = (float) (raw[o][i] / sum);
+            }
+        }
+        return new Weights(taps, first, weights);
+    }
+
+    private static int clampIndex(int i, int n) {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+
+    private static double triangle(double x) {
+        return Math.max(0, 1 - Math.abs(x));
+    }
+
+    private static double lanczos3(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        if (Math.abs(x) >= 3) {
+            return 0;
+        }
+        double px = Math.PI * x;
+        return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+    }
+
+    /**
+     * Write rows {@code [y0, y1)} of {@code result}, which has the target
+     * size, from the source rows they reach.
+     */
+    static void resizeRows(PixelBuffer pixels, PixelBuffer result, Weights horizontal, Weights vertical,
+                           int y0, int y1) {
+        int srcWidth = pixels.getWidth();
+        int width = result.getWidth();
+        int[] src = pixels.getPixels();
+        int[] dst = result.getPixels();
+
+        if (horizontal.isCopy() && vertical.isCopy()) {
+            for (int y = y0; y < y1; y++) {
+                int srcStart = vertical.first[y] * srcWidth;
+                for (int x = 0; x < width; x++) {
+                    dst[y * width + x] = PixelBuffer.OPAQUE | src[srcStart + horizontal.first[x]];
+                }
+            }
+            return;
+        }
+
+        int top = vertical.first[y0];
+        int rows = vertical.first[y1 - 1] + vertical.taps - top;
+        float[] red = new float[rows * width];
+        float[] green = new float[rows * width];
+        float[] blue = new float[rows * width];
+        for (int r = 0; r < rows; r++) {
+            horizontalRow(src, (top + r) * srcWidth, horizontal, red, green, blue, r * width);
+        }
+
+        int[] rowStarts = new int[vertical.taps];
+        for (int y = y0; y < y1; y++) {
+            for (int k = 0; k < rowStarts.length; k++) {
+                rowStarts[k] = (vertical.first[y] + k - top) * width;
+            }
+            ConvolutionEngine.verticalRow(red, green, blue, rowStarts, vertical.weights[y], dst, y * width, width);
+        }
+    }
+
+    /**
+     * Resample the source row at {@code srcStart} to the target width, into
+     * the float rows at {@code dstStart}.
+     */
+    static void horizontalRow(int[] src, int srcStart, Weights weights, float[] red, float[] green, float[] blue,
+                              int dstStart) {
+        int[] first = weights.first;
+        float[][] taps = weights.weights;
+        for (int x = 0; x < first.length; x++) {
+            int base = srcStart + first[x];
+            float[] w = taps[x];
+            float sumRed = 0;
+            float sumGreen = 0;
+            float sumBlue = 0;
+            for (int k = 0; k < w.length; k++) {
+                int argb = src[base + k];
+                float weight = w[k];
+                sumRed += ((argb >> 16) & 0xFF) * weight;
+                sumGreen += ((argb >> 8) & 0xFF) * weight;
+                sumBlue += (argb & 0xFF) * weight;
+            }
+            red[dstStart + x] = sumRed;
+            green[dstStart + x] = sumGreen;
+            blue[dstStart + x] = sumBlue;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+//Row-at-a-time output for the streaming filter pipeline
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives an image one row at a time, top to bottom.
+ */
+public interface RowSink extends Closeable {
+
+    /**
+     * Accept the next row, held in {@code row[0, width)}. The array is reused
+     * for the following row, so implementations must copy what they keep.
+     */
+    void writeRow(int[] row) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
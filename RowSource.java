@@ -0,0 +1,24 @@
+//Row-at-a-time input for the streaming filter pipeline
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies an image one row at a time, top to bottom. Each row is packed ARGB
+ * in the same layout as a {@code PixelBuffer} row.
+ */
+public interface RowSource extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Copy the next row into {@code row[offset, offset + getWidth())}.
+     */
+    void readRow(int[] row, int offset) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
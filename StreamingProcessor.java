@@ -0,0 +1,102 @@
+//Filters image files larger than the heap by streaming them through a FilterPipeline
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Runs a {@code FilterPipeline} from a file to a PNG file without ever holding
+ * the whole image. The source is decoded a row or a band at a time, each
+ * convolution keeps only its kernel-height rolling buffer, and rows are
+ * encoded as soon as they leave the chain, so peak memory grows with image
+ * width rather than image area.
+ */
+public class StreamingProcessor {
+
+    // Rows decoded per request when a file has to go through ImageIO
+    private static final int DEFAULT_BAND_ROWS = 64;
+
+    private final FilterPipeline pipeline;
+    private final int bandRows;
+
+    public StreamingProcessor(FilterPipeline pipeline) {
+        this(pipeline, DEFAULT_BAND_ROWS);
+    }
+
+    public StreamingProcessor(FilterPipeline pipeline, int bandRows) {
+        this.pipeline = pipeline;
+        this.bandRows = bandRows;
+    }
+
+    public void process(File input, File output) throws IOException {
+        process(input, output, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public void process(File input, File output, int compressionLevel) throws IOException {
+        process(input, output, compressionLevel, null);
+    }
+
+    /**
+     * Process as above, recording the whole pass as one {@code stream} stage
+     * of {@code timings} if it is not null; decoding, filtering and encoding
+     * are interleaved row by row, so they cannot be timed apart.
+     */
+    public void process(File input, File output, int compressionLevel, OperationTimer timings)
+            throws IOException {
+        process(input, output, compressionLevel, timings, null, null);
+    }
+
+    /**
+     * Process as above, also counting the input's rows into
+     * {@code inputStatistics} as they are decoded and the output's into
+     * {@code outputStatistics} as they are encoded, where those are not null.
+     */
+    public void process(File input, File output, int compressionLevel, OperationTimer timings,
+                        ImageStatistics.Collector inputStatistics, ImageStatistics.Collector outputStatistics)
+            throws IOException {
+        try (RowSource decoded = open(input)) {
+            int[] size = pipeline.outputSize(decoded.getWidth(), decoded.getHeight());
+            try (RowSink encoded = new PngRowWriter(output, size[0], size[1], compressionLevel)) {
+                RowSource source = inputStatistics == null ? decoded : inputStatistics.counting(decoded);
+                RowSink sink = outputStatistics == null ? encoded : outputStatistics.counting(encoded, size[0]);
+                if (timings == null) {
+                    pipeline.run(source, sink);
+                    return;
+                }
+                timings.setSize(source.getWidth(), source.getHeight());
+                OperationTimer.Clock clock = timings.start();
+                pipeline.run(source, sink);
+                clock.stop("stream", timings.getPixels());
+            }
+        }
+    }
+
+    /**
+     * Open a file as a {@code RowSource}, mapping raw images and decoding PNGs
+     * row by row, and anything else through ImageIO in bands.
+     */
+    public RowSource open(File input) throws IOException {
+        if (RawImageFile.isRawImage(input)) {
+            return RawImageFile.openRows(input);
+        }
+        if (isStreamablePng(input)) {
+            return new PngRowReader(input);
+        }
+        return new ImageIORowReader(input, bandRows);
+    }
+
+    private static boolean isStreamablePng(File input) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(input))) {
+            // Signature (8 bytes), IHDR length and type (8), then the interlace flag at offset 28
+            byte[] header = new byte[29];
+            in.readFully(header);
+            boolean png = (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G';
+            return png && header[28] == 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+//Summed-area tables of the ImageProcessor colour channels, for box sums of any size
+
+/**
+ * A summed-area table (integral image) of the red, green and blue channels:
+ * each entry holds the sum of every pixel above and to the left of it, so the
+ * sum over any rectangle costs four lookups however large the rectangle is.
+ *
+ * The table covers a rectangle of the image that may reach past its edges.
+ * Pixels out there are read through an EdgeMode exactly as convolution taps
+ * are, so a box blur built on the table treats the edges the same way as a
+ * convolution with {@code Kernel.box}.
+ *
+ * Entries are ints and are allowed to overflow. A rectangle sum is a
+ * difference of entries, which is exact modulo 2^32, so it is right whenever
+ * the true sum fits in 32 unsigned bits: any rectangle of at most
+ * {@link #MAX_AREA} pixels.
+ */
+public class SummedAreaTable {
+
+    /** The largest rectangle, in pixels, whose channel sums cannot overflow. */
+    public static final long MAX_AREA = 0xFFFFFFFFL / 255;
+
+    private final int left;
+    private final int top;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    /**
+     * Build the table over columns {@code [left, left + width)} and rows
+     * {@code [top, top + height)} of {@code pixels}, reading anything outside
+     * the image according to {@code edges}, or as {@code border} where the
+     * mode has nothing to map to.
+     */
+    public SummedAreaTable(PixelBuffer pixels, int left, int top, int width, int height, EdgeMode edges,
+                           int border) {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.red = new int[(height + 1) * stride];
+        this.green = new int[(height + 1) * stride];
+        this.blue = new int[(height + 1) * stride];
+
+        int imageWidth = pixels.getWidth();
+        int imageHeight = pixels.getHeight();
+        int[] src = pixels.getPixels();
+
+        // Columns are mapped once rather than once per row
+        int[] columns = new int[width];
+        for (int i = 0; i < width; i++) {
+            columns[i] = edges.index(left + i, imageWidth);
+        }
+
+        for (int r = 0; r < height; r++) {
+            int sy = edges.index(top + r, imageHeight);
+            int srcStart = sy * imageWidth;
+            int above = r * stride + 1;
+            int here = above + stride;
+            int rowRed = 0;
+            int rowGreen = 0;
+            int rowBlue = 0;
+            for (int i = 0; i < width; i++) {
+                int argb = sy < 0 || columns[i] < 0 ? border : src[srcStart + columns[i]];
+                rowRed += (argb >> 16) & 0xFF;
+                rowGreen += (argb >> 8) & 0xFF;
+                rowBlue += argb & 0xFF;
+                red[here + i] = red[above + i] + rowRed;
+                green[here + i] = green[above + i] + rowGreen;
+                blue[here + i] = blue[above + i] + rowBlue;
+            }
+        }
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The sums of red, green and blue over image columns {@code [x0, x1)} and
+     * rows {@code [y0, y1)}, which must lie within the table.
+     */
+    public long sumRed(int x0, int y0, int x1, int y1) {
+        return sum(red, x0, y0, x1, y1);
+    }
+
+    public long sumGreen(int x0, int y0, int x1, int y1) {
+        return sum(green, x0, y0, x1, y1);
+    }
+
+    public long sumBlue(int x0, int y0, int x1, int y1) {
+        return sum(blue, x0, y0, x1, y1);
+    }
+
+    private long sum(int[] table, int x0, int y0, int x1, int y1) {
+        int a = (y0 - top) * stride + (x0 - left);
+        int b = (y1 - top) * stride + (x0 - left);
+        int span = x1 - x0;
+        return Integer.toUnsignedLong(table[b + span] - table[b] - table[a + span] + table[a]);
+    }
+
+    /**
+     * Write the mean colour of the {@code (2 * radius + 1)}-pixel square
+     * centred on each of the {@code count} pixels of image row {@code y} from
+     * column {@code x0}, as opaque ARGB, into {@code dst} from
+     * {@code dstStart}. Every square must lie within the table.
+     */
+    public void boxRow(int y, int x0, int count, int radius, int[] dst, int dstStart) {
+        int size = 2 * radius + 1;
+        // The area is odd, so no mean falls exactly halfway and the rounding
+        // in clamp matches exact integer rounding of sum / area
+        double scale = 1.0 / ((double) size * size);
+        int a = (y - radius - top) * stride + (x0 - radius - left);
+        int b = a + size * stride;
+
+        for (int i = 0; i < count; i++, a++, b++) {
+            int sumRed = red[b + size] - red[b] - red[a + size] + red[a];
+            int sumGreen = green[b + size] - green[b] - green[a + size] + green[a];
+            int sumBlue = blue[b + size] - blue[b] - blue[a + size] + blue[a];
+            dst[dstStart + i] = PixelBuffer.pack(PixelBuffer.clamp(Integer.toUnsignedLong(sumRed) * scale),
+                                                 PixelBuffer.clamp(Integer.toUnsignedLong(sumGreen) * scale),
+                                                 PixelBuffer.clamp(Integer.toUnsignedLong(sumBlue) * scale));
+        }
+    }
+}
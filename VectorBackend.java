@@ -0,0 +1,21 @@
+//Decides whether the Vector API versions of the filter loops are used
+
+/**
+ * Whether VectorKernels is used. The Vector API is still an incubator module
+ * in this JDK, so it is only used when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}; otherwise every loop runs its
+ * scalar code. {@code -Dimageprocessor.vector=false} forces the scalar code
+ * even when the module is present.
+ *
+ * This class must not mention any jdk.incubator.vector type, so it can load
+ * when the module is missing.
+ */
+public class VectorBackend {
+
+    public static final boolean ENABLED =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && Boolean.parseBoolean(System.getProperty("imageprocessor.vector", "true"));
+
+    private VectorBackend() {
+    }
+}
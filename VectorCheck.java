@@ -0,0 +1,143 @@
+//Checks that the Vector API loops give exactly the scalar loops' results
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Filters random images of awkward widths, so that every vector loop leaves
+ * a scalar tail of a different length, with each filter that reaches
+ * VectorKernels: direct and separable convolutions, a size change (whose
+ * vertical pass is verticalRow) and the colour-matrix point operations, under
+ * every EdgeMode. Each result is reduced to a CRC32 of its pixels.
+ *
+ * VectorKernels promises results bit-identical to the scalar code, so the
+ * tolerance is zero. When the Vector API is in use, the check runs itself
+ * again in a second JVM with {@code -Dimageprocessor.vector=false}, compares
+ * the two sets of digests, and exits with status 1 if any differs. Without
+ * the Vector API it only prints the scalar digests.
+ *
+ * Usage:
+ * <pre>
+ * java --add-modules jdk.incubator.vector VectorCheck
+ * java --add-modules jdk.incubator.vector -Dimageprocessor.vector=false VectorCheck
+ * </pre>
+ */
+public class VectorCheck {
+
+    private static final String[] FILTERS = {"SHARPEN", "EMBOSS", "EDGE", "GAUSSIAN_7", "BOX_5",
+                                             "SCALE_0.7_BILINEAR", "SCALE_1.3", "RESIZE_97x41_AREA",
+                                             ImageFilters.SEPIA, ImageFilters.GREYSCALE};
+    // Widths below one vector, and just short of and just past whole vectors, of 4, 8 or 16 lanes
+    private static final int[] WIDTHS = {3, 15, 17, 71, 253};
+    private static final int HEIGHT = 37;
+    private static final int BORDER = 0xFF336699;
+
+    // Passed to the second JVM so that it prints its digests instead of comparing them
+    private static final String DIGESTS_ONLY = "--digests";
+
+    private VectorCheck() {
+    }
+
+    /**
+     * The CRC32 of every filter, edge mode and width's output, by a name for
+     * the combination, in a fixed order.
+     */
+    static Map<String, Long> digests() {
+        Map<String, Long> digests = new LinkedHashMap<>();
+        for (EdgeMode edges : EdgeMode.values()) {
+            ImageFilters filters = new ImageFilters(new ConvolutionEngine(1, edges, BORDER));
+            for (int width : WIDTHS) {
+                PixelBuffer pixels = FilterBenchmark.randomImage(width, HEIGHT);
+                for (String filterType : FILTERS) {
+                    digests.put(filterType + " " + edges + " " + width + "x" + HEIGHT,
+                                digest(filters.apply(filterType, pixels).getPixels()));
+                }
+            }
+        }
+        return digests;
+    }
+
+    private static long digest(int[] pixels) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[4];
+        for (int argb : pixels) {
+            bytes[0] = (byte) (argb >>> 24);
+            bytes[1] = (byte) (argb >>> 16);
+            bytes[2] = (byte) (argb >>> 8);
+            bytes[3] = (byte) argb;
+            crc.update(bytes);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Run this check in a new JVM on the same class path with the Vector API
+     * turned off, and read back the digests it prints.
+     */
+    static Map<String, Long> scalarDigests() throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command()
+                .orElse(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("--add-modules");
+        command.add("jdk.incubator.vector");
+        command.add("-Dimageprocessor.vector=false");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(VectorCheck.class.getName());
+        command.add(DIGESTS_ONLY);
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        Map<String, Long> digests = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                digests.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1), 16));
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("The scalar run exited with status " + process.exitValue());
+        }
+        return digests;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 1 || (args.length == 1 && !args[0].equals(DIGESTS_ONLY))) {
+            System.err.println("Usage: java --add-modules jdk.incubator.vector VectorCheck");
+            System.exit(2);
+        }
+        Map<String, Long> digests = digests();
+        if (args.length == 1 || !VectorBackend.ENABLED) {
+            for (Map.Entry<String, Long> entry : digests.entrySet()) {
+                System.out.println(entry.getKey() + "\t" + Long.toHexString(entry.getValue()));
+            }
+            if (args.length == 0) {
+                System.err.println("The Vector API is off, so these are the scalar digests with nothing to "
+                                   + "compare them with");
+            }
+            System.exit(0);
+        }
+
+        Map<String, Long> scalar = scalarDigests();
+        int failures = 0;
+        for (Map.Entry<String, Long> entry : digests.entrySet()) {
+            if (!entry.getValue().equals(scalar.get(entry.getKey()))) {
+                failures++;
+                System.out.println("MISMATCH " + entry.getKey());
+            }
+        }
+        System.out.println((digests.size() - failures) + " of " + digests.size()
+                           + " results identical with and without the Vector API");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,222 @@
+//Vector API versions of the ConvolutionEngine and ColorTransform inner loops
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the hot loops, working on as many pixels per step as the
+ * CPU's preferred vector shape holds. Only call these when
+ * {@link VectorBackend#ENABLED} is true.
+ *
+ * Each method handles whole vectors from {@code x0} and returns the first
+ * pixel it did not handle; the caller finishes the tail with its scalar loop.
+ *
+ * The convolutions do a separate multiply and add per tap, in the same order
+ * as the scalar code and with no fused multiply-add, and round the same way.
+ * Their results are therefore bit-identical to the scalar path, not just
+ * within a tolerance. The colour matrix works in the same integer fixed
+ * point as ColorTransform's product tables, so it is exact too. The
+ * tolerance is therefore zero, and VectorCheck compares digests of both
+ * paths' results, run with and without {@code -Dimageprocessor.vector=false}.
+ *
+ * JDK 17's C2 boxes every vector in a loop it cannot fully inline, which
+ * makes it several times slower than the scalar code. Two things keep these
+ * loops inlinable. Floats are rounded back to ints by shifting their
+ * mantissa, because C2 does not intrinsify an F2I {@code convert} on every
+ * shape. The convolutions also leave their float sums in a per-thread
+ * scratch row for packRow, instead of rounding in the same loop, which
+ * would push the method past C2's inlining node limit.
+ */
+public class VectorKernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = FLOATS.withLanes(int.class);
+    private static final int LANES = FLOATS.length();
+
+    // Float sums waiting for packRow, one row per channel
+    private static final ThreadLocal<float[][]> SCRATCH = ThreadLocal.withInitial(() -> new float[3][0]);
+
+    private VectorKernels() {
+    }
+
+    /**
+     * The interior of ConvolutionEngine.convolveRow for output pixels in
+     * {@code [x0, x1)}, where every tap column is inside the row. Rows under
+     * a CONSTANT border are left to the scalar loop.
+     */
+    static int convolveInterior(int[] src, int[] rowStarts, float[][] kernel, int[] dst, int dstStart,
+                                int x0, int x1) {
+        for (int start : rowStarts) {
+            if (start < 0) {
+                return x0;
+            }
+        }
+        int kw = kernel[0].length;
+        int rx = kw / 2;
+
+        // One flat loop over the taps; C2 keeps accumulators in registers
+        // through a single loop but boxes them through nested ones
+        int taps = kernel.length * kw;
+        int[] offsets = new int[taps];
+        float[] weights = new float[taps];
+        for (int ky = 0, k = 0; ky < kernel.length; ky++) {
+            for (int kx = 0; kx < kw; kx++, k++) {
+                offsets[k] = rowStarts[ky] + kx - rx;
+                weights[k] = kernel[ky][kx];
+            }
+        }
+
+        float[][] sums = scratch(x1);
+        int x = x0;
+        for (; x + LANES <= x1; x += LANES) {
+            FloatVector red = FloatVector.zero(FLOATS);
+            FloatVector green = FloatVector.zero(FLOATS);
+            FloatVector blue = FloatVector.zero(FLOATS);
+            for (int k = 0; k < taps; k++) {
+                IntVector argb = IntVector.fromArray(INTS, src, offsets[k] + x);
+                float weight = weights[k];
+                red = red.add(channel(argb, 16).mul(weight));
+                green = green.add(channel(argb, 8).mul(weight));
+                blue = blue.add(channel(argb, 0).mul(weight));
+            }
+            red.intoArray(sums[0], x);
+            green.intoArray(sums[1], x);
+            blue.intoArray(sums[2], x);
+        }
+        packRow(sums, dst, dstStart, x0, x);
+        return x;
+    }
+
+    /**
+     * The interior of ConvolutionEngine.horizontalRow for pixels in
+     * {@code [x0, x1)}, where every tap is inside the row.
+     */
+    static int horizontalInterior(int[] src, int srcStart, float[] taps, float[] red, float[] green, float[] blue,
+                                  int dstStart, int x0, int x1) {
+        int rx = taps.length / 2;
+        int x = x0;
+
+        for (; x + LANES <= x1; x += LANES) {
+            int base = srcStart + x - rx;
+            FloatVector sumRed = FloatVector.zero(FLOATS);
+            FloatVector sumGreen = FloatVector.zero(FLOATS);
+            FloatVector sumBlue = FloatVector.zero(FLOATS);
+            for (int k = 0; k < taps.length; k++) {
+                IntVector argb = IntVector.fromArray(INTS, src, base + k);
+                float weight = taps[k];
+                sumRed = sumRed.add(channel(argb, 16).mul(weight));
+                sumGreen = sumGreen.add(channel(argb, 8).mul(weight));
+                sumBlue = sumBlue.add(channel(argb, 0).mul(weight));
+            }
+            sumRed.intoArray(red, dstStart + x);
+            sumGreen.intoArray(green, dstStart + x);
+            sumBlue.intoArray(blue, dstStart + x);
+        }
+        return x;
+    }
+
+    /**
+     * ConvolutionEngine.verticalRow for pixels in {@code [0, width)}.
+     */
+    static int verticalRow(float[] red, float[] green, float[] blue, int[] rowStarts, float[] taps,
+                           int[] dst, int dstStart, int width) {
+        float[][] sums = scratch(width);
+        int x = 0;
+
+        for (; x + LANES <= width; x += LANES) {
+            FloatVector sumRed = FloatVector.zero(FLOATS);
+            FloatVector sumGreen = FloatVector.zero(FLOATS);
+            FloatVector sumBlue = FloatVector.zero(FLOATS);
+            for (int k = 0; k < taps.length; k++) {
+                int index = rowStarts[k] + x;
+                float weight = taps[k];
+                sumRed = sumRed.add(FloatVector.fromArray(FLOATS, red, index).mul(weight));
+                sumGreen = sumGreen.add(FloatVector.fromArray(FLOATS, green, index).mul(weight));
+                sumBlue = sumBlue.add(FloatVector.fromArray(FLOATS, blue, index).mul(weight));
+            }
+            sumRed.intoArray(sums[0], x);
+            sumGreen.intoArray(sums[1], x);
+            sumBlue.intoArray(sums[2], x);
+        }
+        packRow(sums, dst, dstStart, 0, x);
+        return x;
+    }
+
+    /**
+     * A bare ColorTransform matrix over {@code src[from, to)} into the same
+     * positions of {@code dst}, with {@code coefficients} in fixed point with
+     * {@code shift} fraction bits, row by row.
+     */
+    static int colorMatrix(int[] src, int[] dst, int from, int to, int[] coefficients, int shift) {
+        int half = 1 << (shift - 1);
+        int i = from;
+
+        for (; i + LANES <= to; i += LANES) {
+            IntVector argb = IntVector.fromArray(INTS, src, i);
+            IntVector red = argb.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector green = argb.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector blue = argb.and(0xFF);
+
+            IntVector newRed = red.mul(coefficients[0]).add(green.mul(coefficients[1]))
+                                  .add(blue.mul(coefficients[2])).add(half)
+                                  .lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+            IntVector newGreen = red.mul(coefficients[3]).add(green.mul(coefficients[4]))
+                                    .add(blue.mul(coefficients[5])).add(half)
+                                    .lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+            IntVector newBlue = red.mul(coefficients[6]).add(green.mul(coefficients[7]))
+                                   .add(blue.mul(coefficients[8])).add(half)
+                                   .lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+
+            newRed.lanewise(VectorOperators.LSHL, 16)
+                  .or(newGreen.lanewise(VectorOperators.LSHL, 8))
+                  .or(newBlue)
+                  .or(PixelBuffer.OPAQUE)
+                  .intoArray(dst, i);
+        }
+        return i;
+    }
+
+    private static FloatVector channel(IntVector argb, int shift) {
+        return (FloatVector) argb.lanewise(VectorOperators.LSHR, shift).and(0xFF).convert(VectorOperators.I2F, 0);
+    }
+
+    // PixelBuffer.clamp on each channel sum in [x0, x1), packed into opaque ARGB.
+    // One pass per channel keeps each pass small enough for C2 to inline fully.
+    private static void packRow(float[][] sums, int[] dst, int dstStart, int x0, int x1) {
+        for (int x = x0; x < x1; x += LANES) {
+            round(FloatVector.fromArray(FLOATS, sums[0], x)).lanewise(VectorOperators.LSHL, 16)
+                    .or(PixelBuffer.OPAQUE)
+                    .intoArray(dst, dstStart + x);
+        }
+        orChannel(sums[1], 8, dst, dstStart, x0, x1);
+        orChannel(sums[2], 0, dst, dstStart, x0, x1);
+    }
+
+    private static void orChannel(float[] sums, int shift, int[] dst, int dstStart, int x0, int x1) {
+        for (int x = x0; x < x1; x += LANES) {
+            round(FloatVector.fromArray(FLOATS, sums, x)).lanewise(VectorOperators.LSHL, shift)
+                    .or(IntVector.fromArray(INTS, dst, dstStart + x))
+                    .intoArray(dst, dstStart + x);
+        }
+    }
+
+    private static float[][] scratch(int length) {
+        float[][] sums = SCRATCH.get();
+        if (sums[0].length < length) {
+            sums = new float[3][length];
+            SCRATCH.set(sums);
+        }
+        return sums;
+    }
+
+    // (int) (clamped + 0.5f), as in PixelBuffer.clamp, truncated by shifting
+    // the mantissa right by 150 - exponent; the value is at least 0.5, so the
+    // shift is at most 24 and anything below 1 shifts out to 0
+    private static IntVector round(FloatVector value) {
+        IntVector bits = value.max(0f).min(255f).add(0.5f).reinterpretAsInts();
+        IntVector shift = bits.lanewise(VectorOperators.LSHR, 23).neg().add(150);
+        return bits.and(0x7FFFFF).or(0x800000).lanewise(VectorOperators.LSHR, shift);
+    }
+}